@@ -10,22 +10,54 @@ package org.openmrs.module.ssemrws;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.scheduler.SchedulerException;
+import org.openmrs.scheduler.TaskDefinition;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
 public class SSEMRWebServicesActivator extends BaseModuleActivator {
 	
+	// Registered by the liquibase changelog; see RefreshVLEligibilityTask
+	private static final String VL_ELIGIBILITY_REFRESH_TASK = "SSEMR VL Eligibility Refresh";
+	
+	// Registered by the liquibase changelog; see RefreshDailyIndicatorsTask
+	private static final String DAILY_INDICATORS_REFRESH_TASK = "SSEMR Daily Indicators Refresh";
+	
+	// Registered by the liquibase changelog; see RefreshAppointmentTimelineTask
+	private static final String APPOINTMENT_TIMELINE_REFRESH_TASK = "SSEMR Appointment Timeline Refresh";
+	
+	// Registered by the liquibase changelog; see RefreshLatestAppointmentTask
+	private static final String LATEST_APPOINTMENT_REFRESH_TASK = "SSEMR Latest Appointment Refresh";
+	
 	private final Log log = LogFactory.getLog(this.getClass());
 	
 	/**
 	 * @see #started()
 	 */
 	public void started() {
+		startTask(VL_ELIGIBILITY_REFRESH_TASK);
+		startTask(DAILY_INDICATORS_REFRESH_TASK);
+		startTask(APPOINTMENT_TIMELINE_REFRESH_TASK);
+		startTask(LATEST_APPOINTMENT_REFRESH_TASK);
 		log.info("Started SSEMR Web Services");
 	}
 	
+	// Tasks are only started on startup by the scheduler, so a newly installed module starts its own
+	private void startTask(String taskName) {
+		TaskDefinition task = Context.getSchedulerService().getTaskByName(taskName);
+		if (task != null && !task.getStarted()) {
+			try {
+				Context.getSchedulerService().scheduleTask(task);
+			}
+			catch (SchedulerException e) {
+				log.error("Failed to start the " + taskName + " task", e);
+			}
+		}
+	}
+	
 	/**
 	 * @see #shutdown()
 	 */
@@ -0,0 +1,73 @@
+package org.openmrs.module.ssemrws.advice;
+
+import org.openmrs.module.appointments.model.Appointment;
+import org.openmrs.module.ssemrws.queries.AppointmentTimelineIndex;
+import org.openmrs.module.ssemrws.queries.GetLatestAppointment;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Marks the patients of saved appointments as stale in the {@link AppointmentTimelineIndex} and asks
+ * for a refresh of the latest appointment table. The advice runs inside the service transaction, so
+ * the patients are marked once that transaction commits; a reload before the commit would read the
+ * old appointments. Bound to the appointments module service in config.xml.
+ */
+public class AppointmentSaveAdvice implements AfterReturningAdvice {
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+		String name = method.getName();
+		if (name.startsWith("get") || name.startsWith("search") || name.startsWith("is")) {
+			return;
+		}
+		
+		Set<Integer> patientIds = new LinkedHashSet<>();
+		collectPatientIds(returnValue, patientIds);
+		if (args != null) {
+			for (Object arg : args) {
+				collectPatientIds(arg, patientIds);
+			}
+		}
+		if (patientIds.isEmpty()) {
+			return;
+		}
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					markStale(patientIds);
+				}
+			});
+		} else {
+			markStale(patientIds);
+		}
+	}
+	
+	private static void collectPatientIds(Object value, Set<Integer> patientIds) {
+		if (value instanceof Collection) {
+			for (Object item : (Collection<?>) value) {
+				collectPatientIds(item, patientIds);
+			}
+			return;
+		}
+		
+		if (value instanceof Appointment && ((Appointment) value).getPatient() != null) {
+			patientIds.add(((Appointment) value).getPatient().getPatientId());
+		}
+	}
+	
+	private static void markStale(Set<Integer> patientIds) {
+		for (Integer patientId : patientIds) {
+			AppointmentTimelineIndex.markStale(patientId);
+		}
+		GetLatestAppointment.requestRefresh();
+	}
+}
@@ -0,0 +1,73 @@
+package org.openmrs.module.ssemrws.constants;
+
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.api.context.Context;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches identifier type names and person attribute types, so that list pages can resolve them
+ * without loading the metadata once per patient.
+ */
+public class MetadataCache {
+	
+	private static final long CACHE_TTL_MS = 3600000;
+	
+	private static final ConcurrentHashMap<String, CacheEntry<PersonAttributeType>> attributeTypeCache = new ConcurrentHashMap<>();
+	
+	private static volatile CacheEntry<Map<Integer, String>> identifierTypeNames;
+	
+	// Inner class to store the metadata and its cache time
+	private static class CacheEntry<T> {
+		
+		T value;
+		
+		long cacheTime;
+		
+		CacheEntry(T value) {
+			this.value = value;
+			this.cacheTime = System.currentTimeMillis();
+		}
+		
+		boolean isValid() {
+			return (System.currentTimeMillis() - cacheTime) < CACHE_TTL_MS;
+		}
+	}
+	
+	// Method to get a person attribute type from the cache or fetch from DB if not
+	// present or expired
+	public static PersonAttributeType getCachedPersonAttributeType(String attributeTypeName) {
+		CacheEntry<PersonAttributeType> entry = attributeTypeCache.get(attributeTypeName);
+		
+		if (entry != null && entry.isValid()) {
+			return entry.value;
+		}
+		
+		PersonAttributeType attributeType = Context.getPersonService().getPersonAttributeTypeByName(attributeTypeName);
+		if (attributeType != null) {
+			attributeTypeCache.put(attributeTypeName, new CacheEntry<>(attributeType));
+		}
+		
+		return attributeType;
+	}
+	
+	// Method to get an identifier type name by id, loading all identifier types at
+	// once when the cache is empty or expired
+	public static String getCachedIdentifierTypeName(Integer identifierTypeId) {
+		CacheEntry<Map<Integer, String>> entry = identifierTypeNames;
+		
+		if (entry == null || !entry.isValid() || !entry.value.containsKey(identifierTypeId)) {
+			Map<Integer, String> names = new HashMap<>();
+			for (PatientIdentifierType identifierType : Context.getPatientService().getAllPatientIdentifierTypes(true)) {
+				names.put(identifierType.getPatientIdentifierTypeId(), identifierType.getName());
+			}
+			entry = new CacheEntry<>(names);
+			identifierTypeNames = entry;
+		}
+		
+		return entry.value.get(identifierTypeId);
+	}
+}
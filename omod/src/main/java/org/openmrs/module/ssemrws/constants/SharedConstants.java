@@ -1,18 +1,21 @@
 package org.openmrs.module.ssemrws.constants;
 
-import org.apache.commons.lang3.time.DateUtils;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.openmrs.*;
-import org.openmrs.api.PatientService;
 import org.openmrs.api.VisitService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.GetEncounterObs;
+import org.openmrs.module.ssemrws.queries.GetPatientExits;
+import org.openmrs.module.ssemrws.queries.GetRegimenSwitches;
+import org.openmrs.module.ssemrws.queries.GetViralLoadResult;
 import org.openmrs.module.ssemrws.web.constants.GeneratePatientListObject;
 import org.openmrs.module.ssemrws.web.constants.GenerateSummary;
 import org.openmrs.module.ssemrws.web.constants.GenerateSummaryResponse;
 import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.openmrs.module.ssemrws.web.dto.PatientObservations;
+import org.openmrs.module.ssemrws.web.dto.ViralLoadResult;
 import org.openmrs.parameter.EncounterSearchCriteria;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -30,6 +33,7 @@ import java.util.stream.Collectors;
 import static org.openmrs.module.ssemrws.constants.GetDateObservations.*;
 import static org.openmrs.module.ssemrws.constants.GetObservationValue.*;
 import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+import static org.openmrs.module.ssemrws.web.constants.FetchPatientsByIdentifier.fetchPatientsByIds;
 import static org.openmrs.module.ssemrws.web.constants.GenerateSummary.generateSummary;
 import static org.openmrs.module.ssemrws.web.constants.PatientDataUtils.*;
 import static org.openmrs.module.ssemrws.web.constants.RegimenConcepts.*;
@@ -45,10 +49,24 @@ public class SharedConstants {
 	
 	private static GeneratePatientListObject generatePatientListObj;
 	
+	private static GetEncounterObs getEncounterObs;
+	
+	private static GetPatientExits getPatientExits;
+	
+	private static GetViralLoadResult getViralLoadResult;
+	
+	private static GetRegimenSwitches getRegimenSwitches;
+	
 	public SharedConstants(GenerateSummaryResponse generateSummaryResponse,
-	    GeneratePatientListObject generatePatientListObj) {
+	    GeneratePatientListObject generatePatientListObj, GetEncounterObs getEncounterObs,
+	    GetPatientExits getPatientExits, GetViralLoadResult getViralLoadResult,
+	    GetRegimenSwitches getRegimenSwitches) {
 		SharedConstants.generateSummaryResponse = generateSummaryResponse;
 		SharedConstants.generatePatientListObj = generatePatientListObj;
+		SharedConstants.getEncounterObs = getEncounterObs;
+		SharedConstants.getPatientExits = getPatientExits;
+		SharedConstants.getViralLoadResult = getViralLoadResult;
+		SharedConstants.getRegimenSwitches = getRegimenSwitches;
 	}
 	
 	public static Date[] getStartAndEndDate(String qStartDate, String qEndDate, SimpleDateFormat dateTimeFormatter)
@@ -131,21 +149,6 @@ public class SharedConstants {
 		return "";
 	}
 	
-	public static boolean determineIfPatientIsPregnantOrBreastfeeding(Patient patient, Date endDate) {
-		
-		List<Concept> pregnantAndBreastfeedingConcepts = new ArrayList<>();
-		pregnantAndBreastfeedingConcepts
-		        .add(Context.getConceptService().getConceptByUuid(CURRENTLY_BREASTFEEDING_CONCEPT_UUID));
-		pregnantAndBreastfeedingConcepts.add(Context.getConceptService().getConceptByUuid(CURRENTLY_PREGNANT_CONCEPT_UUID));
-		
-		List<Obs> obsList = Context.getObsService().getObservations(Collections.singletonList(patient), null,
-		    pregnantAndBreastfeedingConcepts,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(CONCEPT_BY_UUID)), null, null, null, null,
-		    null, null, endDate, false);
-		
-		return !obsList.isEmpty();
-	}
-	
 	public static Map<String, Object> createResultMap(String key, int value) {
 		Map<String, Object> resultMap = new HashMap<>();
 		resultMap.put(key, value);
@@ -325,135 +328,18 @@ public class SharedConstants {
 		return getLatestDateForConcepts(patient, SAMPLE_COLLECTION_DATE_UUID, REPEAT_VL_COLLECTION_DATE);
 	}
 	
-	public static String getVLResults(Patient patient) {
-		Concept viralLoadResultsConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_RESULTS_UUID);
-		Concept bdlConcept = Context.getConceptService().getConceptByUuid(BDL_CONCEPT_UUID);
-		Concept viralLoadConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_CONCEPT_UUID);
-		
-		List<Obs> getVLResultNumericObs = Context.getObsService().getObservations(
-		    Collections.singletonList(patient.getPerson()), null, Collections.singletonList(viralLoadConcept), null, null,
-		    null, null, 1, null, null, null, false);
-		
-		List<Obs> getVLResultObs = Context.getObsService().getObservations(Collections.singletonList(patient.getPerson()),
-		    null, Collections.singletonList(viralLoadResultsConcept), null, null, null, null, 1, null, null, null, false);
-		
-		List<Obs> allObservations = new ArrayList<>();
-		allObservations.addAll(getVLResultNumericObs);
-		allObservations.addAll(getVLResultObs);
-		
-		allObservations.sort((o1, o2) -> o2.getObsDatetime().compareTo(o1.getObsDatetime()));
-		
-		if (!allObservations.isEmpty()) {
-			Obs mostRecentObs = allObservations.get(0);
-			
-			if (mostRecentObs.getValueNumeric() != null) {
-				return mostRecentObs.getValueNumeric().toString();
-			} else if (mostRecentObs.getValueText() != null) {
-				return mostRecentObs.getValueText();
-			} else if (mostRecentObs.getValueCoded() != null) {
-				if (mostRecentObs.getValueCoded().equals(bdlConcept)) {
-					return "Below Detectable (BDL)";
-				} else {
-					return mostRecentObs.getValueCoded().getName().getName();
-				}
-			} else {
-				System.err.println("Observation value is neither numeric, text, nor coded.");
-			}
-		}
-		return null;
-	}
-	
 	/**
-	 * Gets the latest VL Result from the Follow-Up Form.
+	 * Gets the latest VL result of the patient, from any encounter.
 	 */
-	public static String getVLResultsFromFollowUpForm(Patient patient) {
-		return getLatestVlValueForEncounterType(patient, FOLLOW_UP_FORM_ENCOUNTER_TYPE);
+	public static ViralLoadResult getLatestViralLoadResult(Patient patient) {
+		return getViralLoadResult.getLatestResult(patient.getPatientId());
 	}
 	
 	/**
-	 * This is the new private helper method that contains all the reusable logic. It fetches the most
-	 * recent Viral Load value for a patient from within encounters of a specific type.
-	 * 
-	 * @param patient The patient to check.
-	 * @param encounterTypeUuid The UUID of the EncounterType to search within.
-	 * @return The formatted String of the latest VL value, or null if none is found.
+	 * Gets the latest VL result from the Follow-Up Form.
 	 */
-	private static String getLatestVlValueForEncounterType(Patient patient, String encounterTypeUuid) {
-		EncounterType encounterType = Context.getEncounterService().getEncounterTypeByUuid(encounterTypeUuid);
-		if (encounterType == null) {
-			System.err.println("Could not find EncounterType with UUID: " + encounterTypeUuid);
-			return null;
-		}
-		
-		EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(patient, null, null, null, null, null,
-		        Collections.singletonList(encounterType), null, null, null, false);
-		List<Encounter> encounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-		
-		if (encounters.isEmpty()) {
-			return null;
-		}
-		
-		Concept viralLoadResultsConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_RESULTS_UUID);
-		Concept bdlConcept = Context.getConceptService().getConceptByUuid(BDL_CONCEPT_UUID);
-		Concept viralLoadConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_CONCEPT_UUID);
-		
-		List<Obs> getVLResultNumericObs = Context.getObsService().getObservations(
-		    Collections.singletonList(patient.getPerson()), encounters, Collections.singletonList(viralLoadConcept), null,
-		    null, null, null, null, null, null, null, false);
-		
-		List<Obs> getVLResultObs = Context.getObsService().getObservations(Collections.singletonList(patient.getPerson()),
-		    encounters, Collections.singletonList(viralLoadResultsConcept), null, null, null, null, null, null, null, null,
-		    false);
-		
-		List<Obs> allObservations = new ArrayList<>();
-		allObservations.addAll(getVLResultNumericObs);
-		allObservations.addAll(getVLResultObs);
-		
-		if (!allObservations.isEmpty()) {
-			Obs mostRecentObs = allObservations.get(0);
-			
-			if (mostRecentObs.getValueNumeric() != null) {
-				return mostRecentObs.getValueNumeric().toString();
-			} else if (mostRecentObs.getValueText() != null) {
-				return mostRecentObs.getValueText();
-			} else if (mostRecentObs.getValueCoded() != null) {
-				if (mostRecentObs.getValueCoded().equals(bdlConcept)) {
-					return "Below Detectable (BDL)";
-				} else {
-					return mostRecentObs.getValueCoded().getName().getName();
-				}
-			} else {
-				System.err.println("Observation value is neither numeric, text, nor coded.");
-			}
-		}
-		return null;
-	}
-	
-	public static String getVLStatus(Patient patient) {
-		String vlResult = getVLResults(patient);
-		
-		if (vlResult == null) {
-			System.err.println("VL result is null for patient: " + patient);
-			return "Unknown";
-		}
-		
-		try {
-			double vlValue = Double.parseDouble(vlResult);
-			
-			if (vlValue >= 1000) {
-				return "Unsuppressed";
-			} else {
-				return "Suppressed";
-			}
-		}
-		catch (NumberFormatException e) {
-			if ("Below Detectable (BDL)".equalsIgnoreCase(vlResult)) {
-				return "Suppressed";
-			} else {
-				System.err.println("Error parsing VL result or unrecognized value: " + vlResult);
-				return "Unknown";
-			}
-		}
+	public static ViralLoadResult getLatestViralLoadResultFromFollowUpForm(Patient patient) {
+		return getViralLoadResult.getLatestResult(patient.getPatientId(), FOLLOW_UP_FORM_ENCOUNTER_TYPE);
 	}
 	
 	public static Double getBMI(Patient patient) {
@@ -586,36 +472,11 @@ public class SharedConstants {
 		return deadPatients;
 	}
 	
-	public static HashSet<Patient> getTransferredInPatients(Date startDate, Date endDate) {
-		PatientService patientService = Context.getPatientService();
-		List<Patient> allPatients = patientService.getAllPatients();
-		
-		return allPatients.stream()
-		        .filter(patient -> patient.getIdentifiers().stream()
-		                .anyMatch(identifier -> identifier.getIdentifier().startsWith("TI-")))
-		        .collect(Collectors.toCollection(HashSet::new));
-	}
-	
 	public static HashSet<Patient> getReturnToTreatmentPatients(Date startDate, Date endDate) {
-		List<String> returnedToTreatmentencounterTypeUuids = Collections
-		        .singletonList(ART_TREATMENT_INTURRUPTION_ENCOUNTER_TYPE_UUID);
-		
-		List<Encounter> returnedToTreatmentEncounters = getEncountersByEncounterTypes(returnedToTreatmentencounterTypeUuids,
-		    startDate, endDate);
-		
-		List<Obs> returnedToTreatmentObs = Context.getObsService().getObservations(null, returnedToTreatmentEncounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(RETURNING_TO_TREATMENT_UUID)),
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(CONCEPT_BY_UUID)), null, null, null, null,
-		    null, startDate, endDate, false);
-		
-		HashSet<Patient> returnToTreatmentPatients = new HashSet<>();
-		
-		for (Obs obs : returnedToTreatmentObs) {
-			Patient patient = (Patient) obs.getPerson();
-			returnToTreatmentPatients.add(patient);
-		}
+		Set<Integer> returnToTreatmentIds = getEncounterObs.getPatientIdsWithAnswer(
+		    ART_TREATMENT_INTURRUPTION_ENCOUNTER_TYPE_UUID, RETURNING_TO_TREATMENT_UUID, CONCEPT_BY_UUID, startDate, endDate);
 		
-		return returnToTreatmentPatients;
+		return fetchPatientsByIds(new ArrayList<>(returnToTreatmentIds));
 	}
 	
 	// Get all patients who have high Viral Load
@@ -629,114 +490,32 @@ public class SharedConstants {
 	
 	public static HashSet<Patient> getPatientsWithVL(Date startDate, Date endDate, String encounterTypeUuid,
 	        String conceptUuid) {
-		EncounterType encounterType = Context.getEncounterService().getEncounterTypeByUuid(encounterTypeUuid);
-		EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, startDate, endDate, null,
-		        null, Collections.singletonList(encounterType), null, null, null, false);
-		List<Encounter> encounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-		
-		HashSet<Patient> vlPatients = new HashSet<>();
-		
-		List<Obs> vlObs = Context.getObsService().getObservations(null, encounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(conceptUuid)), null, null, null, null,
-		    null, null, startDate, endDate, false);
-		
-		for (Obs obs : vlObs) {
-			if (obs.getValueNumeric() != null && obs.getValueNumeric() >= THRESHOLD) {
-				vlPatients.add((Patient) obs.getPerson());
-			}
-		}
+		Set<Integer> vlPatientIds = getEncounterObs.getPatientIdsWithValueAtLeast(encounterTypeUuid, conceptUuid,
+		    THRESHOLD, startDate, endDate);
 		
-		HashSet<Patient> deceasedPatients = getDeceasedPatientsByDateRange(startDate, endDate);
-		HashSet<Patient> transferredOutPatients = getTransferredOutClients(startDate, endDate);
-		
-		vlPatients.removeAll(deceasedPatients);
-		vlPatients.removeAll(transferredOutPatients);
+		vlPatientIds.removeAll(getPatientExits.getDeceasedPatientIds(endDate));
+		vlPatientIds.removeAll(getPatientExits.getTransferredOutPatientIds(endDate));
 		
-		return vlPatients;
+		return fetchPatientsByIds(new ArrayList<>(vlPatientIds));
 	}
 	
 	public static HashSet<Patient> getPatientsWithRepeatedVL(Date startDate, Date endDate) {
-		EncounterType repeatViralLoadEncounterType = Context.getEncounterService()
-		        .getEncounterTypeByUuid(HIGH_VL_ENCOUNTERTYPE_UUID);
-		EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, startDate, endDate, null,
-		        null, Collections.singletonList(repeatViralLoadEncounterType), null, null, null, false);
-		List<Encounter> encounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-		
-		HashSet<Patient> repeatviralLoadPatients = new HashSet<>();
-		
-		List<Obs> repeatviralLoadObs = Context.getObsService().getObservations(null, encounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(REAPEAT_VL_COLLECTION)), null, null, null,
-		    null, null, null, startDate, endDate, false);
-		
-		for (Obs obs : repeatviralLoadObs) {
-			if (obs != null) {
-				repeatviralLoadPatients.add((Patient) obs.getPerson());
-			}
-		}
-		
-		return repeatviralLoadPatients;
+		Set<Integer> repeatViralLoadIds = getEncounterObs.getPatientIds(HIGH_VL_ENCOUNTERTYPE_UUID,
+		    REAPEAT_VL_COLLECTION, startDate, endDate);
 		
+		return fetchPatientsByIds(new ArrayList<>(repeatViralLoadIds));
 	}
 	
 	public static HashSet<Patient> getPatientsWithSwitchART(Date startDate, Date endDate) {
-		EncounterType switchARTRegimenEncounterType = Context.getEncounterService()
-		        .getEncounterTypeByUuid(FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-		EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, startDate, endDate, null,
-		        null, Collections.singletonList(switchARTRegimenEncounterType), null, null, null, false);
-		List<Encounter> encounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-		
-		HashSet<Patient> switchARTRegimenPatients = new HashSet<>();
-		Map<Patient, String> patientPreviousRegimen = new HashMap<>();
-		
-		List<Obs> switchARTRegimenObs = Context.getObsService().getObservations(null, encounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(ACTIVE_REGIMEN_CONCEPT_UUID)), null, null,
-		    null, null, null, null, startDate, endDate, false);
+		Set<Integer> switchARTRegimenIds = getRegimenSwitches.getSwitchedPatientIds(startDate, endDate);
 		
-		for (Obs obs : switchARTRegimenObs) {
-			if (obs != null && obs.getPerson() instanceof Patient) {
-				Patient patient = (Patient) obs.getPerson();
-				String currentRegimen = obs.getValueCoded() != null ? obs.getValueCoded().getUuid() : null;
-				
-				if (currentRegimen != null) {
-					if (patientPreviousRegimen.containsKey(patient)) {
-						String previousRegimen = patientPreviousRegimen.get(patient);
-						if (!currentRegimen.equals(previousRegimen)) {
-							switchARTRegimenPatients.add(patient);
-						}
-					}
-					patientPreviousRegimen.put(patient, currentRegimen);
-				}
-			}
-		}
-		
-		return switchARTRegimenPatients;
+		return fetchPatientsByIds(new ArrayList<>(switchARTRegimenIds));
 	}
 	
 	public static HashSet<Patient> getPatientsWithSecondLineSwitchART(Date startDate, Date endDate) {
-		EncounterType secondLineSwitchARTRegimenEncounterType = Context.getEncounterService()
-		        .getEncounterTypeByUuid(FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-		EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, startDate, endDate, null,
-		        null, Collections.singletonList(secondLineSwitchARTRegimenEncounterType), null, null, null, false);
-		List<Encounter> encounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-		
-		HashSet<Patient> secondLineSwitchARTRegimenPatients = new HashSet<>();
-		
-		List<Obs> secondLineSwitchARTRegimenObs = Context.getObsService().getObservations(null, encounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(ACTIVE_REGIMEN_CONCEPT_UUID)), null, null,
-		    null, null, null, null, startDate, endDate, false);
-		
-		for (Obs obs : secondLineSwitchARTRegimenObs) {
-			if (obs != null && obs.getPerson() instanceof Patient) {
-				Patient patient = (Patient) obs.getPerson();
-				String currentRegimen = obs.getValueCoded() != null ? obs.getValueCoded().getUuid() : null;
-				
-				if (currentRegimen != null && SECOND_LINE_REGIMENS.contains(currentRegimen)) {
-					secondLineSwitchARTRegimenPatients.add(patient);
-				}
-			}
-		}
+		Set<Integer> secondLineSwitchARTRegimenIds = getRegimenSwitches.getSecondLineSwitchedPatientIds(startDate, endDate);
 		
-		return secondLineSwitchARTRegimenPatients;
+		return fetchPatientsByIds(new ArrayList<>(secondLineSwitchARTRegimenIds));
 	}
 	
 	// Determine if Patient is High Viral Load and return true if it is equal or
@@ -759,34 +538,6 @@ public class SharedConstants {
 		return rttObs != null && !rttObs.isEmpty();
 	}
 	
-	public static Map<String, Map<String, Integer>> generateDashboardSummaryFromObs(Date startDate, Date endDate,
-	        List<Obs> obsList, SSEMRWebServicesController.filterCategory filterCategory) {
-		
-		if (obsList == null) {
-			throw new IllegalArgumentException("Observation list cannot be null");
-		}
-		
-		List<Date> dates = new ArrayList<>();
-		for (Obs obs : obsList) {
-			if (obs == null) {
-				System.out.println("Encountered null observation");
-				continue;
-			}
-			
-			Date obsDate = obs.getObsDatetime();
-			if (obsDate == null) {
-				System.out.println("Encountered observation with null date: " + obs);
-				continue;
-			}
-			
-			if (obsDate.after(DateUtils.addDays(startDate, -1)) && obsDate.before(DateUtils.addDays(endDate, 1))) {
-				dates.add(obsDate);
-			}
-		}
-		
-		return generateSummary(dates);
-	}
-	
 	public static List<PatientObservations.FamilyMemberObservation> getFamilyMemberObservations(Patient patient) {
 		List<PatientObservations.FamilyMemberObservation> familyMemberObservations = new ArrayList<>();
 		
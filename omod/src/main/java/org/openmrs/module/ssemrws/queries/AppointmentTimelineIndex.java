@@ -0,0 +1,268 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of every patient's appointments, kept as one sorted {@code long[]} per patient.
+ * Each entry packs the appointment start time in milliseconds with a 4-bit status code, so that
+ * entries sort by time and next, last and missed appointment questions are answered by binary
+ * search instead of a query on {@code openmrs.patient_appointment}.
+ * <p>
+ * The index is kept warm by {@link #refresh()}, which the appointment timeline task runs every five
+ * minutes: it loads the index in full after {@code FULL_RELOAD_TTL_MS} and otherwise reloads the
+ * patients whose appointments were created or changed since the previous run, which covers changes
+ * made outside the appointments service. Committed appointment saves mark the patient stale through
+ * {@link #markStale(Integer)}, and that patient's timeline is reloaded on its next read.
+ */
+@Component
+public class AppointmentTimelineIndex {
+	
+	public static final String MISSED = "Missed";
+	
+	public static final String CANCELLED = "Cancelled";
+	
+	// Status codes are the position in this list plus one; 0 is any other status
+	private static final List<String> STATUSES = Arrays.asList("Scheduled", "CheckedIn", "Completed", MISSED, CANCELLED,
+	    "Requested", "WaitList");
+	
+	private static final int STATUS_BITS = 4;
+	
+	private static final long STATUS_MASK = (1L << STATUS_BITS) - 1;
+	
+	private static final long FULL_RELOAD_TTL_MS = 3600000;
+	
+	private static final long[] NO_APPOINTMENTS = new long[0];
+	
+	private static final String TIMELINE_QUERY = "SELECT fp.patient_id, fp.start_date_time, fp.status "
+	        + "FROM openmrs.patient_appointment fp WHERE fp.start_date_time IS NOT NULL ";
+	
+	private static final String CHANGED_PATIENTS_QUERY = "SELECT DISTINCT c.patient_id "
+	        + "FROM openmrs.patient_appointment c WHERE COALESCE(c.date_changed, c.date_created) >= :since";
+	
+	private static final Object reloadLock = new Object();
+	
+	private static volatile Map<Integer, long[]> timelines;
+	
+	private static volatile long loadTime;
+	
+	private static volatile long changesCheckedTime;
+	
+	// Patient id to the sequence number of its latest mark, so that a reload clears only the marks
+	// made before it started
+	private static final Map<Integer, Long> stalePatientIds = new ConcurrentHashMap<>();
+	
+	private static final AtomicLong staleSequence = new AtomicLong();
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Marks the patient's timeline as changed, so that it is reloaded on its next read. Called after
+	 * appointment saves commit.
+	 */
+	public static void markStale(Integer patientId) {
+		if (patientId != null) {
+			stalePatientIds.put(patientId, staleSequence.incrementAndGet());
+		}
+	}
+	
+	/**
+	 * Loads the index in full when it is not loaded or older than {@code FULL_RELOAD_TTL_MS}, and
+	 * otherwise reloads the patients with appointments created or changed since the previous call.
+	 */
+	public void refresh() {
+		synchronized (reloadLock) {
+			if (timelines == null || (System.currentTimeMillis() - loadTime) >= FULL_RELOAD_TTL_MS) {
+				reloadAll();
+				return;
+			}
+			
+			long checkTime = System.currentTimeMillis();
+			for (Object patientId : executeQuery(entityManager.createNativeQuery(CHANGED_PATIENTS_QUERY)
+			        .setParameter("since", new Date(changesCheckedTime)))) {
+				Integer changedPatientId = ((Number) patientId).intValue();
+				reloadPatient(changedPatientId, stalePatientIds.get(changedPatientId));
+			}
+			changesCheckedTime = checkTime;
+		}
+	}
+	
+	// Earliest appointment at or after the given time that is not cancelled, or any status when
+	// includeCancelled is set
+	public Date getNextAppointment(Integer patientId, Date from, boolean includeCancelled) {
+		long[] timeline = getTimeline(patientId);
+		for (int i = lowerBound(timeline, from.getTime()); i < timeline.length; i++) {
+			if (includeCancelled || !isStatus(timeline[i], CANCELLED)) {
+				return toDate(timeline[i]);
+			}
+		}
+		return null;
+	}
+	
+	// Latest appointment before the given time that has the given status
+	public Date getLastAppointmentWithStatus(Integer patientId, Date before, String status) {
+		long[] timeline = getTimeline(patientId);
+		for (int i = lowerBound(timeline, before.getTime()) - 1; i >= 0; i--) {
+			if (isStatus(timeline[i], status)) {
+				return toDate(timeline[i]);
+			}
+		}
+		return null;
+	}
+	
+	// Latest appointment before the given time that was neither missed nor cancelled
+	public Date getLastKeptAppointment(Integer patientId, Date before) {
+		long[] timeline = getTimeline(patientId);
+		for (int i = lowerBound(timeline, before.getTime()) - 1; i >= 0; i--) {
+			if (!isStatus(timeline[i], MISSED) && !isStatus(timeline[i], CANCELLED)) {
+				return toDate(timeline[i]);
+			}
+		}
+		return null;
+	}
+	
+	public boolean hasAppointmentWithStatus(Integer patientId, String status) {
+		for (long entry : getTimeline(patientId)) {
+			if (isStatus(entry, status)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Whether the patient has any appointment strictly after the given time
+	public boolean hasAppointmentAfter(Integer patientId, Date after) {
+		long[] timeline = getTimeline(patientId);
+		int index = lowerBound(timeline, after.getTime() + 1);
+		return index < timeline.length;
+	}
+	
+	/**
+	 * Latest missed appointment whose 28th day after falls within the period and not after the given
+	 * day.
+	 */
+	public Date getLastMissedAppointmentForIit(Integer patientId, Date startDate, Date endDate, Date notAfter) {
+		long[] timeline = getTimeline(patientId);
+		for (int i = timeline.length - 1; i >= 0; i--) {
+			if (!isStatus(timeline[i], MISSED)) {
+				continue;
+			}
+			Date iitDate = addDays(toDate(timeline[i]), 28);
+			if (!iitDate.after(notAfter) && !iitDate.before(startDate) && !iitDate.after(endDate)) {
+				return toDate(timeline[i]);
+			}
+		}
+		return null;
+	}
+	
+	private long[] getTimeline(Integer patientId) {
+		if (timelines == null) {
+			synchronized (reloadLock) {
+				if (timelines == null) {
+					reloadAll();
+				}
+			}
+		}
+		if (stalePatientIds.containsKey(patientId)) {
+			synchronized (reloadLock) {
+				Long staleMark = stalePatientIds.get(patientId);
+				if (staleMark != null) {
+					reloadPatient(patientId, staleMark);
+				}
+			}
+		}
+		long[] timeline = timelines.get(patientId);
+		return timeline != null ? timeline : NO_APPOINTMENTS;
+	}
+	
+	// Callers hold reloadLock, so that a patient reload always writes into the current map
+	private void reloadAll() {
+		long checkTime = System.currentTimeMillis();
+		timelines = new ConcurrentHashMap<>(
+		        buildTimelines(this.<Object[]> executeQuery(entityManager.createNativeQuery(TIMELINE_QUERY))));
+		loadTime = checkTime;
+		changesCheckedTime = checkTime;
+	}
+	
+	// Callers hold reloadLock. The stale mark is cleared only after the reload, and only when no newer
+	// mark was made while it ran
+	private void reloadPatient(Integer patientId, Long staleMark) {
+		long[] timeline = buildTimelines(this.<Object[]> executeQuery(entityManager
+		        .createNativeQuery(TIMELINE_QUERY + "AND fp.patient_id = :patientId").setParameter("patientId", patientId)))
+		                .get(patientId);
+		if (timeline != null) {
+			timelines.put(patientId, timeline);
+		} else {
+			timelines.remove(patientId);
+		}
+		if (staleMark != null) {
+			stalePatientIds.remove(patientId, staleMark);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T> List<T> executeQuery(Query query) {
+		try {
+			return query.getResultList();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing appointment timeline query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute appointment timeline query", e);
+		}
+	}
+	
+	private static Map<Integer, long[]> buildTimelines(List<Object[]> rows) {
+		Map<Integer, List<Long>> entries = new HashMap<>();
+		for (Object[] row : rows) {
+			Integer patientId = ((Number) row[0]).intValue();
+			long entry = (((Date) row[1]).getTime() << STATUS_BITS) | (STATUSES.indexOf((String) row[2]) + 1);
+			entries.computeIfAbsent(patientId, k -> new ArrayList<>()).add(entry);
+		}
+		
+		Map<Integer, long[]> built = new HashMap<>();
+		for (Map.Entry<Integer, List<Long>> patientEntries : entries.entrySet()) {
+			long[] timeline = patientEntries.getValue().stream().mapToLong(Long::longValue).toArray();
+			Arrays.sort(timeline);
+			built.put(patientEntries.getKey(), timeline);
+		}
+		return built;
+	}
+	
+	// Index of the first entry starting at or after the given time
+	private static int lowerBound(long[] timeline, long time) {
+		int low = 0;
+		int high = timeline.length;
+		long key = time << STATUS_BITS;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timeline[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	private static boolean isStatus(long entry, String status) {
+		return (entry & STATUS_MASK) == STATUSES.indexOf(status) + 1;
+	}
+	
+	private static Date toDate(long entry) {
+		return new Date(entry >> STATUS_BITS);
+	}
+	
+	private static Date addDays(Date date, int days) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		calendar.add(Calendar.DAY_OF_MONTH, days);
+		return calendar.getTime();
+	}
+}
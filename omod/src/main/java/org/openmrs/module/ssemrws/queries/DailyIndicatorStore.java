@@ -0,0 +1,364 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Daily counts of the dashboard indicators, kept in the module-owned {@code ssemrws_daily_indicator}
+ * table. A range is answered from the stored days; only the days that are not stored yet are counted
+ * live, and those older than {@code SETTLE_DAYS} are then stored, zero counts included, as late
+ * entries mostly land within the first days.
+ * <p>
+ * Later changes are caught by {@link #invalidateChangedDays()}, run by
+ * {@code RefreshDailyIndicatorsTask}. It deletes the stored days whose source rows changed after, or
+ * up to a day before, the day was stored, so they are counted again on their next read. Changes it
+ * cannot see, such as an exit recorded for a patient with missed appointments, stay until
+ * {@link #clear(String)} drops the stored days.
+ */
+@Component
+public class DailyIndicatorStore {
+	
+	public static final String NEW_ENROLMENTS = "NEW_ENROLMENTS";
+	
+	public static final String RETURN_TO_TREATMENT = "RETURN_TO_TREATMENT";
+	
+	public static final String MISSED_APPOINTMENTS = "MISSED_APPOINTMENTS";
+	
+	public static final String VL_SAMPLES = "VL_SAMPLES";
+	
+	public static final String VL_RESULTS = "VL_RESULTS";
+	
+	public static final String EAC_SESSIONS = "EAC_SESSIONS";
+	
+	private static final int INSERT_BATCH_SIZE = 500;
+	
+	// Days are stored once they are this many days old
+	static final int SETTLE_DAYS = 7;
+	
+	// How far before the previous invalidation pass changes are looked at again, for ETL tables
+	// rebuilt after their source encounters changed
+	static final long CHANGE_WINDOW_MS = 86400000;
+	
+	private static final Object invalidationLock = new Object();
+	
+	private static volatile long lastInvalidationTime;
+	
+	// Obs of one concept on the follow-up form, counted on the obs date
+	private static final String FOLLOW_UP_OBS_QUERY = "SELECT DATE(o.obs_datetime) AS day, COUNT(*) "
+	        + "FROM openmrs.obs o " + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id AND e.voided = 0 "
+	        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+	        + "WHERE o.voided = 0 AND et.uuid = :encounterType AND c.uuid = :concept "
+	        + "AND o.obs_datetime >= :startDate AND o.obs_datetime < :endDate " + "GROUP BY day";
+	
+	// Obs days of one concept on the follow-up form whose obs or encounter changed since :since
+	private static final String FOLLOW_UP_OBS_CHANGED_DAYS_QUERY = "SELECT DATE(o.obs_datetime) AS day, "
+	        + "MAX(GREATEST(o.date_created, COALESCE(o.date_voided, o.date_created), "
+	        + "COALESCE(e.date_changed, e.date_created), COALESCE(e.date_voided, e.date_created))) AS last_changed "
+	        + "FROM openmrs.obs o " + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id "
+	        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "WHERE et.uuid = :encounterType AND c.uuid = :concept "
+	        + "AND (o.date_created >= :since OR o.date_voided >= :since OR e.date_changed >= :since "
+	        + "OR e.date_voided >= :since) " + "GROUP BY day";
+	
+	private static final Map<String, Indicator> INDICATORS = new HashMap<>();
+	
+	static {
+		// Patients counted on the date of their latest enrolment date obs
+		INDICATORS.put(NEW_ENROLMENTS, new Indicator("SELECT DATE(x.value_datetime) AS day, COUNT(*) FROM ( "
+		        + "    SELECT o.value_datetime, ROW_NUMBER() OVER (PARTITION BY o.person_id "
+		        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+		        + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "    JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+		        + "    WHERE o.voided = 0 AND c.uuid = :concept AND o.value_datetime IS NOT NULL " + ") x "
+		        + "WHERE x.rn = 1 AND x.value_datetime >= :startDate AND x.value_datetime < :endDate " + "GROUP BY day",
+		        // A new or voided enrolment date can move the patient's latest one, so all their days change
+		        "SELECT DATE(o.value_datetime) AS day, MAX(ch.changed) AS last_changed " + "FROM openmrs.obs o "
+		                + "JOIN openmrs.concept c ON c.concept_id = o.concept_id " + "JOIN ( "
+		                + "    SELECT o2.person_id, MAX(GREATEST(o2.date_created, "
+		                + "    COALESCE(o2.date_voided, o2.date_created))) AS changed " + "    FROM openmrs.obs o2 "
+		                + "    JOIN openmrs.concept c2 ON c2.concept_id = o2.concept_id "
+		                + "    WHERE c2.uuid = :concept AND (o2.date_created >= :since OR o2.date_voided >= :since) "
+		                + "    GROUP BY o2.person_id " + ") ch ON ch.person_id = o.person_id "
+		                + "WHERE c.uuid = :concept AND o.value_datetime IS NOT NULL " + "GROUP BY day")
+		                        .with("concept", DATE_OF_ENROLLMENT_UUID));
+		
+		INDICATORS.put(RETURN_TO_TREATMENT, new Indicator("SELECT DATE(o.obs_datetime) AS day, COUNT(DISTINCT o.person_id) "
+		        + "FROM openmrs.obs o " + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id AND e.voided = 0 "
+		        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+		        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+		        + "WHERE o.voided = 0 AND et.uuid = :encounterType AND c.uuid = :concept "
+		        + "AND o.value_coded = (SELECT a.concept_id FROM openmrs.concept a WHERE a.uuid = :answer) "
+		        + "AND o.obs_datetime >= :startDate AND o.obs_datetime < :endDate " + "GROUP BY day",
+		        FOLLOW_UP_OBS_CHANGED_DAYS_QUERY)
+		                .with("encounterType", ART_TREATMENT_INTURRUPTION_ENCOUNTER_TYPE_UUID)
+		                .with("concept", RETURNING_TO_TREATMENT_UUID).with("answer", CONCEPT_BY_UUID));
+		
+		// The 28 day window of the missed appointment list is relative to today, so it is not applied here
+		INDICATORS.put(MISSED_APPOINTMENTS, new Indicator(
+		        "SELECT DATE(fp.start_date_time) AS day, COUNT(DISTINCT fp.patient_id) "
+		                + "FROM openmrs.patient_appointment fp " + "WHERE fp.status = 'Missed' "
+		                + "AND fp.start_date_time >= :startDate AND fp.start_date_time < :endDate "
+		                + "AND fp.patient_id NOT IN (SELECT eofu.client_id FROM ssemr_etl.ssemr_flat_encounter_end_of_follow_up eofu "
+		                + "WHERE (eofu.death = 'Yes' AND eofu.date_of_death IS NOT NULL) "
+		                + "OR (eofu.transfer_out = 'Yes' AND eofu.transfer_out_date IS NOT NULL)) " + "GROUP BY day",
+		        "SELECT DATE(fp.start_date_time) AS day, "
+		                + "MAX(COALESCE(fp.date_changed, fp.date_created)) AS last_changed "
+		                + "FROM openmrs.patient_appointment fp "
+		                + "WHERE COALESCE(fp.date_changed, fp.date_created) >= :since " + "GROUP BY day"));
+		
+		INDICATORS.put(VL_SAMPLES, new Indicator(FOLLOW_UP_OBS_QUERY, FOLLOW_UP_OBS_CHANGED_DAYS_QUERY)
+		        .with("encounterType", FOLLOW_UP_FORM_ENCOUNTER_TYPE).with("concept", SAMPLE_COLLECTION_DATE_UUID));
+		
+		INDICATORS.put(VL_RESULTS, new Indicator(FOLLOW_UP_OBS_QUERY, FOLLOW_UP_OBS_CHANGED_DAYS_QUERY)
+		        .with("encounterType", FOLLOW_UP_FORM_ENCOUNTER_TYPE).with("concept", VIRAL_LOAD_RESULTS_UUID));
+		
+		// EAC 1, 2 and 3 sessions, counted on their session dates
+		INDICATORS.put(EAC_SESSIONS, new Indicator("SELECT DATE(s.session_date) AS day, COUNT(*) FROM ( "
+		        + "    SELECT CASE n.eac_session WHEN 1 THEN hvl.adherence_date "
+		        + "    WHEN 2 THEN hvl.second_eac_session_date ELSE hvl.third_eac_session_date END AS session_date "
+		        + "    FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
+		        + "    CROSS JOIN (SELECT 1 AS eac_session UNION ALL SELECT 2 UNION ALL SELECT 3) n " + ") s "
+		        + "WHERE s.session_date >= :startDate AND s.session_date < :endDate " + "GROUP BY day",
+		        // The ETL rows have no change time, so the session days of clients whose high viral load
+		        // encounters changed are taken
+		        "SELECT DATE(s.session_date) AS day, MAX(s.changed) AS last_changed FROM ( "
+		                + "    SELECT CASE n.eac_session WHEN 1 THEN hvl.adherence_date "
+		                + "    WHEN 2 THEN hvl.second_eac_session_date ELSE hvl.third_eac_session_date END AS session_date, "
+		                + "    ch.changed " + "    FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
+		                + "    CROSS JOIN (SELECT 1 AS eac_session UNION ALL SELECT 2 UNION ALL SELECT 3) n "
+		                + "    JOIN ( " + "        SELECT en.patient_id, MAX(GREATEST(en.date_created, "
+		                + "        COALESCE(en.date_changed, en.date_created), "
+		                + "        COALESCE(en.date_voided, en.date_created))) AS changed "
+		                + "        FROM openmrs.encounter en "
+		                + "        JOIN openmrs.encounter_type et ON et.encounter_type_id = en.encounter_type "
+		                + "        WHERE et.uuid = :encounterType AND (en.date_created >= :since "
+		                + "        OR en.date_changed >= :since OR en.date_voided >= :since) "
+		                + "        GROUP BY en.patient_id " + "    ) ch ON ch.patient_id = hvl.client_id " + ") s "
+		                + "WHERE s.session_date IS NOT NULL " + "GROUP BY day").with("encounterType",
+		                    HIGH_VL_ENCOUNTERTYPE_UUID));
+	}
+	
+	// Inner class to store the daily count query of an indicator, the query of the days whose source
+	// rows changed since :since, and their fixed parameters
+	private static class Indicator {
+		
+		final String query;
+		
+		final String changedDaysQuery;
+		
+		final Map<String, Object> parameters = new HashMap<>();
+		
+		Indicator(String query, String changedDaysQuery) {
+			this.query = query;
+			this.changedDaysQuery = changedDaysQuery;
+		}
+		
+		Indicator with(String name, Object value) {
+			parameters.put(name, value);
+			return this;
+		}
+	}
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Returns the indicator's count for every day of the period, in day order, with days without
+	 * events mapped to 0.
+	 */
+	@Transactional
+	public Map<LocalDate, Integer> getDailyCounts(String indicator, Date startDate, Date endDate) {
+		Indicator definition = INDICATORS.get(indicator);
+		if (definition == null) {
+			throw new IllegalArgumentException("Unknown indicator: " + indicator);
+		}
+		
+		LocalDate firstDay = toLocalDate(startDate);
+		LocalDate lastDay = toLocalDate(endDate);
+		Map<LocalDate, Integer> counts = new TreeMap<>(getStoredCounts(indicator, firstDay, lastDay));
+		
+		// Count the days that are not stored yet in one live query over their span
+		LocalDate firstMissing = null;
+		LocalDate lastMissing = null;
+		for (LocalDate day = firstDay; !day.isAfter(lastDay); day = day.plusDays(1)) {
+			if (!counts.containsKey(day)) {
+				firstMissing = firstMissing == null ? day : firstMissing;
+				lastMissing = day;
+			}
+		}
+		if (firstMissing == null) {
+			return counts;
+		}
+		
+		Map<LocalDate, Integer> liveCounts = countLive(definition, firstMissing, lastMissing);
+		Map<LocalDate, Integer> settledDays = new TreeMap<>();
+		LocalDate firstUnsettledDay = LocalDate.now().minusDays(SETTLE_DAYS);
+		for (LocalDate day = firstMissing; !day.isAfter(lastMissing); day = day.plusDays(1)) {
+			if (!counts.containsKey(day)) {
+				int count = liveCounts.getOrDefault(day, 0);
+				counts.put(day, count);
+				if (day.isBefore(firstUnsettledDay)) {
+					settledDays.put(day, count);
+				}
+			}
+		}
+		storeCounts(indicator, settledDays);
+		
+		return counts;
+	}
+	
+	/**
+	 * Deletes the stored days whose source rows changed since the previous pass, looking back
+	 * {@code CHANGE_WINDOW_MS} further. A day is deleted when the change is later than, or at most a
+	 * day earlier than, the time the day was stored, which allows for the ETL tables to catch up.
+	 */
+	@Transactional
+	public void invalidateChangedDays() {
+		synchronized (invalidationLock) {
+			long now = System.currentTimeMillis();
+			Date since = new Date(Math.max(0, lastInvalidationTime - CHANGE_WINDOW_MS));
+			for (Map.Entry<String, Indicator> indicator : INDICATORS.entrySet()) {
+				String query = "DELETE di FROM openmrs.ssemrws_daily_indicator di " + "JOIN ( "
+				        + indicator.getValue().changedDaysQuery + " ) changed ON changed.day = di.indicator_date "
+				        + "WHERE di.indicator = :indicator "
+				        + "AND di.date_created <= DATE_ADD(changed.last_changed, INTERVAL 1 DAY)";
+				
+				Query nativeQuery = entityManager.createNativeQuery(query).setParameter("indicator", indicator.getKey())
+				        .setParameter("since", since);
+				setParameters(nativeQuery, indicator.getValue().changedDaysQuery, indicator.getValue().parameters);
+				try {
+					nativeQuery.executeUpdate();
+				}
+				catch (Exception e) {
+					System.err.println("Error invalidating daily indicator counts: " + e.getMessage());
+					throw new RuntimeException("Failed to invalidate daily indicator counts", e);
+				}
+			}
+			lastInvalidationTime = now;
+		}
+	}
+	
+	/**
+	 * Drops the stored days of the indicator, or of every indicator when none is given, so that they
+	 * are counted again on their next read.
+	 */
+	@Transactional
+	public void clear(String indicator) {
+		if (indicator != null && !INDICATORS.containsKey(indicator)) {
+			throw new IllegalArgumentException("Unknown indicator: " + indicator);
+		}
+		
+		String query = "DELETE FROM openmrs.ssemrws_daily_indicator"
+		        + (indicator != null ? " WHERE indicator = :indicator" : "");
+		Query nativeQuery = entityManager.createNativeQuery(query);
+		if (indicator != null) {
+			nativeQuery.setParameter("indicator", indicator);
+		}
+		try {
+			nativeQuery.executeUpdate();
+		}
+		catch (Exception e) {
+			System.err.println("Error clearing daily indicator counts: " + e.getMessage());
+			throw new RuntimeException("Failed to clear daily indicator counts", e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<LocalDate, Integer> getStoredCounts(String indicator, LocalDate firstDay, LocalDate lastDay) {
+		String query = "SELECT di.indicator_date, di.value FROM openmrs.ssemrws_daily_indicator di "
+		        + "WHERE di.indicator = :indicator AND di.indicator_date BETWEEN :firstDay AND :lastDay";
+		
+		Query nativeQuery = entityManager.createNativeQuery(query).setParameter("indicator", indicator)
+		        .setParameter("firstDay", java.sql.Date.valueOf(firstDay))
+		        .setParameter("lastDay", java.sql.Date.valueOf(lastDay));
+		return toDailyCounts((List<Object[]>) executeQuery(nativeQuery, "stored " + indicator));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<LocalDate, Integer> countLive(Indicator definition, LocalDate firstDay, LocalDate lastDay) {
+		Query nativeQuery = entityManager.createNativeQuery(definition.query)
+		        .setParameter("startDate", java.sql.Date.valueOf(firstDay))
+		        .setParameter("endDate", java.sql.Date.valueOf(lastDay.plusDays(1)));
+		setParameters(nativeQuery, definition.query, definition.parameters);
+		return toDailyCounts((List<Object[]>) executeQuery(nativeQuery, "daily indicator"));
+	}
+	
+	// Settled days are inserted once; a concurrent request storing the same day is ignored
+	private void storeCounts(String indicator, Map<LocalDate, Integer> settledDays) {
+		List<Map.Entry<LocalDate, Integer>> entries = new ArrayList<>(settledDays.entrySet());
+		for (int start = 0; start < entries.size(); start += INSERT_BATCH_SIZE) {
+			List<Map.Entry<LocalDate, Integer>> batch = entries.subList(start,
+			    Math.min(start + INSERT_BATCH_SIZE, entries.size()));
+			
+			StringBuilder query = new StringBuilder("INSERT IGNORE INTO openmrs.ssemrws_daily_indicator "
+			        + "(indicator, indicator_date, value, date_created) VALUES ");
+			for (int i = 0; i < batch.size(); i++) {
+				query.append(i > 0 ? ", " : "").append("(:indicator, :day").append(i).append(", :value").append(i)
+				        .append(", NOW())");
+			}
+			
+			Query nativeQuery = entityManager.createNativeQuery(query.toString()).setParameter("indicator", indicator);
+			for (int i = 0; i < batch.size(); i++) {
+				nativeQuery.setParameter("day" + i, java.sql.Date.valueOf(batch.get(i).getKey()));
+				nativeQuery.setParameter("value" + i, batch.get(i).getValue());
+			}
+			
+			try {
+				nativeQuery.executeUpdate();
+			}
+			catch (Exception e) {
+				System.err.println("Error storing daily indicator counts: " + e.getMessage());
+				throw new RuntimeException("Failed to store daily indicator counts", e);
+			}
+		}
+	}
+	
+	// The fixed parameters are shared by both queries of an indicator; bind those the query uses
+	private static void setParameters(Query nativeQuery, String query, Map<String, Object> parameters) {
+		for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+			if (query.contains(":" + parameter.getKey())) {
+				nativeQuery.setParameter(parameter.getKey(), parameter.getValue());
+			}
+		}
+	}
+	
+	private static List<?> executeQuery(Query query, String name) {
+		try {
+			return query.getResultList();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing " + name + " query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute " + name + " query", e);
+		}
+	}
+	
+	private static Map<LocalDate, Integer> toDailyCounts(List<Object[]> rows) {
+		Map<LocalDate, Integer> counts = new HashMap<>();
+		for (Object[] row : rows) {
+			if (row[0] != null) {
+				counts.put(toLocalDate((Date) row[0]), ((Number) row[1]).intValue());
+			}
+		}
+		return counts;
+	}
+	
+	private static LocalDate toLocalDate(Date date) {
+		if (date instanceof java.sql.Date) {
+			return ((java.sql.Date) date).toLocalDate();
+		}
+		return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+	}
+}
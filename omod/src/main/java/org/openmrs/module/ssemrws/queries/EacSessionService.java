@@ -1,30 +1,64 @@
 package org.openmrs.module.ssemrws.queries;
 
+import org.openmrs.module.ssemrws.web.dto.EacSessionCountDTO;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import java.time.Month;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 @Component
 public class EacSessionService {
 	
+	// Unpivots the three EAC session dates of each high viral load row in a single
+	// scan of the table, then counts the sessions per calendar month
+	private static final String EAC_SESSION_COUNTS_QUERY = "SELECT YEAR(s.session_date) AS session_year, "
+	        + "MONTH(s.session_date) AS session_month, " + "SUM(s.eac_session = 1) AS eac1, "
+	        + "SUM(s.eac_session = 2) AS eac2, " + "SUM(s.eac_session = 3) AS eac3 " + "FROM ("
+	        + "SELECT n.eac_session, CASE n.eac_session WHEN 1 THEN hvl.adherence_date "
+	        + "WHEN 2 THEN hvl.second_eac_session_date ELSE hvl.third_eac_session_date END AS session_date "
+	        + "FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
+	        + "CROSS JOIN (SELECT 1 AS eac_session UNION ALL SELECT 2 UNION ALL SELECT 3) n "
+	        + "WHERE hvl.adherence_date BETWEEN :startDate AND :endDate "
+	        + "OR hvl.second_eac_session_date BETWEEN :startDate AND :endDate "
+	        + "OR hvl.third_eac_session_date BETWEEN :startDate AND :endDate" + ") s "
+	        + "WHERE s.session_date BETWEEN :startDate AND :endDate " + "GROUP BY session_year, session_month "
+	        + "ORDER BY session_year, session_month";
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public List<Object[]> getEacSessionCountsByDateRange(Date startDate, Date endDate) {
-		String qry = "SELECT 'EAC1' as eac_type, DATE_FORMAT(hvl.adherence_date, '%b') as month, COUNT(hvl.client_id) as count "
-		        + "FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
-		        + "WHERE hvl.adherence_date BETWEEN :startDate AND :endDate " + "GROUP BY month " + "UNION ALL "
-		        + "SELECT 'EAC2' as eac_type, DATE_FORMAT(hvl.second_eac_session_date, '%b') as month, COUNT(hvl.client_id) as count "
-		        + "FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
-		        + "WHERE hvl.second_eac_session_date BETWEEN :startDate AND :endDate " + "GROUP BY month " + "UNION ALL "
-		        + "SELECT 'EAC3' as eac_type, DATE_FORMAT(hvl.third_eac_session_date, '%b') as month, COUNT(hvl.client_id) as count "
-		        + "FROM ssemr_etl.ssemr_flat_encounter_high_viral_load hvl "
-		        + "WHERE hvl.third_eac_session_date BETWEEN :startDate AND :endDate " + "GROUP BY month";
-		
-		return entityManager.createNativeQuery(qry).setParameter("startDate", startDate).setParameter("endDate", endDate)
-		        .getResultList();
+	/**
+	 * Returns the number of EAC 1, 2 and 3 sessions held in each month of the period, one entry per
+	 * year and month so that periods spanning several years keep their months apart.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<EacSessionCountDTO> getEacSessionCountsByDateRange(Date startDate, Date endDate) {
+		try {
+			List<Object[]> results = entityManager.createNativeQuery(EAC_SESSION_COUNTS_QUERY)
+			        .setParameter("startDate", startDate).setParameter("endDate", endDate).getResultList();
+			
+			List<EacSessionCountDTO> counts = new ArrayList<>();
+			for (Object[] row : results) {
+				EacSessionCountDTO count = new EacSessionCountDTO();
+				count.setYear(((Number) row[0]).intValue());
+				count.setMonth(((Number) row[1]).intValue());
+				count.setMonthName(Month.of(count.getMonth()).getDisplayName(TextStyle.SHORT, Locale.ENGLISH));
+				count.setEac1(((Number) row[2]).intValue());
+				count.setEac2(((Number) row[3]).intValue());
+				count.setEac3(((Number) row[4]).intValue());
+				counts.add(count);
+			}
+			return counts;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing EAC session counts query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute EAC session counts query", e);
+		}
 	}
 }
@@ -1,129 +1,303 @@
 package org.openmrs.module.ssemrws.queries;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
-import org.openmrs.Patient;
-import org.openmrs.module.ssemrws.web.constants.FetchPatientsByIdentifier;
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
+import org.openmrs.module.ssemrws.web.dto.PatientListRowDTO;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.Period;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
-import java.util.function.Function;
 
-import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
-import static org.openmrs.module.ssemrws.constants.SharedConstants.getPatientIdentifiersArray;
-import static org.openmrs.module.ssemrws.web.constants.FetchPatientsByIdentifier.fetchPatientsByIds;
+import static org.openmrs.module.ssemrws.constants.SharedConstants.dateTimeFormatter;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
 
 @Component
 public class GetAllPatients {
 	
-	private final GetNextAppointmentDate getNextAppointmentDate;
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	
+	// Preferred, non-voided name, joined the same way as PersonName.getFullName()
+	private static final String NAME_COLUMN = "(SELECT CONCAT_WS(' ', pn.prefix, pn.given_name, pn.middle_name, "
+	        + "    pn.family_name_prefix, pn.family_name, pn.family_name2, pn.family_name_suffix, pn.degree) "
+	        + "    FROM openmrs.person_name pn WHERE pn.person_id = pg.patient_id AND pn.voided = 0 "
+	        + "    ORDER BY pn.preferred DESC, pn.person_name_id ASC LIMIT 1) AS name";
+	
+	private static final String IDENTIFIERS_COLUMN = "(SELECT JSON_ARRAYAGG(JSON_OBJECT('identifier', pi.identifier, "
+	        + "    'identifierType', pit.name)) FROM openmrs.patient_identifier pi "
+	        + "    JOIN openmrs.patient_identifier_type pit ON pit.patient_identifier_type_id = pi.identifier_type "
+	        + "    WHERE pi.patient_id = pg.patient_id AND pi.voided = 0) AS identifiers";
+	
+	private static final long COUNT_CACHE_TTL_MS = 600000;
+	
+	private static volatile CountCacheEntry totalPatientCount;
 	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public GetAllPatients(GetNextAppointmentDate getNextAppointmentDate) {
-		this.getNextAppointmentDate = getNextAppointmentDate;
+	// Inner class to store the patient count and its cache time
+	private static class CountCacheEntry {
+		
+		int count;
+		
+		long cacheTime;
+		
+		CountCacheEntry(int count) {
+			this.count = count;
+			this.cacheTime = System.currentTimeMillis();
+		}
+		
+		boolean isValid() {
+			return (System.currentTimeMillis() - cacheTime) < COUNT_CACHE_TTL_MS;
+		}
 	}
 	
-	public HashSet<Patient> getAllPatients(int page, int size) {
-		List<Integer> patientIds = executeAllPatientsQuery(page, size);
+	/**
+	 * Returns the number of non-voided patients, the denominator of the coverage charts. The count is
+	 * cached for a few minutes instead of loading every patient on each request.
+	 */
+	public int getTotalPatientCount() {
+		CountCacheEntry entry = totalPatientCount;
+		if (entry != null && entry.isValid()) {
+			return entry.count;
+		}
 		
-		return fetchPatientsByIds(patientIds);
+		try {
+			Number count = (Number) entityManager
+			        .createNativeQuery("SELECT COUNT(*) FROM openmrs.patient p WHERE p.voided = 0").getSingleResult();
+			totalPatientCount = new CountCacheEntry(count.intValue());
+			return count.intValue();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing patient count query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute patient count query", e);
+		}
 	}
 	
-	private List<Integer> executeAllPatientsQuery(int page, int size) {
-		String baseQuery = "select distinct p.patient_id from openmrs.patient p where p.voided = 0 order by p.patient_id desc limit :limit offset :offset";
+	/**
+	 * Returns the number of non-voided patients in the filter category, the denominator of the coverage
+	 * and suppression charts. Without a filter this is the cached total patient count.
+	 */
+	public int getPatientCount(SSEMRWebServicesController.filterCategory filterCategory, Date endDate) {
+		if (filterCategory == null) {
+			return getTotalPatientCount();
+		}
+		
+		String query = "SELECT COUNT(*) FROM openmrs.patient p WHERE p.voided = 0"
+		        + FilterUtility.getFilterPredicate(filterCategory, "p.patient_id");
 		try {
-			Query query = entityManager.createNativeQuery(baseQuery).setParameter("limit", size).setParameter("offset",
-			    page * size);
-			
-			return query.getResultList();
+			Query nativeQuery = entityManager.createNativeQuery(query);
+			FilterUtility.setFilterParameters(nativeQuery, filterCategory, endDate);
+			return ((Number) nativeQuery.getSingleResult()).intValue();
 		}
 		catch (Exception e) {
-			System.err.println("Error executing all patients query: " + e.getMessage());
-			throw new RuntimeException("Failed to execute all patients query", e);
+			System.err.println("Error executing patient count query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute patient count query", e);
 		}
 	}
 	
 	/**
-	 * A generic helper method to build a list of patient JSON objects. It abstracts away the looping
-	 * and JSON construction logic.
-	 * 
-	 * @param patients The set of patients to process.
-	 * @param containerNode The ObjectNode to which the results will be added.
-	 * @param patientJsonGenerator A function that takes a Patient and returns an ObjectNode.
-	 * @return The containerNode serialized to a String.
+	 * Builds the page selection shared by the list queries: the filter category, ordering and paging
+	 * are all applied in SQL. When a cursor (the last patient id of the previous page) is given, the
+	 * page is read with a keyset condition instead of an offset, so deep pages cost the same as the
+	 * first.
 	 */
-	private String buildPatientList(List<Patient> patients, ObjectNode containerNode,
-	        Function<Patient, ObjectNode> patientJsonGenerator) {
-		ArrayNode patientList = JsonNodeFactory.instance.arrayNode();
+	private static String getPageQuery(SSEMRWebServicesController.filterCategory filterCategory, Integer cursor) {
+		return "SELECT p.patient_id FROM openmrs.patient p WHERE p.voided = 0 "
+		        + (cursor != null ? "AND p.patient_id < :cursor " : "")
+		        + FilterUtility.getFilterPredicate(filterCategory, "p.patient_id") + " "
+		        + "ORDER BY p.patient_id DESC LIMIT :limit" + (cursor != null ? "" : " OFFSET :offset");
+	}
+	
+	private static void setPageParameters(Query query, SSEMRWebServicesController.filterCategory filterCategory,
+	        Integer cursor, int page, int size) {
+		query.setParameter("limit", size);
+		if (cursor != null) {
+			query.setParameter("cursor", cursor);
+		} else {
+			query.setParameter("offset", page * size);
+		}
+		FilterUtility.setFilterParameters(query, filterCategory, new Date());
+	}
+	
+	/**
+	 * Fetches one page of patients as projection rows carrying the base demographic fields.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PatientListRowDTO> getPatientListPage(SSEMRWebServicesController.filterCategory filterCategory,
+	        Integer cursor, int page, int size) {
+		String baseQuery = "WITH page AS (" + getPageQuery(filterCategory, cursor) + ") "
+		        + "SELECT pg.patient_id, pe.uuid, pe.gender, pe.birthdate, " + NAME_COLUMN + ", " + IDENTIFIERS_COLUMN
+		        + " FROM page pg " + "JOIN openmrs.person pe ON pe.person_id = pg.patient_id "
+		        + "ORDER BY pg.patient_id DESC";
 		
-		for (Patient patient : patients) {
-			ObjectNode patientObj = patientJsonGenerator.apply(patient);
-			patientList.add(patientObj);
+		try {
+			Query query = entityManager.createNativeQuery(baseQuery);
+			setPageParameters(query, filterCategory, cursor, page, size);
+			
+			List<PatientListRowDTO> rows = new ArrayList<>();
+			for (Object[] result : (List<Object[]>) query.getResultList()) {
+				rows.add(mapBaseColumns(result));
+			}
+			return rows;
 		}
+		catch (Exception e) {
+			System.err.println("Error executing patient list query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute patient list query", e);
+		}
+	}
+	
+	/**
+	 * Fetches one page of patients with their ART details (current regimen, enrolment date, last
+	 * refill date and appointment) in a single joined projection, without loading any Patient.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PatientListRowDTO> getAllClientsPage(SSEMRWebServicesController.filterCategory filterCategory,
+	        Integer cursor, int page, int size) {
+		String baseQuery = "WITH page AS (" + getPageQuery(filterCategory, cursor) + "), "
+		        + "latest_obs AS ( "
+		        + "    SELECT o.person_id, c.uuid AS concept_uuid, o.value_coded, o.value_datetime, "
+		        + "    ROW_NUMBER() OVER (PARTITION BY o.person_id, o.concept_id "
+		        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+		        + "    JOIN page pg ON pg.patient_id = o.person_id "
+		        + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id " + "    WHERE o.voided = 0 "
+		        + "    AND c.uuid IN (:regimenConcept, :enrollmentConcept, :refillConcept) "
+		        + "    AND (c.uuid <> :regimenConcept OR o.value_coded IS NOT NULL) " + "), " + "appointments AS ( "
+		        + "    SELECT fp.patient_id, " + GetNextAppointmentDate.APPOINTMENT_SUMMARY_COLUMNS
+		        + "    FROM openmrs.patient_appointment fp " + "    JOIN page pg ON pg.patient_id = fp.patient_id "
+		        + "    GROUP BY fp.patient_id " + ") "
+		        + "SELECT pg.patient_id, pe.uuid, pe.gender, pe.birthdate, " + NAME_COLUMN + ", " + IDENTIFIERS_COLUMN
+		        + ", " + "(SELECT cn.name FROM openmrs.concept_name cn WHERE cn.concept_id = reg.value_coded "
+		        + "    AND cn.voided = 0 AND cn.locale = 'en' "
+		        + "    ORDER BY cn.locale_preferred DESC, cn.concept_name_type = 'FULLY_SPECIFIED' DESC LIMIT 1) AS regimen, "
+		        + "enr.value_datetime AS enrollment_date, ref.value_datetime AS last_refill_date, "
+		        + "ap.next_appointment, ap.last_appointment, ap.last_missed_appointment, ap.has_cancelled_appointment "
+		        + "FROM page pg " + "JOIN openmrs.person pe ON pe.person_id = pg.patient_id "
+		        + "LEFT JOIN latest_obs reg ON reg.person_id = pg.patient_id AND reg.concept_uuid = :regimenConcept AND reg.rn = 1 "
+		        + "LEFT JOIN latest_obs enr ON enr.person_id = pg.patient_id AND enr.concept_uuid = :enrollmentConcept AND enr.rn = 1 "
+		        + "LEFT JOIN latest_obs ref ON ref.person_id = pg.patient_id AND ref.concept_uuid = :refillConcept AND ref.rn = 1 "
+		        + "LEFT JOIN appointments ap ON ap.patient_id = pg.patient_id " + "ORDER BY pg.patient_id DESC";
 		
-		containerNode.put("results", patientList);
-		return containerNode.toString();
+		try {
+			Query query = entityManager.createNativeQuery(baseQuery)
+			        .setParameter("regimenConcept", ACTIVE_REGIMEN_CONCEPT_UUID)
+			        .setParameter("enrollmentConcept", DATE_OF_ENROLLMENT_UUID)
+			        .setParameter("refillConcept", LAST_REFILL_DATE_UUID).setParameter("now", new Date());
+			setPageParameters(query, filterCategory, cursor, page, size);
+			
+			List<PatientListRowDTO> rows = new ArrayList<>();
+			for (Object[] result : (List<Object[]>) query.getResultList()) {
+				PatientListRowDTO row = mapBaseColumns(result);
+				row.setArtRegimen(result[6] != null ? result[6].toString() : "");
+				row.setEnrollmentDate(formatDate(result[7]));
+				row.setLastRefillDate(formatDate(result[8]));
+				row.setAppointmentDate(GetNextAppointmentDate.formatNextOrLastAppointment((Date) result[9],
+				    (Date) result[10], (Date) result[11], (Number) result[12]));
+				rows.add(row);
+			}
+			return rows;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing all clients query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute all clients query", e);
+		}
 	}
 	
-	public String allPatientsListObj(List<Patient> allPatients, ObjectNode allPatientsObj) {
-		return buildPatientList(allPatients, allPatientsObj, this::generateAllPatientObject);
+	private static PatientListRowDTO mapBaseColumns(Object[] result) {
+		PatientListRowDTO row = new PatientListRowDTO();
+		row.setPatientId(((Number) result[0]).intValue());
+		row.setUuid((String) result[1]);
+		row.setSex((String) result[2]);
+		row.setBirthdate((Date) result[3]);
+		row.setName(result[4] != null ? result[4].toString() : "");
+		row.setIdentifiers(result[5] != null ? result[5].toString() : null);
+		return row;
 	}
 	
-	public String filteredPatientsListObj(List<Patient> allPatients, ObjectNode allPatientsObj) {
-		return buildPatientList(allPatients, allPatientsObj, this::generateFilteredPatientObject);
+	private static String formatDate(Object date) {
+		return date != null ? dateTimeFormatter.format((Date) date) : "";
 	}
 	
-	private ObjectNode createBasePatientObject(Patient patient) {
-		ObjectNode patientObj = JsonNodeFactory.instance.objectNode();
-		
-		LocalDate birthDate = patient.getBirthdate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-		int age = Period.between(birthDate, LocalDate.now()).getYears();
-		int patientId = patient.getPatientId();
-		
-		ArrayNode identifiersArray = getPatientIdentifiersArray(patient);
+	/**
+	 * Builds the patient list response from projection rows. The last patient id of a full page is
+	 * returned as {@code nextCursor} for fetching the following page.
+	 */
+	public String patientRowsListObj(List<PatientListRowDTO> rows, int size, ObjectNode allPatientsObj) {
+		ArrayNode patientList = JsonNodeFactory.instance.arrayNode();
 		
-		patientObj.put("name", patient.getPersonName() != null ? patient.getPersonName().toString() : "");
-		patientObj.put("uuid", patient.getUuid());
-		patientObj.put("patientId", patientId);
-		patientObj.put("sex", patient.getGender());
-		patientObj.put("age", age);
-		patientObj.put("identifiers", identifiersArray);
+		for (PatientListRowDTO row : rows) {
+			patientList.add(createPatientRowObject(row));
+		}
 		
-		return patientObj;
+		allPatientsObj.put("results", patientList);
+		if (rows.size() == size) {
+			allPatientsObj.put("nextCursor", rows.get(rows.size() - 1).getPatientId());
+		}
+		return allPatientsObj.toString();
 	}
 	
 	/**
-	 * Generates a complete JSON object for a patient, including all ART details.
+	 * Builds the all clients response, adding the ART details to each row.
 	 */
-	public ObjectNode generateAllPatientObject(Patient patient) {
-		ObjectNode patientObj = createBasePatientObject(patient);
+	public String allClientsListObj(List<PatientListRowDTO> rows, int size, ObjectNode allPatientsObj) {
+		ArrayNode patientList = JsonNodeFactory.instance.arrayNode();
+		
+		for (PatientListRowDTO row : rows) {
+			ObjectNode patientObj = createPatientRowObject(row);
+			patientObj.put("ARTRegimen", row.getArtRegimen());
+			patientObj.put("initiationDate", row.getEnrollmentDate());
+			patientObj.put("dateEnrolled", row.getEnrollmentDate());
+			patientObj.put("lastRefillDate", row.getLastRefillDate());
+			patientObj.put("appointmentDate", row.getAppointmentDate());
+			patientList.add(patientObj);
+		}
 		
-		String enrolmentDate = getEnrolmentDate(patient);
+		allPatientsObj.put("results", patientList);
+		if (rows.size() == size) {
+			allPatientsObj.put("nextCursor", rows.get(rows.size() - 1).getPatientId());
+		}
+		return allPatientsObj.toString();
+	}
+	
+	private ObjectNode createPatientRowObject(PatientListRowDTO row) {
+		ObjectNode patientObj = JsonNodeFactory.instance.objectNode();
 		
-		patientObj.put("ARTRegimen", getARTRegimen(patient));
-		patientObj.put("initiationDate", enrolmentDate);
-		patientObj.put("dateEnrolled", enrolmentDate);
-		patientObj.put("lastRefillDate", getLastRefillDate(patient));
-		patientObj.put("appointmentDate", getNextAppointmentDate.getNextArtAppointmentDate(patient));
+		patientObj.put("name", row.getName());
+		patientObj.put("uuid", row.getUuid());
+		patientObj.put("patientId", row.getPatientId());
+		patientObj.put("sex", row.getSex());
+		if (row.getBirthdate() != null) {
+			LocalDate birthDate = new Date(row.getBirthdate().getTime()).toInstant().atZone(ZoneId.systemDefault())
+			        .toLocalDate();
+			patientObj.put("age", Period.between(birthDate, LocalDate.now()).getYears());
+		} else {
+			patientObj.putNull("age");
+		}
+		patientObj.put("identifiers", parseIdentifiers(row.getIdentifiers()));
 		
 		return patientObj;
 	}
 	
-	/**
-	 * Generates a filtered or summary JSON object for a patient.
-	 */
-	public ObjectNode generateFilteredPatientObject(Patient patient) {
-		return createBasePatientObject(patient);
+	private static ArrayNode parseIdentifiers(String identifiersJson) {
+		if (identifiersJson != null) {
+			try {
+				return (ArrayNode) objectMapper.readTree(identifiersJson);
+			}
+			catch (IOException | ClassCastException e) {
+				System.err.println("Error parsing patient identifiers: " + e.getMessage());
+			}
+		}
+		return JsonNodeFactory.instance.arrayNode();
 	}
 }
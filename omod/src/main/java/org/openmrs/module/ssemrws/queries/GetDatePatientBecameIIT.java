@@ -3,19 +3,19 @@ package org.openmrs.module.ssemrws.queries;
 import org.openmrs.Patient;
 import org.springframework.stereotype.Component;
 
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
 import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 @Component
 public class GetDatePatientBecameIIT {
 	
 	private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("dd-MM-yyyy");
 	
-	@PersistenceContext
-	private EntityManager entityManager;
+	private final AppointmentTimelineIndex appointmentTimelineIndex;
+	
+	public GetDatePatientBecameIIT(AppointmentTimelineIndex appointmentTimelineIndex) {
+		this.appointmentTimelineIndex = appointmentTimelineIndex;
+	}
 	
 	public String getIitDateForPatient(Patient patient, Date startDate, Date endDate) {
 		if (patient == null || patient.getPatientId() == null) {
@@ -26,25 +26,51 @@ public class GetDatePatientBecameIIT {
 			throw new IllegalArgumentException("Start date and end date cannot be null");
 		}
 		
-		// Query to fetch the IIT date for a specific patient within the date range
-		String query = "SELECT DATE_ADD(MAX(fp.start_date_time), INTERVAL 28 DAY) AS followup_date "
-		        + "FROM openmrs.patient_appointment fp " + "WHERE fp.status = 'Missed' "
-		        + "AND DATE_ADD(fp.start_date_time, INTERVAL 28 DAY) <= CURDATE() "
-		        + "AND DATE_ADD(fp.start_date_time, INTERVAL 28 DAY) BETWEEN :startDate AND :endDate "
-		        + "AND fp.patient_id = :patientId " + "AND fp.patient_id NOT IN ( " + "    SELECT DISTINCT fp2.patient_id "
-		        + "    FROM openmrs.patient_appointment fp2 " + "    WHERE fp2.start_date_time > CURDATE() " + ") "
-		        + "GROUP BY fp.patient_id";
+		return getIitDate(patient.getPatientId(), startDate, endDate, getStartOfToday());
+	}
+	
+	/**
+	 * Returns the IIT date of several patients keyed by patient id, with today resolved once for the
+	 * whole page. Patients without an IIT date in the range are mapped to an empty string.
+	 */
+	public Map<Integer, String> getIitDatesForPatients(Collection<Integer> patientIds, Date startDate, Date endDate) {
+		if (startDate == null || endDate == null) {
+			throw new IllegalArgumentException("Start date and end date cannot be null");
+		}
 		
-		// Execute the query with parameters
-		List<Date> results = entityManager.createNativeQuery(query).setParameter("patientId", patient.getPatientId())
-		        .setParameter("startDate", startDate).setParameter("endDate", endDate).getResultList();
+		Date today = getStartOfToday();
+		Map<Integer, String> iitDates = new HashMap<>();
+		for (Integer patientId : patientIds) {
+			iitDates.put(patientId, getIitDate(patientId, startDate, endDate, today));
+		}
+		return iitDates;
+	}
+	
+	private String getIitDate(Integer patientId, Date startDate, Date endDate, Date today) {
+		// Patients with an appointment after today have not interrupted treatment
+		if (appointmentTimelineIndex.hasAppointmentAfter(patientId, today)) {
+			return "";
+		}
 		
-		// Check if a result exists and format the date
-		if (!results.isEmpty() && results.get(0) != null) {
-			return dateFormatter.format(results.get(0));
+		// The IIT date is 28 days after the last missed appointment, if that falls within the range
+		Date missedAppointment = appointmentTimelineIndex.getLastMissedAppointmentForIit(patientId, startDate, endDate,
+		    today);
+		if (missedAppointment == null) {
+			return "";
 		}
 		
-		// Return an empty string if no date is found
-		return "";
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(missedAppointment);
+		calendar.add(Calendar.DAY_OF_MONTH, 28);
+		return dateFormatter.format(calendar.getTime());
+	}
+	
+	private static Date getStartOfToday() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
 	}
 }
@@ -0,0 +1,81 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.*;
+
+/**
+ * Observations of one concept recorded in encounters of one type within a period, read with obs
+ * joined to encounter on the encounter type and date. This replaces loading the period's encounters
+ * and passing them back to {@code ObsService.getObservations}, which turns into an IN-list of every
+ * encounter id.
+ */
+@Component
+public class GetEncounterObs {
+	
+	// Binds :encounterType, :concept, :startDate and :endDate
+	private static final String ENCOUNTER_OBS_QUERY = "FROM openmrs.obs o "
+	        + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id AND e.voided = 0 "
+	        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+	        + "WHERE o.voided = 0 AND et.uuid = :encounterType AND c.uuid = :concept "
+	        + "AND e.encounter_datetime BETWEEN :startDate AND :endDate "
+	        + "AND o.obs_datetime BETWEEN :startDate AND :endDate ";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	// Patients with any observation of the concept
+	public Set<Integer> getPatientIds(String encounterTypeUuid, String conceptUuid, Date startDate, Date endDate) {
+		String query = "SELECT DISTINCT o.person_id " + ENCOUNTER_OBS_QUERY;
+		
+		return executeIdQuery(createQuery(query, encounterTypeUuid, conceptUuid, startDate, endDate));
+	}
+	
+	// Patients with a coded answer of the given concept
+	public Set<Integer> getPatientIdsWithAnswer(String encounterTypeUuid, String conceptUuid, String answerUuid,
+	        Date startDate, Date endDate) {
+		String query = "SELECT DISTINCT o.person_id " + ENCOUNTER_OBS_QUERY
+		        + "AND o.value_coded = (SELECT a.concept_id FROM openmrs.concept a WHERE a.uuid = :answer)";
+		
+		Query nativeQuery = createQuery(query, encounterTypeUuid, conceptUuid, startDate, endDate);
+		nativeQuery.setParameter("answer", answerUuid);
+		return executeIdQuery(nativeQuery);
+	}
+	
+	// Patients with a numeric value at or above the threshold
+	public Set<Integer> getPatientIdsWithValueAtLeast(String encounterTypeUuid, String conceptUuid, double threshold,
+	        Date startDate, Date endDate) {
+		String query = "SELECT DISTINCT o.person_id " + ENCOUNTER_OBS_QUERY + "AND o.value_numeric >= :threshold";
+		
+		Query nativeQuery = createQuery(query, encounterTypeUuid, conceptUuid, startDate, endDate);
+		nativeQuery.setParameter("threshold", threshold);
+		return executeIdQuery(nativeQuery);
+	}
+	
+	private Query createQuery(String query, String encounterTypeUuid, String conceptUuid, Date startDate,
+	        Date endDate) {
+		return entityManager.createNativeQuery(query).setParameter("encounterType", encounterTypeUuid)
+		        .setParameter("concept", conceptUuid).setParameter("startDate", startDate)
+		        .setParameter("endDate", endDate);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Set<Integer> executeIdQuery(Query query) {
+		try {
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : (List<Object>) query.getResultList()) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing encounter obs query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute encounter obs query", e);
+		}
+	}
+}
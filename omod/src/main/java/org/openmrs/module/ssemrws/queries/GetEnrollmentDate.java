@@ -5,12 +5,16 @@ import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.DATE_OF_ART_INITIATION_CONCEPT_UUID;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.DATE_OF_ENROLLMENT_UUID;
 
 @Component
 public class GetEnrollmentDate {
 	
+	private static final int PATIENT_ID_BATCH_SIZE = 1000;
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
@@ -34,4 +38,100 @@ public class GetEnrollmentDate {
 		// Return the ART start date if found, otherwise return an empty string
 		return results.isEmpty() ? "" : results.get(0);
 	}
+	
+	/**
+	 * Same ART start date as {@link #getARTStartDate(Patient, Date)} for many patients, read in
+	 * batches of patient ids. Patients without an ART start date are left out of the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Date> getARTStartDates(Collection<Integer> patientIds, Date endDate) {
+		String qry = "SELECT x.client_id, x.art_start_date FROM ( "
+		        + "    SELECT tx.client_id, DATE(tx.art_start_date) AS art_start_date, "
+		        + "    ROW_NUMBER() OVER (PARTITION BY tx.client_id ORDER BY tx.encounter_datetime DESC) AS rn "
+		        + "    FROM ssemr_etl.ssemr_flat_encounter_personal_family_tx_history tx "
+		        + "    WHERE tx.client_id IN (:patientIds) AND DATE(tx.encounter_datetime) <= DATE(:endDate) "
+		        + "    AND tx.art_start_date IS NOT NULL " + ") x " + "WHERE x.rn = 1";
+		
+		Map<Integer, Date> artStartDates = new HashMap<>();
+		List<Integer> ids = new ArrayList<>(patientIds);
+		for (int i = 0; i < ids.size(); i += PATIENT_ID_BATCH_SIZE) {
+			List<Integer> batchIds = ids.subList(i, Math.min(i + PATIENT_ID_BATCH_SIZE, ids.size()));
+			try {
+				List<Object[]> rows = entityManager.createNativeQuery(qry).setParameter("patientIds", batchIds)
+				        .setParameter("endDate", endDate).getResultList();
+				for (Object[] row : rows) {
+					artStartDates.put(((Number) row[0]).intValue(), new Date(((Date) row[1]).getTime()));
+				}
+			}
+			catch (Exception e) {
+				System.err.println("Error executing ART start date query: " + e.getMessage());
+				throw new RuntimeException("Failed to execute ART start date query", e);
+			}
+		}
+		return artStartDates;
+	}
+	
+	/**
+	 * The latest date of ART initiation observation of each patient, as returned per patient by
+	 * {@code SharedConstants.getInitiationDate}, read in batches of patient ids.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Date> getInitiationDates(Collection<Integer> patientIds) {
+		String qry = "SELECT x.person_id, x.value_datetime FROM ( "
+		        + "    SELECT o.person_id, o.value_datetime, ROW_NUMBER() OVER (PARTITION BY o.person_id "
+		        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+		        + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "    WHERE o.voided = 0 AND c.uuid = :concept AND o.person_id IN (:patientIds) " + ") x "
+		        + "WHERE x.rn = 1 AND x.value_datetime IS NOT NULL";
+		
+		Map<Integer, Date> initiationDates = new HashMap<>();
+		List<Integer> ids = new ArrayList<>(patientIds);
+		for (int i = 0; i < ids.size(); i += PATIENT_ID_BATCH_SIZE) {
+			List<Integer> batchIds = ids.subList(i, Math.min(i + PATIENT_ID_BATCH_SIZE, ids.size()));
+			try {
+				List<Object[]> rows = entityManager.createNativeQuery(qry)
+				        .setParameter("concept", DATE_OF_ART_INITIATION_CONCEPT_UUID).setParameter("patientIds", batchIds)
+				        .getResultList();
+				for (Object[] row : rows) {
+					initiationDates.put(((Number) row[0]).intValue(), new Date(((Date) row[1]).getTime()));
+				}
+			}
+			catch (Exception e) {
+				System.err.println("Error executing ART initiation date query: " + e.getMessage());
+				throw new RuntimeException("Failed to execute ART initiation date query", e);
+			}
+		}
+		return initiationDates;
+	}
+	
+	/**
+	 * Ids of the patients whose enrolment date falls within the period, using the enrolment date of
+	 * the TX_NEW list in {@code GetTxNew}: the value of the patient's first non-voided enrolment date
+	 * obs in the order the ObsService lists them, newest obs date first. Reads ids only, instead of
+	 * loading every enrolment obs.
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<Integer> getNewlyEnrolledPatientIds(Date startDate, Date endDate) {
+		String qry = "SELECT x.person_id FROM ( "
+		        + "    SELECT o.person_id, o.value_datetime, ROW_NUMBER() OVER (PARTITION BY o.person_id "
+		        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+		        + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "    JOIN openmrs.patient pa ON pa.patient_id = o.person_id "
+		        + "    WHERE o.voided = 0 AND c.uuid = :concept AND o.value_datetime IS NOT NULL " + ") x "
+		        + "WHERE x.rn = 1 AND x.value_datetime >= :startDate AND x.value_datetime <= :endDate";
+		
+		try {
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : (List<Object>) entityManager.createNativeQuery(qry)
+			        .setParameter("concept", DATE_OF_ENROLLMENT_UUID).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate).getResultList()) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing newly enrolled patients query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute newly enrolled patients query", e);
+		}
+	}
 }
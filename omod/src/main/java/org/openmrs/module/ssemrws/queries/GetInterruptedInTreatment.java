@@ -1,10 +1,13 @@
 package org.openmrs.module.ssemrws.queries;
 
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -14,43 +17,62 @@ import static org.openmrs.module.ssemrws.web.constants.FetchPatientsByIdentifier
 @Component
 public class GetInterruptedInTreatment {
 	
+	// Days after a missed appointment until the client is interrupted in treatment
+	public static final int IIT_DAYS = 28;
+	
+	/**
+	 * Holds when the latest appointment {@code p} was missed more than {@link #IIT_DAYS} days before
+	 * today, and the end of follow-up row {@code f} (from a LEFT JOIN) records no refusal, death or
+	 * transfer out.
+	 */
+	public static final String IIT_CONDITION = "p.status = 'Missed' "
+	        + "AND DATEDIFF(CURDATE(), p.start_date_time) > " + IIT_DAYS + " "
+	        + "AND (f.client_refused_treatment IS NULL OR f.client_refused_treatment != 'Yes') "
+	        + "AND NOT ((f.death = 'Yes' AND f.date_of_death IS NOT NULL) "
+	        + "OR (f.transfer_out = 'Yes' AND f.transfer_out_date IS NOT NULL)) ";
+	
 	private final GetNextAppointmentDate getNextAppointmentDateByUuid;
 	
+	private final FilterUtility filterUtility;
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public GetInterruptedInTreatment(GetNextAppointmentDate getNextAppointmentDateByUuid) {
+	public GetInterruptedInTreatment(GetNextAppointmentDate getNextAppointmentDateByUuid, FilterUtility filterUtility) {
 		this.getNextAppointmentDateByUuid = getNextAppointmentDateByUuid;
+		this.filterUtility = filterUtility;
 	}
 	
 	public HashSet<Patient> getIit(Date startDate, Date endDate) {
-		String query = "SELECT t.patient_id FROM ( "
+		return getIit(startDate, endDate, null);
+	}
+	
+	public HashSet<Patient> getIit(Date startDate, Date endDate, SSEMRWebServicesController.filterCategory filterCategory) {
+		// Fetch patients by their IDs
+		return fetchPatientsByIds(getIitIds(startDate, endDate, filterCategory));
+	}
+	
+	// IIT patient ids, for callers that do not need the Patient objects
+	public List<Integer> getIitIds(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
+		String query = "SELECT DISTINCT t.patient_id FROM ( "
 		        + "SELECT p.patient_id, p.status, p.start_date_time, DATEDIFF(CURDATE(), p.start_date_time) AS date_diff "
-		        + "FROM openmrs.patient_appointment p " + "JOIN ( "
-		        + "    SELECT patient_id, MAX(start_date_time) AS max_start_date_time "
-		        + "    FROM openmrs.patient_appointment " + "    GROUP BY patient_id "
-		        + ") AS latest_appt ON p.patient_id = latest_appt.patient_id "
-		        + "AND p.start_date_time = latest_appt.max_start_date_time "
+		        + "FROM openmrs.ssemrws_latest_appointment p "
 		        + "LEFT JOIN ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up e ON e.client_id = p.patient_id "
 		        + "LEFT JOIN ssemr_etl.ssemr_flat_encounter_end_of_follow_up f ON f.client_id = p.patient_id "
-		        + "WHERE p.status = 'Missed' " + "AND DATE(e.encounter_datetime) <= DATE(:endDate) "
-		        + "AND DATEDIFF(CURDATE(), p.start_date_time) > 28 "
-		        + "AND (f.client_refused_treatment IS NULL OR f.client_refused_treatment != 'Yes') "
-		        + "AND NOT ((f.death = 'Yes' AND f.date_of_death IS NOT NULL) OR (f.transfer_out = 'Yes' AND f.transfer_out_date IS NOT NULL)) "
+		        + "WHERE " + IIT_CONDITION + "AND DATE(e.encounter_datetime) <= DATE(:endDate) "
 		        + "ORDER BY p.patient_id ASC " + ") AS t;";
 		
 		// Execute the query
 		List<Integer> iitIds = entityManager.createNativeQuery(query).setParameter("endDate", endDate).getResultList();
 		
-		// Fetch patients by their IDs
-		HashSet<Patient> patients = fetchPatientsByIds(iitIds);
+		// Apply the filter category before loading any patients
+		iitIds = filterUtility.filterPatientIds(iitIds, filterCategory, endDate);
 		
 		// Filter out patients with upcoming appointments
-		patients.removeIf(patient -> {
-			String nextAppointmentDate = getNextAppointmentDateByUuid.getNextAppointmentDateByUuid(patient.getUuid());
-			return !nextAppointmentDate.equals("No Upcoming Appointments");
-		});
+		List<Integer> patientIds = new ArrayList<>(iitIds);
+		patientIds.removeIf(getNextAppointmentDateByUuid::hasUpcomingAppointment);
 		
-		return patients;
+		return patientIds;
 	}
 }
@@ -1,6 +1,8 @@
 package org.openmrs.module.ssemrws.queries;
 
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
@@ -16,20 +18,26 @@ public class GetInterruptedInTreatmentWithinRange {
 	
 	private final GetNextAppointmentDate getNextAppointmentDateByUuid;
 	
+	private final FilterUtility filterUtility;
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public GetInterruptedInTreatmentWithinRange(GetNextAppointmentDate getNextAppointmentDateByUuid) {
+	public GetInterruptedInTreatmentWithinRange(GetNextAppointmentDate getNextAppointmentDateByUuid,
+	    FilterUtility filterUtility) {
 		this.getNextAppointmentDateByUuid = getNextAppointmentDateByUuid;
+		this.filterUtility = filterUtility;
 	}
 	
 	public HashSet<Patient> getIitWithinRange(Date startDate, Date endDate) {
-		String query = "SELECT t.patient_id FROM ( " + "SELECT p.patient_id, p.status, p.start_date_time, "
-		        + "DATE_ADD(p.start_date_time, INTERVAL 28 DAY) AS iit_date " + "FROM openmrs.patient_appointment p "
-		        + "JOIN ( " + "    SELECT patient_id, MAX(start_date_time) AS max_start_date_time "
-		        + "    FROM openmrs.patient_appointment " + "    GROUP BY patient_id "
-		        + ") AS latest_appt ON p.patient_id = latest_appt.patient_id "
-		        + "AND p.start_date_time = latest_appt.max_start_date_time "
+		return getIitWithinRange(startDate, endDate, null);
+	}
+	
+	public HashSet<Patient> getIitWithinRange(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
+		String query = "SELECT DISTINCT t.patient_id FROM ( " + "SELECT p.patient_id, p.status, p.start_date_time, "
+		        + "DATE_ADD(p.start_date_time, INTERVAL 28 DAY) AS iit_date "
+		        + "FROM openmrs.ssemrws_latest_appointment p "
 		        + "LEFT JOIN ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up e ON e.client_id = p.patient_id "
 		        + "LEFT JOIN ssemr_etl.ssemr_flat_encounter_end_of_follow_up f ON f.client_id = p.patient_id "
 		        + "WHERE p.status = 'Missed' "
@@ -43,14 +51,14 @@ public class GetInterruptedInTreatmentWithinRange {
 		List<Integer> iitIds = entityManager.createNativeQuery(query).setParameter("startDate", startDate)
 		        .setParameter("endDate", endDate).getResultList();
 		
+		// Apply the filter category before loading any patients
+		iitIds = filterUtility.filterPatientIds(iitIds, filterCategory, endDate);
+		
 		// Fetch patients by their IDs
 		HashSet<Patient> patients = fetchPatientsByIds(iitIds);
 		
 		// Filter out patients with upcoming appointments
-		patients.removeIf(patient -> {
-			String nextAppointmentDate = getNextAppointmentDateByUuid.getNextAppointmentDateByUuid(patient.getUuid());
-			return !nextAppointmentDate.equals("No Upcoming Appointments");
-		});
+		patients.removeIf(patient -> getNextAppointmentDateByUuid.hasUpcomingAppointment(patient.getPatientId()));
 		
 		return patients;
 	}
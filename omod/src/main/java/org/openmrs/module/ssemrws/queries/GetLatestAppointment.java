@@ -0,0 +1,106 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Date;
+
+/**
+ * Maintains the module-owned {@code ssemrws_latest_appointment} table, which holds one row per
+ * patient with their latest appointment. IIT and due for VL queries join it on the patient id instead
+ * of aggregating {@code openmrs.patient_appointment} on every request. When two appointments share
+ * the latest start time, the one created last is kept. The table is written only by
+ * {@link #refresh()}, which the latest appointment task runs every minute, so reads stay read-only.
+ */
+@Component
+public class GetLatestAppointment {
+	
+	// How often changed appointments are picked up
+	private static final long REFRESH_INTERVAL_MS = 300000;
+	
+	// How often every patient is recomputed, so that deleted appointments are dropped
+	private static final long FULL_REFRESH_INTERVAL_MS = 86400000;
+	
+	private static final Object refreshLock = new Object();
+	
+	private static volatile long lastRefreshTime;
+	
+	private static volatile long lastFullRefreshTime;
+	
+	private static volatile boolean refreshRequested;
+	
+	/**
+	 * Recomputes the latest appointment of every patient with an appointment created or changed since
+	 * {@code :since}, or of every patient when {@code :fullRefresh} is 1.
+	 */
+	private static final String REFRESH_QUERY = "INSERT INTO openmrs.ssemrws_latest_appointment (patient_id, "
+	        + "patient_appointment_id, start_date_time, status, date_refreshed) " + "SELECT * FROM ( "
+	        + "SELECT ranked.patient_id, ranked.patient_appointment_id, ranked.start_date_time, ranked.status, "
+	        + "NOW() AS date_refreshed " + "FROM ( "
+	        + "    SELECT pa.patient_id, pa.patient_appointment_id, pa.start_date_time, pa.status, "
+	        + "    ROW_NUMBER() OVER (PARTITION BY pa.patient_id "
+	        + "        ORDER BY pa.start_date_time DESC, pa.patient_appointment_id DESC) AS rn "
+	        + "    FROM openmrs.patient_appointment pa " + "    WHERE :fullRefresh = 1 OR pa.patient_id IN ( "
+	        + "        SELECT c.patient_id FROM openmrs.patient_appointment c "
+	        + "        WHERE COALESCE(c.date_changed, c.date_created) >= :since " + "    ) " + ") ranked "
+	        + "WHERE ranked.rn = 1 " + ") AS new "
+	        + "ON DUPLICATE KEY UPDATE patient_appointment_id = new.patient_appointment_id, "
+	        + "start_date_time = new.start_date_time, status = new.status, date_refreshed = new.date_refreshed";
+	
+	private static final String DELETE_REMOVED_QUERY = "DELETE la FROM openmrs.ssemrws_latest_appointment la "
+	        + "LEFT JOIN openmrs.patient_appointment pa ON pa.patient_appointment_id = la.patient_appointment_id "
+	        + "WHERE pa.patient_appointment_id IS NULL";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Makes the next {@link #refresh()} pick up changes even within the refresh interval. Called after
+	 * appointment saves commit.
+	 */
+	public static void requestRefresh() {
+		refreshRequested = true;
+	}
+	
+	/**
+	 * Brings the latest appointment table up to date. Calls within the refresh interval of the
+	 * previous refresh return immediately unless a refresh was requested, so the task can run more
+	 * often than the interval and still pick up appointment saves within a minute.
+	 */
+	@Transactional
+	public void refresh() {
+		if (!refreshRequested && System.currentTimeMillis() - lastRefreshTime < REFRESH_INTERVAL_MS) {
+			return;
+		}
+		
+		synchronized (refreshLock) {
+			long now = System.currentTimeMillis();
+			if (!refreshRequested && now - lastRefreshTime < REFRESH_INTERVAL_MS) {
+				return;
+			}
+			refreshRequested = false;
+			
+			boolean fullRefresh = now - lastFullRefreshTime >= FULL_REFRESH_INTERVAL_MS;
+			// Changes are picked up from a minute before the previous refresh, to allow for clock skew
+			Date since = new Date(Math.max(0, lastRefreshTime - 60000));
+			try {
+				if (fullRefresh) {
+					entityManager.createNativeQuery(DELETE_REMOVED_QUERY).executeUpdate();
+				}
+				entityManager.createNativeQuery(REFRESH_QUERY).setParameter("fullRefresh", fullRefresh ? 1 : 0)
+				        .setParameter("since", since).executeUpdate();
+			}
+			catch (Exception e) {
+				System.err.println("Error refreshing latest appointments: " + e.getMessage());
+				throw new RuntimeException("Failed to refresh latest appointments", e);
+			}
+			
+			lastRefreshTime = now;
+			if (fullRefresh) {
+				lastFullRefreshTime = now;
+			}
+		}
+	}
+}
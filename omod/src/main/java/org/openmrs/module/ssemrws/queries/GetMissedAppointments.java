@@ -1,6 +1,8 @@
 package org.openmrs.module.ssemrws.queries;
 
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
@@ -17,14 +19,22 @@ public class GetMissedAppointments {
 	
 	private final GetNextAppointmentDate getNextAppointmentDate;
 	
+	private final FilterUtility filterUtility;
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public GetMissedAppointments(GetNextAppointmentDate getNextAppointmentDate) {
+	public GetMissedAppointments(GetNextAppointmentDate getNextAppointmentDate, FilterUtility filterUtility) {
 		this.getNextAppointmentDate = getNextAppointmentDate;
+		this.filterUtility = filterUtility;
 	}
 	
 	public HashSet<Patient> getMissedAppointment(Date startDate, Date endDate) {
+		return getMissedAppointment(startDate, endDate, null);
+	}
+	
+	public HashSet<Patient> getMissedAppointment(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
 		// Calculate the cutoff date for 28 days ago from today
 		Calendar calendar = Calendar.getInstance();
 		calendar.add(Calendar.DAY_OF_YEAR, -28);
@@ -43,14 +53,14 @@ public class GetMissedAppointments {
 		List<Integer> missedAppointmentIds = entityManager.createNativeQuery(query).setParameter("cutoffDate", cutoffDate)
 		        .setParameter("startDate", startDate).setParameter("endDate", endDate).getResultList();
 		
+		// Apply the filter category before loading any patients
+		missedAppointmentIds = filterUtility.filterPatientIds(missedAppointmentIds, filterCategory, endDate);
+		
 		// Fetch patients by their IDs
 		HashSet<Patient> patients = fetchPatientsByIds(missedAppointmentIds);
 		
 		// Filter out patients with upcoming appointments
-		patients.removeIf(patient -> {
-			String nextAppointmentDate = getNextAppointmentDate.getNextAppointmentDateByUuid(patient.getUuid());
-			return !nextAppointmentDate.equals("No Upcoming Appointments");
-		});
+		patients.removeIf(patient -> getNextAppointmentDate.hasUpcomingAppointment(patient.getPatientId()));
 		
 		return patients;
 	}
@@ -1,113 +1,97 @@
 package org.openmrs.module.ssemrws.queries;
 
 import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
 import org.springframework.stereotype.Component;
 
-import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.dateTimeFormatter;
 
 @Component
 public class GetNextAppointmentDate {
 	
-	@PersistenceContext
-	private EntityManager entityManager;
+	/**
+	 * Per-patient appointment summary columns for a query over {@code openmrs.patient_appointment fp}
+	 * grouped by patient. Binds {@code :now}; format the result with
+	 * {@link #formatNextOrLastAppointment(Date, Date, Date, Number)}.
+	 */
+	public static final String APPOINTMENT_SUMMARY_COLUMNS = "MIN(CASE WHEN fp.start_date_time >= :now AND fp.status <> 'Cancelled' THEN fp.start_date_time END) AS next_appointment, "
+	        + "MAX(CASE WHEN fp.start_date_time < :now AND fp.status NOT IN ('Missed', 'Cancelled') THEN fp.start_date_time END) AS last_appointment, "
+	        + "MAX(CASE WHEN fp.start_date_time < :now AND fp.status = 'Missed' THEN fp.start_date_time END) AS last_missed_appointment, "
+	        + "MAX(CASE WHEN fp.status = 'Cancelled' THEN 1 ELSE 0 END) AS has_cancelled_appointment ";
 	
-	public String getNextAppointmentDate(String patientUuid) {
-		return getNextOrLastAppointmentDateByUuid(patientUuid);
-	}
+	private static final String NO_APPOINTMENTS_FOUND = "No Appointments Found";
 	
-	public String getNextArtAppointmentDate(Patient patient) {
-		return getNextOrLastAppointmentDateByUuid(patient.getUuid());
+	private final AppointmentTimelineIndex appointmentTimelineIndex;
+	
+	public GetNextAppointmentDate(AppointmentTimelineIndex appointmentTimelineIndex) {
+		this.appointmentTimelineIndex = appointmentTimelineIndex;
 	}
 	
-	private String getNextOrLastAppointmentDateByUuid(String patientUuid) {
-		if (patientUuid == null || patientUuid.trim().isEmpty()) {
-			return "Invalid patient UUID";
+	/**
+	 * Formats an appointment summary the same way as {@link #getNextAppointmentDate(String)}: the next
+	 * upcoming appointment, else the last attended one, else the last missed one, else whether any
+	 * appointment was cancelled.
+	 */
+	public static String formatNextOrLastAppointment(Date nextAppointment, Date lastAppointment,
+	        Date lastMissedAppointment, Number hasCancelledAppointment) {
+		if (nextAppointment != null) {
+			return dateTimeFormatter.format(nextAppointment);
 		}
-		
-		if (entityManager == null) {
-			throw new IllegalStateException("EntityManager is not initialized!");
+		if (lastAppointment != null) {
+			return dateTimeFormatter.format(lastAppointment);
 		}
-		
-		Date now = new Date();
-		
-		// Query for the next upcoming appointment
-		String futureQuery = "select fp.start_date_time " + "from openmrs.patient_appointment fp "
-		        + "join openmrs.person p on fp.patient_id = p.person_id " + "where p.uuid = :patientUuid "
-		        + "and fp.start_date_time >= :now " + "and fp.status <> 'Cancelled' " + "order by fp.start_date_time asc";
-		
-		List<Date> futureResults = entityManager.createNativeQuery(futureQuery).setParameter("patientUuid", patientUuid)
-		        .setParameter("now", now).getResultList();
-		
-		if (futureResults != null && !futureResults.isEmpty()) {
-			return dateTimeFormatter.format(futureResults.get(0));
+		if (lastMissedAppointment != null) {
+			return "Appointment Missed: " + dateTimeFormatter.format(lastMissedAppointment);
 		}
-		
-		// If no upcoming appointments, query for the most recent past appointment
-		String pastAppointmentQuery = "select fp.start_date_time " + "from openmrs.patient_appointment fp "
-		        + "join openmrs.person p on fp.patient_id = p.person_id " + "where p.uuid = :patientUuid "
-		        + "and fp.start_date_time < :now " + "and fp.status NOT IN ('Missed', 'Cancelled') "
-		        + "order by fp.start_date_time desc";
-		
-		List<Date> pastResults = entityManager.createNativeQuery(pastAppointmentQuery)
-		        .setParameter("patientUuid", patientUuid).setParameter("now", now).getResultList();
-		
-		if (pastResults != null && !pastResults.isEmpty()) {
-			return dateTimeFormatter.format(pastResults.get(0));
-		}
-		
-		// Query for missed appointments
-		String missedAppointmentQuery = "select fp.start_date_time " + "from openmrs.patient_appointment fp "
-		        + "join openmrs.person p on fp.patient_id = p.person_id " + "where p.uuid = :patientUuid "
-		        + "and fp.start_date_time < :now " + "and fp.status = 'Missed' " + "order by fp.start_date_time desc";
-		
-		List<Date> missedResults = entityManager.createNativeQuery(missedAppointmentQuery)
-		        .setParameter("patientUuid", patientUuid).setParameter("now", now).getResultList();
-		
-		if (missedResults != null && !missedResults.isEmpty()) {
-			return "Appointment Missed: " + dateTimeFormatter.format(missedResults.get(0));
-		}
-       // Query for cancelled appointments
-		String cancelledAppointmentQuery = "select fp.start_date_time " + "from openmrs.patient_appointment fp "
-		        + "join openmrs.person p on fp.patient_id = p.person_id " + "where p.uuid = :patientUuid "
-		        + "and fp.status = 'Cancelled' " + "order by fp.start_date_time desc";
-		
-		List<Date> cancelledResults = entityManager.createNativeQuery(cancelledAppointmentQuery)
-		        .setParameter("patientUuid", patientUuid).getResultList();
-		
-		if (cancelledResults != null && !cancelledResults.isEmpty()) {
+		if (hasCancelledAppointment != null && hasCancelledAppointment.intValue() == 1) {
 			return "Appointment was cancelled";
 		}
-		
-		return "No Appointments Found";
+		return NO_APPOINTMENTS_FOUND;
 	}
 	
-	public String getNextAppointmentDateByUuid(String patientUuid) {
+	public String getNextAppointmentDate(String patientUuid) {
 		if (patientUuid == null || patientUuid.trim().isEmpty()) {
 			return "Invalid patient UUID";
 		}
 		
-		if (entityManager == null) {
-			throw new IllegalStateException("EntityManager is not initialized!");
+		Patient patient = Context.getPatientService().getPatientByUuid(patientUuid);
+		return patient != null ? getNextOrLastAppointmentDate(patient.getPatientId()) : NO_APPOINTMENTS_FOUND;
+	}
+	
+	public String getNextArtAppointmentDate(Patient patient) {
+		return getNextOrLastAppointmentDate(patient.getPatientId());
+	}
+	
+	/**
+	 * Returns the next or last appointment of several patients, keyed by patient id and formatted like
+	 * {@link #getNextAppointmentDate(String)}.
+	 */
+	public Map<Integer, String> getNextOrLastAppointmentDates(Collection<Integer> patientIds) {
+		Map<Integer, String> appointmentDates = new HashMap<>();
+		if (patientIds == null) {
+			return appointmentDates;
+		}
+		for (Integer patientId : patientIds) {
+			appointmentDates.put(patientId, getNextOrLastAppointmentDate(patientId));
 		}
 		
+		return appointmentDates;
+	}
+	
+	// Whether the patient has an appointment of any status from now on
+	public boolean hasUpcomingAppointment(Integer patientId) {
+		return appointmentTimelineIndex.getNextAppointment(patientId, new Date(), true) != null;
+	}
+	
+	// All four candidates are read from the patient's appointment timeline
+	private String getNextOrLastAppointmentDate(Integer patientId) {
 		Date now = new Date();
 		
-		String query = "select fp.start_date_time " + "from openmrs.patient_appointment fp "
-		        + "join openmrs.person p on fp.patient_id = p.person_id " + "where p.uuid = :patientUuid "
-		        + "and fp.start_date_time >= :now " + "order by fp.start_date_time asc";
-		
-		List<Date> results = entityManager.createNativeQuery(query).setParameter("patientUuid", patientUuid)
-		        .setParameter("now", now).getResultList();
-		
-		if (results != null && !results.isEmpty()) {
-			return dateTimeFormatter.format(results.get(0));
-		} else {
-			return "No Upcoming Appointments";
-		}
+		return formatNextOrLastAppointment(appointmentTimelineIndex.getNextAppointment(patientId, now, false),
+		    appointmentTimelineIndex.getLastKeptAppointment(patientId, now),
+		    appointmentTimelineIndex.getLastAppointmentWithStatus(patientId, now, AppointmentTimelineIndex.MISSED),
+		    appointmentTimelineIndex.hasAppointmentWithStatus(patientId, AppointmentTimelineIndex.CANCELLED) ? 1 : 0);
 	}
 }
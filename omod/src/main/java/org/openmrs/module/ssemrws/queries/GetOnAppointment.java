@@ -1,6 +1,8 @@
 package org.openmrs.module.ssemrws.queries;
 
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
@@ -17,13 +19,24 @@ import static org.openmrs.module.ssemrws.web.constants.FetchPatientsByIdentifier
 @Component
 public class GetOnAppointment {
 	
+	private final FilterUtility filterUtility;
+	
 	@PersistenceContext
 	private EntityManager entityManager;
 	
+	public GetOnAppointment(FilterUtility filterUtility) {
+		this.filterUtility = filterUtility;
+	}
+	
 	public HashSet<Patient> getOnAppoinment(Date startDate, Date endDate) {
+		return getOnAppoinment(startDate, endDate, null);
+	}
+	
+	public HashSet<Patient> getOnAppoinment(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
 		// Execute the query
 		List<Integer> patientIds = (List<Integer>) executePatientQuery(startDate, endDate, false);
-		return fetchPatientsByIds(patientIds);
+		return fetchPatientsByIds(filterUtility.filterPatientIds(patientIds, filterCategory, endDate));
 	}
 	
 	private Object executePatientQuery(Date startDate, Date endDate, boolean isCountQuery) {
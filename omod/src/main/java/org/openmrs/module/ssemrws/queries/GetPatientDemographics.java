@@ -0,0 +1,138 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.openmrs.PersonAttributeType;
+import org.openmrs.module.ssemrws.web.dto.PatientDemographicsDTO;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.constants.MetadataCache.getCachedIdentifierTypeName;
+import static org.openmrs.module.ssemrws.constants.MetadataCache.getCachedPersonAttributeType;
+
+/**
+ * Prefetches the names, identifiers, addresses and phone attributes of a page of patients with one
+ * IN-query per collection, instead of lazy-loading each collection per patient.
+ */
+@Component
+public class GetPatientDemographics {
+	
+	public static final String CONTACT_ATTRIBUTE = "Client Telephone Number";
+	
+	public static final String ALTERNATE_CONTACT_ATTRIBUTE = "AltTelephoneNo";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public Map<Integer, PatientDemographicsDTO> getDemographics(Collection<Integer> patientIds) {
+		Map<Integer, PatientDemographicsDTO> demographics = new HashMap<>();
+		if (patientIds == null || patientIds.isEmpty()) {
+			return demographics;
+		}
+		for (Integer patientId : patientIds) {
+			demographics.put(patientId, new PatientDemographicsDTO());
+		}
+		
+		try {
+			loadNames(patientIds, demographics);
+			loadIdentifiers(patientIds, demographics);
+			loadAddresses(patientIds, demographics);
+			loadAttributes(patientIds, demographics);
+		}
+		catch (Exception e) {
+			System.err.println("Error executing patient demographics query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute patient demographics query", e);
+		}
+		
+		return demographics;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void loadNames(Collection<Integer> patientIds, Map<Integer, PatientDemographicsDTO> demographics) {
+		String query = "SELECT pn.person_id, CONCAT_WS(' ', pn.prefix, pn.given_name, pn.middle_name, "
+		        + "pn.family_name_prefix, pn.family_name, pn.family_name2, pn.family_name_suffix, pn.degree) "
+		        + "FROM openmrs.person_name pn WHERE pn.person_id IN (:patientIds) AND pn.voided = 0 "
+		        + "ORDER BY pn.person_id, pn.preferred DESC, pn.person_name_id ASC";
+		
+		Set<Integer> named = new HashSet<>();
+		List<Object[]> rows = entityManager.createNativeQuery(query).setParameter("patientIds", patientIds)
+		        .getResultList();
+		for (Object[] row : rows) {
+			Integer patientId = ((Number) row[0]).intValue();
+			// The first row per patient is the preferred name
+			if (named.add(patientId) && row[1] != null) {
+				demographics.get(patientId).setName(row[1].toString());
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void loadIdentifiers(Collection<Integer> patientIds, Map<Integer, PatientDemographicsDTO> demographics) {
+		String query = "SELECT pi.patient_id, pi.identifier, pi.identifier_type FROM openmrs.patient_identifier pi "
+		        + "WHERE pi.patient_id IN (:patientIds) AND pi.voided = 0 "
+		        + "ORDER BY pi.patient_id, pi.preferred DESC, pi.patient_identifier_id ASC";
+		
+		List<Object[]> rows = entityManager.createNativeQuery(query).setParameter("patientIds", patientIds)
+		        .getResultList();
+		for (Object[] row : rows) {
+			Map<String, String> identifierObj = new HashMap<>();
+			identifierObj.put("identifier", row[1] != null ? row[1].toString() : "");
+			identifierObj.put("identifierType", getCachedIdentifierTypeName(((Number) row[2]).intValue()));
+			demographics.get(((Number) row[0]).intValue()).getIdentifiers().add(identifierObj);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void loadAddresses(Collection<Integer> patientIds, Map<Integer, PatientDemographicsDTO> demographics) {
+		String query = "SELECT pa.person_id, pa.address5, pa.address6 FROM openmrs.person_address pa "
+		        + "WHERE pa.person_id IN (:patientIds) AND pa.voided = 0 "
+		        + "ORDER BY pa.person_id, pa.person_address_id ASC";
+		
+		List<Object[]> rows = entityManager.createNativeQuery(query).setParameter("patientIds", patientIds)
+		        .getResultList();
+		for (Object[] row : rows) {
+			PatientDemographicsDTO patientDemographics = demographics.get(((Number) row[0]).intValue());
+			if (row[1] != null) {
+				patientDemographics.setVillage(row[1].toString());
+			}
+			if (row[2] != null) {
+				patientDemographics.setLandmark(row[2].toString());
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void loadAttributes(Collection<Integer> patientIds, Map<Integer, PatientDemographicsDTO> demographics) {
+		PersonAttributeType contactType = getCachedPersonAttributeType(CONTACT_ATTRIBUTE);
+		PersonAttributeType alternateContactType = getCachedPersonAttributeType(ALTERNATE_CONTACT_ATTRIBUTE);
+		if (contactType == null && alternateContactType == null) {
+			return;
+		}
+		
+		List<Integer> attributeTypeIds = new ArrayList<>();
+		if (contactType != null) {
+			attributeTypeIds.add(contactType.getPersonAttributeTypeId());
+		}
+		if (alternateContactType != null) {
+			attributeTypeIds.add(alternateContactType.getPersonAttributeTypeId());
+		}
+		
+		String query = "SELECT pa.person_id, pa.person_attribute_type_id, pa.value FROM openmrs.person_attribute pa "
+		        + "WHERE pa.person_id IN (:patientIds) AND pa.person_attribute_type_id IN (:attributeTypeIds) "
+		        + "AND pa.voided = 0 ORDER BY pa.person_id, pa.person_attribute_id ASC";
+		
+		List<Object[]> rows = entityManager.createNativeQuery(query).setParameter("patientIds", patientIds)
+		        .setParameter("attributeTypeIds", attributeTypeIds).getResultList();
+		for (Object[] row : rows) {
+			PatientDemographicsDTO patientDemographics = demographics.get(((Number) row[0]).intValue());
+			int attributeTypeId = ((Number) row[1]).intValue();
+			String value = row[2] != null ? row[2].toString() : "";
+			if (contactType != null && attributeTypeId == contactType.getPersonAttributeTypeId()) {
+				patientDemographics.setContact(value);
+			} else {
+				patientDemographics.setAlternateContact(value);
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Patients who have left treatment by a given date, returned as patient ids so cohorts can exclude
+ * them without loading each Patient. These follow the same rules as
+ * {@code SharedConstants.getDeceasedPatientsByDateRange} and
+ * {@code SharedConstants.getTransferredOutClients}.
+ */
+@Component
+public class GetPatientExits {
+	
+	// Patients with a "Yes" answer to the given question recorded on or before :endDate
+	private static final String EXIT_QUERY = "SELECT o.person_id FROM openmrs.obs o "
+	        + "JOIN openmrs.concept q ON q.concept_id = o.concept_id "
+	        + "JOIN openmrs.concept a ON a.concept_id = o.value_coded "
+	        + "WHERE o.voided = 0 AND a.uuid = :yesConcept AND o.obs_datetime <= :endDate AND q.uuid = ";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public Set<Integer> getDeceasedPatientIds(Date endDate) {
+		String query = "SELECT DISTINCT pa.patient_id FROM openmrs.patient pa "
+		        + "WHERE pa.voided = 0 AND pa.patient_id IN (" + EXIT_QUERY + ":deceasedConcept)";
+		
+		Query nativeQuery = entityManager.createNativeQuery(query).setParameter("yesConcept", YES_CONCEPT)
+		        .setParameter("endDate", endDate).setParameter("deceasedConcept", DECEASED_CONCEPT_UUID);
+		return executeIdQuery(nativeQuery, "deceased patients");
+	}
+	
+	/**
+	 * Returns the ids of patients transferred out by the end date. Deceased patients are left out, as
+	 * they are counted as deceased.
+	 */
+	public Set<Integer> getTransferredOutPatientIds(Date endDate) {
+		String query = "SELECT DISTINCT pa.patient_id FROM openmrs.patient pa "
+		        + "WHERE pa.voided = 0 AND pa.patient_id IN (" + EXIT_QUERY + ":transferredOutConcept) "
+		        + "AND pa.patient_id NOT IN (" + EXIT_QUERY + ":deceasedConcept)";
+		
+		Query nativeQuery = entityManager.createNativeQuery(query).setParameter("yesConcept", YES_CONCEPT)
+		        .setParameter("endDate", endDate).setParameter("deceasedConcept", DECEASED_CONCEPT_UUID)
+		        .setParameter("transferredOutConcept", TRANSFERRED_OUT_CONCEPT_UUID);
+		return executeIdQuery(nativeQuery, "transferred out patients");
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Set<Integer> executeIdQuery(Query nativeQuery, String cohortName) {
+		try {
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : (List<Object>) nativeQuery.getResultList()) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing " + cohortName + " query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute " + cohortName + " query", e);
+		}
+	}
+}
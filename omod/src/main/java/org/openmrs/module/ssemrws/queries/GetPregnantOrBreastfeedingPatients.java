@@ -0,0 +1,120 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Pre-computed cohort of patients with a "Yes" currently pregnant or currently breastfeeding
+ * observation recorded on or before a given date. The cohort is computed with one query per day and
+ * cached, so filters and patient rows can check membership without querying obs per patient.
+ */
+@Component
+public class GetPregnantOrBreastfeedingPatients {
+	
+	private static final long CACHE_TTL_MS = 600000;
+	
+	/**
+	 * Cohort definition shared by the cached id set and by projection queries that filter in SQL. Binds
+	 * {@code :pbfNextDay}, the start of the day after the reporting date.
+	 */
+	private static final String COHORT_QUERY = "SELECT o.person_id FROM openmrs.obs o "
+	        + "JOIN openmrs.concept q ON q.concept_id = o.concept_id "
+	        + "JOIN openmrs.concept a ON a.concept_id = o.value_coded " + "WHERE o.voided = 0 AND q.uuid IN ('"
+	        + CURRENTLY_PREGNANT_CONCEPT_UUID + "', '" + CURRENTLY_BREASTFEEDING_CONCEPT_UUID + "') " + "AND a.uuid = '"
+	        + CONCEPT_BY_UUID + "' AND o.obs_datetime < :pbfNextDay";
+	
+	private static final ConcurrentHashMap<LocalDate, CacheEntry> cohortCache = new ConcurrentHashMap<>();
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	// Inner class to store the cohort and its cache time
+	private static class CacheEntry {
+		
+		Set<Integer> patientIds;
+		
+		long cacheTime;
+		
+		CacheEntry(Set<Integer> patientIds) {
+			this.patientIds = patientIds;
+			this.cacheTime = System.currentTimeMillis();
+		}
+		
+		boolean isExpired() {
+			return (System.currentTimeMillis() - cacheTime) >= CACHE_TTL_MS;
+		}
+	}
+	
+	/**
+	 * Returns the ids of patients who were pregnant or breastfeeding as of the given date. The date is
+	 * normalized to the day, and observations recorded at any time on that day are included.
+	 */
+	public Set<Integer> getPatientIds(Date asOfDate) {
+		LocalDate day = toDay(asOfDate);
+		
+		CacheEntry entry = cohortCache.get(day);
+		if (entry != null && !entry.isExpired()) {
+			return entry.patientIds;
+		}
+		
+		Set<Integer> patientIds = Collections.unmodifiableSet(executeCohortQuery(day));
+		cohortCache.values().removeIf(CacheEntry::isExpired);
+		cohortCache.put(day, new CacheEntry(patientIds));
+		
+		return patientIds;
+	}
+	
+	public boolean isPregnantOrBreastfeeding(Integer patientId, Date asOfDate) {
+		return getPatientIds(asOfDate).contains(patientId);
+	}
+	
+	/**
+	 * Returns an SQL predicate restricting the given patient id column to the cohort. Bind the
+	 * parameter with {@link #setCohortParameter(Query, Date)}.
+	 */
+	public static String getCohortPredicate(String patientIdColumn) {
+		return patientIdColumn + " IN (" + COHORT_QUERY + ")";
+	}
+	
+	public static void setCohortParameter(Query query, Date asOfDate) {
+		query.setParameter("pbfNextDay", getNextDay(toDay(asOfDate)));
+	}
+	
+	private static LocalDate toDay(Date date) {
+		return (date != null ? date : new Date()).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+	}
+	
+	private static Date getNextDay(LocalDate day) {
+		return Date.from(day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Set<Integer> executeCohortQuery(LocalDate day) {
+		String query = "SELECT DISTINCT pa.patient_id FROM openmrs.patient pa "
+		        + "WHERE pa.voided = 0 AND " + getCohortPredicate("pa.patient_id");
+		
+		try {
+			List<Object> results = entityManager.createNativeQuery(query)
+			        .setParameter("pbfNextDay", getNextDay(day)).getResultList();
+			
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : results) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing pregnant and breastfeeding query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute pregnant and breastfeeding query", e);
+		}
+	}
+}
@@ -4,8 +4,7 @@ import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 @Component
 public class GetRecurrenceOfIIT {
@@ -13,18 +12,38 @@ public class GetRecurrenceOfIIT {
 	@PersistenceContext
 	private EntityManager entityManager;
 	
-	public int getRecurrenceOfIIT(String patientUuid) {
-		if (patientUuid == null || patientUuid.trim().isEmpty()) {
-			throw new IllegalArgumentException("Invalid patient UUID");
+	public int getRecurrenceOfIIT(Integer patientId) {
+		if (patientId == null) {
+			throw new IllegalArgumentException("Invalid patient id");
 		}
 		
-		String qry = "SELECT COUNT(e.date_restarted) " + "FROM ssemr_etl.ssemr_flat_encounter_art_interruption e "
-		        + "JOIN openmrs.person p ON e.client_id = p.person_id " + "WHERE p.uuid = :patientUuid "
-		        + "AND e.date_restarted IS NOT NULL " + "AND e.encounter_datetime <= :now";
+		return getRecurrenceOfIIT(Collections.singleton(patientId)).get(patientId);
+	}
+	
+	/**
+	 * Returns the number of restarts after an interruption of several patients with one query, keyed
+	 * by patient id. Patients without any restart are mapped to 0.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Integer> getRecurrenceOfIIT(Collection<Integer> patientIds) {
+		Map<Integer, Integer> recurrences = new HashMap<>();
+		if (patientIds == null || patientIds.isEmpty()) {
+			return recurrences;
+		}
+		for (Integer patientId : patientIds) {
+			recurrences.put(patientId, 0);
+		}
+		
+		String qry = "SELECT e.client_id, COUNT(e.date_restarted) "
+		        + "FROM ssemr_etl.ssemr_flat_encounter_art_interruption e " + "WHERE e.client_id IN (:patientIds) "
+		        + "AND e.date_restarted IS NOT NULL " + "AND e.encounter_datetime <= :now " + "GROUP BY e.client_id";
 		
-		List<Number> results = entityManager.createNativeQuery(qry).setParameter("patientUuid", patientUuid)
+		List<Object[]> results = entityManager.createNativeQuery(qry).setParameter("patientIds", patientIds)
 		        .setParameter("now", new Date()).getResultList();
+		for (Object[] row : results) {
+			recurrences.put(((Number) row[0]).intValue(), ((Number) row[1]).intValue());
+		}
 		
-		return (results.isEmpty() || results.get(0) == null) ? 0 : results.get(0).intValue();
+		return recurrences;
 	}
 }
@@ -0,0 +1,83 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.openmrs.module.ssemrws.web.constants.RegimenConcepts;
+import org.openmrs.module.ssemrws.web.dto.RegimenSwitchDTO;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.ACTIVE_REGIMEN_CONCEPT_UUID;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.FOLLOW_UP_FORM_ENCOUNTER_TYPE;
+
+/**
+ * ART regimen switches, found by comparing each active regimen recorded on the follow-up form with
+ * the patient's previous one in time order. A switch at the start of the period is compared with
+ * the regimen recorded before it.
+ */
+@Component
+public class GetRegimenSwitches {
+	
+	private static final String REGIMEN_SWITCH_QUERY = "WITH regimens AS ("
+	        + "SELECT o.person_id, o.obs_datetime, vc.uuid AS regimen, "
+	        + "LAG(vc.uuid) OVER (PARTITION BY o.person_id ORDER BY o.obs_datetime, o.obs_id) AS previous_regimen "
+	        + "FROM openmrs.obs o " + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id AND e.voided = 0 "
+	        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "JOIN openmrs.concept vc ON vc.concept_id = o.value_coded "
+	        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+	        + "WHERE o.voided = 0 AND et.uuid = :followUpEncounterType AND c.uuid = :regimenConcept "
+	        + "AND o.obs_datetime <= :endDate" + ") "
+	        + "SELECT r.person_id, r.obs_datetime, r.previous_regimen, r.regimen FROM regimens r "
+	        + "WHERE r.previous_regimen IS NOT NULL AND r.previous_regimen <> r.regimen "
+	        + "AND r.obs_datetime >= :startDate " + "ORDER BY r.person_id, r.obs_datetime";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	@SuppressWarnings("unchecked")
+	public List<RegimenSwitchDTO> getRegimenSwitches(Date startDate, Date endDate) {
+		try {
+			List<Object[]> results = entityManager.createNativeQuery(REGIMEN_SWITCH_QUERY)
+			        .setParameter("followUpEncounterType", FOLLOW_UP_FORM_ENCOUNTER_TYPE)
+			        .setParameter("regimenConcept", ACTIVE_REGIMEN_CONCEPT_UUID).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate).getResultList();
+			
+			List<RegimenSwitchDTO> switches = new ArrayList<>();
+			for (Object[] row : results) {
+				RegimenSwitchDTO regimenSwitch = new RegimenSwitchDTO();
+				regimenSwitch.setPatientId(((Number) row[0]).intValue());
+				regimenSwitch.setSwitchDate((Date) row[1]);
+				regimenSwitch.setFromRegimen((String) row[2]);
+				regimenSwitch.setToRegimen((String) row[3]);
+				switches.add(regimenSwitch);
+			}
+			return switches;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing regimen switch query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute regimen switch query", e);
+		}
+	}
+	
+	// Patients with at least one regimen switch in the period
+	public Set<Integer> getSwitchedPatientIds(Date startDate, Date endDate) {
+		return getSwitchedPatientIds(getRegimenSwitches(startDate, endDate), false);
+	}
+	
+	// Patients switched to a second line regimen in the period
+	public Set<Integer> getSecondLineSwitchedPatientIds(Date startDate, Date endDate) {
+		return getSwitchedPatientIds(getRegimenSwitches(startDate, endDate), true);
+	}
+	
+	public static Set<Integer> getSwitchedPatientIds(List<RegimenSwitchDTO> switches, boolean secondLineOnly) {
+		Set<Integer> patientIds = new HashSet<>();
+		for (RegimenSwitchDTO regimenSwitch : switches) {
+			if (!secondLineOnly || RegimenConcepts.SECOND_LINE_REGIMENS.contains(regimenSwitch.getToRegimen())) {
+				patientIds.add(regimenSwitch.getPatientId());
+			}
+		}
+		return patientIds;
+	}
+}
@@ -0,0 +1,46 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+
+/**
+ * Patients transferred in within a period, returned as patient ids. A transferred in patient has an
+ * identifier starting with {@code TI-}; the identifier's creation date places the transfer in the
+ * period, whose end date is included as a whole day. The prefix match is a range scan on the
+ * identifier index of {@code patient_identifier}.
+ */
+@Component
+public class GetTransferredIn {
+	
+	private static final String TRANSFER_IN_IDENTIFIER_PREFIX = "TI-";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	@SuppressWarnings("unchecked")
+	public Set<Integer> getTransferredInPatientIds(Date startDate, Date endDate) {
+		String query = "SELECT DISTINCT pi.patient_id FROM openmrs.patient_identifier pi "
+		        + "JOIN openmrs.patient pa ON pa.patient_id = pi.patient_id AND pa.voided = 0 "
+		        + "WHERE pi.voided = 0 AND pi.identifier LIKE :identifierPattern "
+		        + "AND pi.date_created >= :startDate AND pi.date_created < DATE_ADD(DATE(:endDate), INTERVAL 1 DAY)";
+		
+		try {
+			List<Object> ids = entityManager.createNativeQuery(query)
+			        .setParameter("identifierPattern", TRANSFER_IN_IDENTIFIER_PREFIX + "%")
+			        .setParameter("startDate", startDate).setParameter("endDate", endDate).getResultList();
+			
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : ids) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing transferred in query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute transferred in query", e);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * Computes TX_CURR for many reporting dates in one pass. The rules of
+ * {@link GetTxCurrQueries#executeTxCurrQuery(Date)}, the IIT exclusion of
+ * {@link GetInterruptedInTreatment} and the ART start check of {@code GetTxCurr} reduce to a few
+ * intervals of days per patient during which they count as current. The intervals are loaded with
+ * two queries and swept against the sorted reporting dates, so the cost grows with the number of
+ * patients and ART history rows rather than with the number of dates.
+ */
+@Component
+public class GetTxCurrTrend {
+	
+	/**
+	 * Per patient: the earliest ART start, the last day the appointments keep them current (the latest
+	 * appointment day, or {@link GetInterruptedInTreatment#IIT_DAYS} days after the latest missed one)
+	 * and, for patients currently IIT, the first follow-up day from which the IIT exclusion applies.
+	 */
+	private static final String ACTIVE_INTERVAL_QUERY = "WITH art AS ( "
+	        + "    SELECT t.client_id, MIN(DATE(t.art_start_date)) AS art_start FROM ( "
+	        + GetTxCurrQueries.ART_START_DATES + "    ) t WHERE t.art_start_date IS NOT NULL GROUP BY t.client_id "
+	        + "), " + "appt AS ( " + "    SELECT fp.patient_id, MAX(DATE(fp.start_date_time)) AS last_day, "
+	        + "    MAX(CASE WHEN fp.status = 'Missed' THEN DATE(fp.start_date_time) END) AS last_missed_day "
+	        + "    FROM openmrs.patient_appointment fp GROUP BY fp.patient_id " + "), " + "iit AS ( "
+	        + "    SELECT p.patient_id, MIN(DATE(e.encounter_datetime)) AS first_follow_up "
+	        + "    FROM openmrs.ssemrws_latest_appointment p "
+	        + "    JOIN ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up e ON e.client_id = p.patient_id "
+	        + "    LEFT JOIN ssemr_etl.ssemr_flat_encounter_end_of_follow_up f ON f.client_id = p.patient_id "
+	        + "    WHERE " + GetInterruptedInTreatment.IIT_CONDITION + "    GROUP BY p.patient_id " + ") "
+	        + "SELECT a.client_id, a.art_start, GREATEST(ap.last_day, "
+	        + "COALESCE(DATE_ADD(ap.last_missed_day, INTERVAL " + GetInterruptedInTreatment.IIT_DAYS
+	        + " DAY), ap.last_day)) AS active_until, " + "iit.first_follow_up " + "FROM art a "
+	        + "JOIN appt ap ON ap.patient_id = a.client_id " + "LEFT JOIN iit ON iit.patient_id = a.client_id "
+	        + "WHERE NOT EXISTS (SELECT 1 FROM ssemr_etl.ssemr_flat_encounter_end_of_follow_up f "
+	        + "    WHERE f.client_id = a.client_id) "
+	        + "OR EXISTS (SELECT 1 FROM ssemr_etl.ssemr_flat_encounter_end_of_follow_up f "
+	        + "    WHERE f.client_id = a.client_id AND " + GetTxCurrQueries.NOT_EXITED_CONDITION + ")";
+	
+	// The ART start date shown on TX_CURR lists is the one on the latest history row as of the date
+	private static final String ART_HISTORY_QUERY = "SELECT tx.client_id, DATE(tx.encounter_datetime), "
+	        + "DATE(tx.art_start_date) " + "FROM ssemr_etl.ssemr_flat_encounter_personal_family_tx_history tx "
+	        + "WHERE tx.art_start_date IS NOT NULL " + "ORDER BY tx.client_id, tx.encounter_datetime";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Returns the TX_CURR count at each reporting date, in date order.
+	 */
+	public Map<Date, Integer> getTxCurrCounts(Collection<Date> reportingDates) {
+		if (reportingDates.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		return countTxCurr(reportingDates, loadActiveIntervals(), buildArtHistory(loadArtHistory()));
+	}
+	
+	/**
+	 * Returns the ids of the TX_CURR patients at each reporting date, in date order. Costs the same
+	 * queries as {@link #getTxCurrCounts(Collection)}, plus the id sets.
+	 */
+	public Map<Date, Set<Integer>> getTxCurrPatientIds(Collection<Date> reportingDates) {
+		if (reportingDates.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		return collectTxCurrPatientIds(reportingDates, loadActiveIntervals(), buildArtHistory(loadArtHistory()));
+	}
+	
+	/**
+	 * Sweeps the active intervals (rows of {@code ACTIVE_INTERVAL_QUERY}) and the ART history against
+	 * the reporting dates. Dates that fall on the same day are counted once, under the first of them.
+	 */
+	static Map<Date, Integer> countTxCurr(Collection<Date> reportingDates, List<Object[]> activeIntervals,
+	        Map<Integer, List<long[]>> artHistory) {
+		return sweep(reportingDates, activeIntervals, artHistory, null);
+	}
+	
+	/**
+	 * The same sweep as {@link #countTxCurr}, returning the patient ids counted at each date.
+	 */
+	static Map<Date, Set<Integer>> collectTxCurrPatientIds(Collection<Date> reportingDates,
+	        List<Object[]> activeIntervals, Map<Integer, List<long[]>> artHistory) {
+		List<Set<Integer>> patientIds = new ArrayList<>();
+		Map<Date, Integer> counts = sweep(reportingDates, activeIntervals, artHistory, patientIds);
+		
+		Map<Date, Set<Integer>> patientIdsByDate = new LinkedHashMap<>();
+		int i = 0;
+		for (Date date : counts.keySet()) {
+			patientIdsByDate.put(date, patientIds.get(i++));
+		}
+		return patientIdsByDate;
+	}
+	
+	// Fills patientIds with one id set per reporting day when it is not null
+	private static Map<Date, Integer> sweep(Collection<Date> reportingDates, List<Object[]> activeIntervals,
+	        Map<Integer, List<long[]>> artHistory, List<Set<Integer>> patientIds) {
+		// One reporting date per day, in day order
+		TreeMap<Long, Date> datesByDay = new TreeMap<>();
+		for (Date date : reportingDates) {
+			datesByDay.putIfAbsent(toEpochDay(date), date);
+		}
+		long[] days = datesByDay.keySet().stream().mapToLong(Long::longValue).toArray();
+		int[] difference = new int[days.length + 1];
+		if (patientIds != null) {
+			for (int i = 0; i < days.length; i++) {
+				patientIds.add(new HashSet<>());
+			}
+		}
+		
+		for (Object[] row : activeIntervals) {
+			Integer patientId = ((Number) row[0]).intValue();
+			long artStart = toEpochDay((Date) row[1]);
+			long activeUntil = toEpochDay((Date) row[2]);
+			if (row[3] != null) {
+				activeUntil = Math.min(activeUntil, toEpochDay((Date) row[3]) - 1);
+			}
+			
+			for (long[] interval : getArtStartIntervals(artHistory.get(patientId))) {
+				int from = lowerBound(days, Math.max(artStart, interval[0]));
+				int to = lowerBound(days, Math.min(activeUntil, interval[1]) + 1);
+				if (from < to) {
+					difference[from]++;
+					difference[to]--;
+					if (patientIds != null) {
+						for (int i = from; i < to; i++) {
+							patientIds.get(i).add(patientId);
+						}
+					}
+				}
+			}
+		}
+		
+		Map<Date, Integer> counts = new LinkedHashMap<>();
+		int running = 0;
+		int i = 0;
+		for (Date date : datesByDay.values()) {
+			running += difference[i++];
+			counts.put(date, running);
+		}
+		return counts;
+	}
+	
+	/**
+	 * Days on which the latest ART history row carries an ART start on or before the day. Each row
+	 * applies from its encounter day until the day before the next row.
+	 */
+	private static List<long[]> getArtStartIntervals(List<long[]> history) {
+		List<long[]> intervals = new ArrayList<>();
+		if (history == null) {
+			return intervals;
+		}
+		for (int i = 0; i < history.size(); i++) {
+			long validFrom = history.get(i)[0];
+			long validUntil = i + 1 < history.size() ? history.get(i + 1)[0] - 1 : Long.MAX_VALUE - 1;
+			long from = Math.max(validFrom, history.get(i)[1]);
+			if (from <= validUntil) {
+				intervals.add(new long[] { from, validUntil });
+			}
+		}
+		return intervals;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<Object[]> loadActiveIntervals() {
+		try {
+			return entityManager.createNativeQuery(ACTIVE_INTERVAL_QUERY).getResultList();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing TX_CURR trend query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute TX_CURR trend query", e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private List<Object[]> loadArtHistory() {
+		try {
+			return entityManager.createNativeQuery(ART_HISTORY_QUERY).getResultList();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing ART history query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute ART history query", e);
+		}
+	}
+	
+	/**
+	 * Per patient, one {encounter day, ART start day} entry per day from the rows of
+	 * {@code ART_HISTORY_QUERY}, keeping the last row of each day.
+	 */
+	static Map<Integer, List<long[]>> buildArtHistory(List<Object[]> rows) {
+		Map<Integer, List<long[]>> history = new HashMap<>();
+		for (Object[] row : rows) {
+			if (row[1] == null) {
+				continue;
+			}
+			List<long[]> entries = history.computeIfAbsent(((Number) row[0]).intValue(), k -> new ArrayList<>());
+			long[] entry = { toEpochDay((Date) row[1]), toEpochDay((Date) row[2]) };
+			if (!entries.isEmpty() && entries.get(entries.size() - 1)[0] == entry[0]) {
+				entries.set(entries.size() - 1, entry);
+			} else {
+				entries.add(entry);
+			}
+		}
+		return history;
+	}
+	
+	private static long toEpochDay(Date date) {
+		if (date instanceof java.sql.Date) {
+			return ((java.sql.Date) date).toLocalDate().toEpochDay();
+		}
+		return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+	
+	// Index of the first day on or after the given day
+	private static int lowerBound(long[] days, long day) {
+		int index = Arrays.binarySearch(days, day);
+		return index >= 0 ? index : -index - 1;
+	}
+}
@@ -0,0 +1,127 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+
+/**
+ * Reads the module-owned {@code ssemrws_vl_eligibility} table, which holds each patient's viral load
+ * eligibility date together with the pending result and pending EAC states. The table is written by
+ * {@link RefreshVLEligibility}, which the scheduled refresh task runs; the due for VL cohort and the
+ * per-patient due date are indexed reads of the table and never refresh it.
+ */
+@Component
+public class GetVLEligibility {
+	
+	public static final String PENDING_RESULTS = "Pending Results";
+	
+	public static final String PENDING_EAC = "Pending EAC 3";
+	
+	public static final String NOT_AVAILABLE = "N/A";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Returns the ids of patients whose eligibility date falls within the period and who have neither
+	 * a pending result nor a pending EAC. Patients who died, transferred out, refused treatment or
+	 * missed their last appointment more than 28 days before the end date are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getDueForVlPatientIds(Date startDate, Date endDate) {
+		String query = "SELECT DISTINCT ve.client_id FROM openmrs.ssemrws_vl_eligibility ve "
+		        + "LEFT JOIN ssemr_etl.ssemr_flat_encounter_end_of_follow_up fup ON ve.client_id = fup.client_id "
+		        + "LEFT JOIN openmrs.ssemrws_latest_appointment appt ON appt.patient_id = ve.client_id "
+		        + "WHERE ve.eligibility_date BETWEEN :startDate AND :endDate "
+		        + "AND ve.vl_pending = 0 AND ve.pending_eac = 0 " + "AND (fup.death IS NULL OR fup.death != 'Yes') "
+		        + "AND (fup.transfer_out IS NULL OR fup.transfer_out != 'Yes') "
+		        + "AND (fup.client_refused_treatment IS NULL OR fup.client_refused_treatment != 'Yes') "
+		        + "AND (appt.status IS NULL OR appt.status != 'Missed' OR DATEDIFF(:endDate, appt.start_date_time) <= 28)";
+		
+		try {
+			List<Object> results = entityManager.createNativeQuery(query).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate).getResultList();
+			
+			List<Integer> patientIds = new ArrayList<>();
+			for (Object id : results) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing Due for VL query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute Due for VL query", e);
+		}
+	}
+	
+	/**
+	 * Returns the VL due date of the patient as shown on lists and profiles: "Pending Results",
+	 * "Pending EAC 3", the eligibility date formatted as dd-MM-yyyy, or "N/A".
+	 */
+	@SuppressWarnings("unchecked")
+	public String getVLDueDate(Integer patientId) {
+		String query = "SELECT ve.vl_pending, ve.pending_eac, DATE_FORMAT(ve.eligibility_date, '%d-%m-%Y') "
+		        + "FROM openmrs.ssemrws_vl_eligibility ve WHERE ve.client_id = :patientId";
+		
+		try {
+			List<Object[]> results = entityManager.createNativeQuery(query).setParameter("patientId", patientId)
+			        .getResultList();
+			return results.isEmpty() ? NOT_AVAILABLE : toVLDueDate(results.get(0));
+		}
+		catch (Exception e) {
+			System.err.println("Error calculating VL due date: " + e.getMessage());
+			return NOT_AVAILABLE;
+		}
+	}
+	
+	/**
+	 * Returns the VL due dates of several patients with one query, keyed by patient id. Patients
+	 * without an eligibility row are mapped to "N/A".
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getVLDueDates(Collection<Integer> patientIds) {
+		Map<Integer, String> vlDueDates = new HashMap<>();
+		if (patientIds == null || patientIds.isEmpty()) {
+			return vlDueDates;
+		}
+		for (Integer patientId : patientIds) {
+			vlDueDates.put(patientId, NOT_AVAILABLE);
+		}
+		
+		String query = "SELECT ve.client_id, ve.vl_pending, ve.pending_eac, "
+		        + "DATE_FORMAT(ve.eligibility_date, '%d-%m-%Y') "
+		        + "FROM openmrs.ssemrws_vl_eligibility ve WHERE ve.client_id IN (:patientIds)";
+		
+		try {
+			List<Object[]> results = entityManager.createNativeQuery(query).setParameter("patientIds", patientIds)
+			        .getResultList();
+			for (Object[] row : results) {
+				vlDueDates.put(((Number) row[0]).intValue(), toVLDueDate(Arrays.copyOfRange(row, 1, row.length)));
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Error calculating VL due dates: " + e.getMessage());
+		}
+		
+		return vlDueDates;
+	}
+	
+	private static String toVLDueDate(Object[] row) {
+		if (isSet(row[0])) {
+			return PENDING_RESULTS;
+		}
+		if (isSet(row[1])) {
+			return PENDING_EAC;
+		}
+		return row[2] != null ? row[2].toString() : NOT_AVAILABLE;
+	}
+	
+	private static boolean isSet(Object flag) {
+		if (flag instanceof Boolean) {
+			return (Boolean) flag;
+		}
+		return flag != null && ((Number) flag).intValue() != 0;
+	}
+}
@@ -0,0 +1,119 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
+import org.openmrs.module.ssemrws.web.dto.ViralLoadSuppressionDTO;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.*;
+
+import static org.openmrs.module.ssemrws.constants.SharedConstants.THRESHOLD;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.VIRAL_LOAD_CONCEPT_UUID;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.VIRAL_LOAD_RESULTS_UUID;
+
+/**
+ * Viral load coverage counted in the database: a patient is covered when they have a non-voided
+ * viral load result observation within the period, and suppressed when any result in the period is
+ * below detectable (BDL) or below {@code THRESHOLD} copies.
+ */
+@Component
+public class GetViralLoadCoverage {
+	
+	private static final String COVERED_PATIENTS_QUERY = "FROM openmrs.obs o "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+	        + "WHERE o.voided = 0 AND c.uuid = :vlResultConcept "
+	        + "AND o.obs_datetime BETWEEN :startDate AND :endDate";
+	
+	private static final String BDL_RESULT = "Below Detectable (BDL)";
+	
+	private static final String AGE_BAND_COLUMN = "CASE WHEN pe.birthdate IS NULL THEN 'Unknown' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 1 THEN '<1' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 5 THEN '1-4' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 10 THEN '5-9' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 15 THEN '10-14' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 20 THEN '15-19' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 25 THEN '20-24' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 30 THEN '25-29' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 35 THEN '30-34' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 40 THEN '35-39' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 45 THEN '40-44' "
+	        + "WHEN TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate) < 50 THEN '45-49' " + "ELSE '50+' END";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public int getCoveredPatientCount(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
+		String query = "SELECT COUNT(DISTINCT o.person_id) " + COVERED_PATIENTS_QUERY
+		        + FilterUtility.getFilterPredicate(filterCategory, "o.person_id");
+		
+		try {
+			Query nativeQuery = entityManager.createNativeQuery(query)
+			        .setParameter("vlResultConcept", VIRAL_LOAD_RESULTS_UUID).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate);
+			FilterUtility.setFilterParameters(nativeQuery, filterCategory, endDate);
+			return ((Number) nativeQuery.getSingleResult()).intValue();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing viral load coverage query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute viral load coverage query", e);
+		}
+	}
+	
+	/**
+	 * Counts covered and suppressed patients in a single scan of the viral load obs, deciding
+	 * suppression per patient with conditional aggregation. The counts are grouped by sex and age band
+	 * at the end date; the totals are summed from the groups, and the groups are only returned when a
+	 * breakdown is requested.
+	 */
+	@SuppressWarnings("unchecked")
+	public ViralLoadSuppressionDTO getSuppressionCounts(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory, boolean includeBreakdown) {
+		String query = "WITH vl AS ( " + "    SELECT o.person_id, "
+		        + "    MAX(CASE WHEN c.uuid = :vlResultConcept THEN 1 ELSE 0 END) AS covered, "
+		        + "    MAX(CASE WHEN c.uuid = :vlResultConcept AND o.value_text = :bdlResult THEN 1 "
+		        + "        WHEN c.uuid = :vlNumericConcept AND o.value_numeric < :threshold THEN 1 ELSE 0 END) AS suppressed "
+		        + "    FROM openmrs.obs o " + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "    JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+		        + "    WHERE o.voided = 0 AND c.uuid IN (:vlResultConcept, :vlNumericConcept) "
+		        + "    AND o.obs_datetime BETWEEN :startDate AND :endDate "
+		        + FilterUtility.getFilterPredicate(filterCategory, "o.person_id") + "    GROUP BY o.person_id "
+		        + "    HAVING covered = 1 " + ") " + "SELECT pe.gender, " + AGE_BAND_COLUMN
+		        + " AS age_band, COUNT(*) AS covered, SUM(vl.suppressed) AS suppressed " + "FROM vl "
+		        + "JOIN openmrs.person pe ON pe.person_id = vl.person_id " + "GROUP BY pe.gender, age_band "
+		        + "ORDER BY pe.gender, MIN(TIMESTAMPDIFF(YEAR, pe.birthdate, :endDate))";
+		
+		try {
+			Query nativeQuery = entityManager.createNativeQuery(query)
+			        .setParameter("vlResultConcept", VIRAL_LOAD_RESULTS_UUID)
+			        .setParameter("vlNumericConcept", VIRAL_LOAD_CONCEPT_UUID).setParameter("bdlResult", BDL_RESULT)
+			        .setParameter("threshold", THRESHOLD).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate);
+			FilterUtility.setFilterParameters(nativeQuery, filterCategory, endDate);
+			
+			ViralLoadSuppressionDTO counts = new ViralLoadSuppressionDTO();
+			for (Object[] row : (List<Object[]>) nativeQuery.getResultList()) {
+				ViralLoadSuppressionDTO.Breakdown group = new ViralLoadSuppressionDTO.Breakdown();
+				group.setSex((String) row[0]);
+				group.setAgeBand((String) row[1]);
+				group.setCovered(((Number) row[2]).intValue());
+				group.setSuppressed(row[3] != null ? ((Number) row[3]).intValue() : 0);
+				
+				counts.setCovered(counts.getCovered() + group.getCovered());
+				counts.setSuppressed(counts.getSuppressed() + group.getSuppressed());
+				if (includeBreakdown) {
+					counts.getBreakdown().add(group);
+				}
+			}
+			return counts;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing viral load suppression query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute viral load suppression query", e);
+		}
+	}
+}
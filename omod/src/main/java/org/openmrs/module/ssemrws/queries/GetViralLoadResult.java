@@ -0,0 +1,82 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.web.dto.ViralLoadResult;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.Date;
+import java.util.List;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Loads the latest viral load result of a patient, numeric or coded, in one query.
+ */
+@Component
+public class GetViralLoadResult {
+	
+	private static final String LATEST_RESULT_QUERY = "SELECT o.value_numeric, o.value_text, o.value_coded, "
+	        + "o.value_coded = (SELECT b.concept_id FROM openmrs.concept b WHERE b.uuid = :bdlConcept) AS bdl, "
+	        + "o.obs_datetime, o.encounter_id " + "FROM openmrs.obs o "
+	        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+	        + "WHERE o.voided = 0 AND o.person_id = :patientId AND c.uuid IN (:vlNumericConcept, :vlResultConcept) ";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public ViralLoadResult getLatestResult(Integer patientId) {
+		String query = LATEST_RESULT_QUERY + "ORDER BY o.obs_datetime DESC, o.obs_id DESC LIMIT 1";
+		
+		return executeResultQuery(createQuery(query, patientId));
+	}
+	
+	// Latest result recorded in encounters of the given type
+	public ViralLoadResult getLatestResult(Integer patientId, String encounterTypeUuid) {
+		String query = LATEST_RESULT_QUERY
+		        + "AND EXISTS (SELECT 1 FROM openmrs.encounter e JOIN openmrs.encounter_type et "
+		        + "ON et.encounter_type_id = e.encounter_type WHERE e.encounter_id = o.encounter_id "
+		        + "AND e.voided = 0 AND et.uuid = :encounterType) "
+		        + "ORDER BY o.obs_datetime DESC, o.obs_id DESC LIMIT 1";
+		
+		Query nativeQuery = createQuery(query, patientId);
+		nativeQuery.setParameter("encounterType", encounterTypeUuid);
+		return executeResultQuery(nativeQuery);
+	}
+	
+	private Query createQuery(String query, Integer patientId) {
+		return entityManager.createNativeQuery(query).setParameter("bdlConcept", BDL_CONCEPT_UUID)
+		        .setParameter("patientId", patientId).setParameter("vlNumericConcept", VIRAL_LOAD_CONCEPT_UUID)
+		        .setParameter("vlResultConcept", VIRAL_LOAD_RESULTS_UUID);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private ViralLoadResult executeResultQuery(Query query) {
+		try {
+			List<Object[]> results = query.getResultList();
+			if (results.isEmpty()) {
+				return ViralLoadResult.NONE;
+			}
+			
+			Object[] row = results.get(0);
+			Double copies = row[0] != null ? ((Number) row[0]).doubleValue() : null;
+			String textValue = (String) row[1];
+			boolean belowDetectable = row[3] != null && ((Number) row[3]).intValue() == 1;
+			String codedValue = null;
+			if (row[2] != null && !belowDetectable) {
+				Concept answer = Context.getConceptService().getConcept(((Number) row[2]).intValue());
+				codedValue = answer != null ? answer.getName().getName() : null;
+			}
+			Integer encounterId = row[5] != null ? ((Number) row[5]).intValue() : null;
+			
+			return new ViralLoadResult(copies, textValue, codedValue, belowDetectable, (Date) row[4], encounterId);
+		}
+		catch (Exception e) {
+			System.err.println("Error executing viral load result query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute viral load result query", e);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Evaluates the viral load eligibility rules into {@code ssemrws_vl_eligibility}. It runs from
+ * {@code RefreshVLEligibilityTask} rather than on reads, in its own bean so that the transaction
+ * around the upsert is applied.
+ * <p>
+ * The ETL tables carry no change timestamp, so an ETL row that changes in place is found through
+ * its source encounter: every pass recomputes patients whose encounters changed within
+ * {@link #CHANGE_WINDOW_MS}, which covers ETL runs up to a day after the edit. A row changed later
+ * than that, without a change to its source encounter, stays stale until the daily full pass.
+ */
+@Component
+public class RefreshVLEligibility {
+	
+	// How far back encounter changes are looked for, to allow for the delay before the ETL picks them up
+	static final long CHANGE_WINDOW_MS = 86400000;
+	
+	// How often every patient is recomputed, so that age and ART history changes are picked up
+	static final long FULL_REFRESH_INTERVAL_MS = 86400000;
+	
+	private static final Object refreshLock = new Object();
+	
+	private static volatile long lastRefreshTime;
+	
+	private static volatile long lastFullRefreshTime;
+	
+	/**
+	 * Recomputes the eligibility rows of the candidate patients. Candidates are patients without a row
+	 * yet, whose latest follow-up or high viral load encounter differs from the one the row was
+	 * computed from, or who have a follow-up, high viral load or ART history encounter created, changed
+	 * or voided since {@code :changedSince}; or every patient when {@code :fullRefresh} is 1. The
+	 * select is a derived table so that the update can read its columns by alias.
+	 */
+	private static final String REFRESH_QUERY = "INSERT INTO openmrs.ssemrws_vl_eligibility (client_id, "
+	        + "eligibility_date, vl_pending, pending_eac, last_follow_up_datetime, last_hvl_datetime, date_refreshed) "
+	        + "SELECT * FROM ( " + "WITH fp_last AS ( "
+	        + "    SELECT client_id, MAX(encounter_datetime) AS last_encounter "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up GROUP BY client_id " + "), " + "hvl_last AS ( "
+	        + "    SELECT client_id, MAX(encounter_datetime) AS last_encounter "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_high_viral_load GROUP BY client_id " + "), " + "candidates AS ( "
+	        + "    SELECT c.client_id, fl.last_encounter AS last_fp, hl.last_encounter AS last_hvl " + "    FROM ( "
+	        + "        SELECT client_id FROM fp_last UNION SELECT client_id FROM hvl_last UNION "
+	        + "        SELECT client_id FROM ssemr_etl.ssemr_flat_encounter_personal_family_tx_history "
+	        + "        WHERE art_start_date IS NOT NULL " + "    ) c "
+	        + "    LEFT JOIN fp_last fl ON fl.client_id = c.client_id "
+	        + "    LEFT JOIN hvl_last hl ON hl.client_id = c.client_id "
+	        + "    LEFT JOIN openmrs.ssemrws_vl_eligibility e ON e.client_id = c.client_id "
+	        + "    WHERE :fullRefresh = 1 OR e.client_id IS NULL "
+	        + "    OR NOT (fl.last_encounter <=> e.last_follow_up_datetime) "
+	        + "    OR NOT (hl.last_encounter <=> e.last_hvl_datetime) "
+	        + "    OR c.client_id IN (SELECT en.patient_id FROM openmrs.encounter en "
+	        + "        JOIN openmrs.encounter_type et ON et.encounter_type_id = en.encounter_type "
+	        + "        WHERE et.uuid IN (:encounterTypes) AND (en.date_created >= :changedSince "
+	        + "        OR en.date_changed >= :changedSince OR en.date_voided >= :changedSince)) " + "), " + "LatestFP AS ( "
+	        + "    SELECT f.*, ROW_NUMBER() OVER(PARTITION BY f.client_id " + "        ORDER BY "
+	        + "            CASE WHEN f.date_vl_sample_collected IS NOT NULL THEN 1 ELSE 2 END, "
+	        + "            f.date_vl_sample_collected DESC, " + "            f.encounter_datetime DESC " + "    ) as rn "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up f "
+	        + "    JOIN candidates c ON c.client_id = f.client_id " + "), " + "LatestVisit AS ( "
+	        + "    SELECT f.client_id, f.date_vl_sample_collected, f.date_vl_results_received, f.viral_load_value, "
+	        + "    ROW_NUMBER() OVER(PARTITION BY f.client_id ORDER BY f.encounter_datetime DESC) as rn "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up f "
+	        + "    JOIN candidates c ON c.client_id = f.client_id " + "), " + "LatestHVL AS ( "
+	        + "    SELECT h.*, ROW_NUMBER() OVER(PARTITION BY h.client_id ORDER BY h.encounter_datetime DESC) as rn "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_high_viral_load h "
+	        + "    JOIN candidates c ON c.client_id = h.client_id " + "), " + "PendingHVL AS ( "
+	        + "    SELECT DISTINCT h.client_id FROM ssemr_etl.ssemr_flat_encounter_high_viral_load h "
+	        + "    JOIN candidates c ON c.client_id = h.client_id "
+	        + "    WHERE h.repeat_vl_sample_date IS NOT NULL AND h.repeat_vl_result_date IS NULL " + "), "
+	        + "LatestTxHistory AS ( " + "    SELECT t.client_id, t.art_start_date, "
+	        + "    ROW_NUMBER() OVER(PARTITION BY t.client_id ORDER BY t.encounter_datetime DESC) as rn "
+	        + "    FROM ssemr_etl.ssemr_flat_encounter_personal_family_tx_history t "
+	        + "    JOIN candidates c ON c.client_id = t.client_id " + "    WHERE t.art_start_date IS NOT NULL " + ") "
+	        + "SELECT c.client_id, " + "CASE WHEN pfh.art_start_date IS NULL OR mp.person_id IS NULL THEN NULL "
+	        + "WHEN hvl.encounter_datetime > fp.encounter_datetime THEN " + "CASE "
+	        + "WHEN hvl.third_eac_session_date IS NOT NULL AND hvl.repeat_vl_results IS NULL THEN DATE_ADD(hvl.third_eac_session_date, INTERVAL 1 MONTH) "
+	        + "WHEN hvl.repeat_vl_sample_date IS NOT NULL AND (hvl.repeat_vl_value < 1000 OR hvl.repeat_vl_results = 'Below Detectable (BDL)') THEN DATE_ADD(hvl.repeat_vl_sample_date, INTERVAL 6 MONTH) "
+	        + "ELSE DATE_ADD(hvl.encounter_datetime, INTERVAL 1 MONTH) " + "END "
+	
+	        + "ELSE " + "CASE "
+			// --- ADULT CONDITIONS ---
+	        + "WHEN (mp.age > 18 AND pfh.art_start_date IS NOT NULL AND (fp.client_pmtct = 'No' OR fp.client_pmtct IS NULL) "
+	        + " AND (fp.viral_load_value < 1000 OR fp.vl_results = 'Below Detectable (BDL)') "
+	        + " AND EXISTS (SELECT 1 FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up prev "
+	        + "     WHERE prev.client_id = fp.client_id AND prev.date_vl_sample_collected < fp.date_vl_sample_collected "
+	        + "     AND (prev.viral_load_value < 1000 OR prev.vl_results = 'Below Detectable (BDL)')) "
+	        + ") THEN DATE_ADD(fp.date_vl_sample_collected, INTERVAL 12 MONTH) "
+	
+	        + "WHEN (mp.age > 18 AND pfh.art_start_date IS NOT NULL AND (fp.client_pmtct = 'No' OR fp.client_pmtct IS NULL) "
+	        + " AND (fp.viral_load_value < 1000 OR fp.vl_results = 'Below Detectable (BDL)') "
+	        + " AND NOT EXISTS (SELECT 1 FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up prev "
+	        + "     WHERE prev.client_id = fp.client_id AND prev.date_vl_sample_collected < fp.date_vl_sample_collected "
+	        + "     AND (prev.viral_load_value < 1000 OR prev.vl_results = 'Below Detectable (BDL)')) "
+	        + ") THEN DATE_ADD(fp.date_vl_sample_collected, INTERVAL 6 MONTH) "
+	
+	        + "WHEN (mp.age > 18 AND pfh.art_start_date IS NOT NULL "
+	        + " AND NOT EXISTS (SELECT 1 FROM ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up v2 "
+	        + "     WHERE v2.client_id = fp.client_id AND v2.date_vl_sample_collected IS NOT NULL) "
+	        + ") THEN DATE_ADD(pfh.art_start_date, INTERVAL 6 MONTH) "
+			
+			// --- CHILD & HVL-SPECIFIC CONDITIONS (Most specific first) ---
+	        + "WHEN (mp.age <= 18 AND hvl.repeat_vl_sample_date IS NOT NULL) AND (fp.client_pmtct = 'No' OR fp.client_pmtct IS NULL) AND (hvl.repeat_vl_value IS NULL AND hvl.repeat_vl_results IS NULL) THEN DATE_ADD(hvl.third_eac_session_date, INTERVAL 1 MONTH) "
+	        + "WHEN (mp.age <= 18 AND pfh.art_start_date IS NOT NULL) AND (fp.client_pmtct = 'No' OR fp.client_pmtct IS NULL) AND (fp.date_vl_sample_collected IS NULL AND fp.vl_results IS NULL) AND hvl.repeat_vl_sample_date IS NULL THEN DATE_ADD(pfh.art_start_date, INTERVAL 6 MONTH) "
+	        + "WHEN (mp.age <= 18 AND fp.date_vl_sample_collected IS NOT NULL) AND (fp.client_pmtct = 'No' OR fp.client_pmtct IS NULL) AND hvl.repeat_vl_sample_date IS NULL THEN DATE_ADD(fp.date_vl_sample_collected, INTERVAL 6 MONTH) "
+	
+	        + "WHEN hvl.third_eac_session_date IS NOT NULL AND (hvl.repeat_vl_results IS NULL) THEN DATE_ADD(hvl.third_eac_session_date, INTERVAL 1 MONTH) "
+	        + "WHEN hvl.repeat_vl_sample_date IS NOT NULL AND (hvl.repeat_vl_value < 1000 OR hvl.repeat_vl_results = 'Below Detectable (BDL)') THEN DATE_ADD(hvl.repeat_vl_sample_date, INTERVAL 6 MONTH) "
+			
+			// --- PMTCT / PREGNANT & OTHER GENERAL CONDITIONS ---
+	        + "WHEN (fp.client_pmtct = 'Yes' AND fp.date_vl_sample_collected IS NOT NULL) AND (fp.viral_load_value < 1000 OR fp.vl_results = 'Below Detectable (BDL)') THEN DATE_ADD(fp.date_vl_sample_collected, INTERVAL 3 MONTH) "
+	        + "WHEN (fp.client_pmtct = 'Yes' AND fp.date_vl_sample_collected IS NULL) THEN DATE_ADD(fp.encounter_datetime, INTERVAL 3 MONTH) "
+	        + "WHEN (fp.client_pregnant = 'Yes' AND pfh.art_start_date IS NOT NULL) THEN fp.encounter_datetime "
+			
+			// Eligibity in 6 months from the ART START DAte
+	        + "WHEN pfh.art_start_date IS NOT NULL AND (hvl.repeat_vl_result_date IS NULL AND fp.date_vl_sample_collected IS NULL) THEN DATE_ADD(pfh.art_start_date, INTERVAL 6 MONTH) "
+	
+	        + "ELSE NULL " + "END " + "END AS eligibility_date, "
+			
+			// Sample collected at the latest visit, or a repeat sample, still awaiting results
+	        + "CASE WHEN lv.client_id IS NOT NULL AND ((lv.date_vl_sample_collected IS NOT NULL "
+	        + "    AND lv.date_vl_results_received IS NULL) OR ph.client_id IS NOT NULL) THEN 1 ELSE 0 END AS vl_pending, "
+			
+			// High viral load at the latest visit or repeat test, and the third EAC session not done yet
+	        + "CASE WHEN lv.client_id IS NOT NULL AND hvl.third_eac_session_date IS NULL "
+	        + "    AND (lv.viral_load_value >= 1000 OR hvl.repeat_vl_value >= 1000) THEN 1 ELSE 0 END AS pending_eac, "
+	        + "c.last_fp AS last_follow_up_datetime, c.last_hvl AS last_hvl_datetime, NOW() AS date_refreshed "
+	        + "FROM candidates c "
+	        + "LEFT JOIN LatestFP fp ON fp.client_id = c.client_id AND fp.rn = 1 "
+	        + "LEFT JOIN LatestVisit lv ON lv.client_id = c.client_id AND lv.rn = 1 "
+	        + "LEFT JOIN LatestHVL hvl ON hvl.client_id = c.client_id AND hvl.rn = 1 "
+	        + "LEFT JOIN PendingHVL ph ON ph.client_id = c.client_id "
+	        + "LEFT JOIN LatestTxHistory pfh ON pfh.client_id = c.client_id AND pfh.rn = 1 "
+	        + "LEFT JOIN ssemr_etl.mamba_dim_person mp ON mp.person_id = c.client_id "
+	        + ") AS new "
+	        + "ON DUPLICATE KEY UPDATE eligibility_date = new.eligibility_date, vl_pending = new.vl_pending, "
+	        + "pending_eac = new.pending_eac, last_follow_up_datetime = new.last_follow_up_datetime, "
+	        + "last_hvl_datetime = new.last_hvl_datetime, date_refreshed = new.date_refreshed";
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Brings the eligibility table up to date with the ETL tables, recomputing every patient once a
+	 * day and otherwise only the candidates described on the refresh query.
+	 */
+	@Transactional
+	public void refresh() {
+		synchronized (refreshLock) {
+			long now = System.currentTimeMillis();
+			boolean fullRefresh = isFullRefreshDue(now, lastFullRefreshTime);
+			try {
+				entityManager.createNativeQuery(REFRESH_QUERY).setParameter("fullRefresh", fullRefresh ? 1 : 0)
+				        .setParameter("encounterTypes", Arrays.asList(FOLLOW_UP_FORM_ENCOUNTER_TYPE,
+				            HIGH_VL_ENCOUNTERTYPE_UUID, PERSONAL_FAMILY_HISTORY_ENCOUNTERTYPE_UUID))
+				        .setParameter("changedSince", getChangedSince(lastRefreshTime)).executeUpdate();
+			}
+			catch (Exception e) {
+				System.err.println("Error refreshing VL eligibility: " + e.getMessage());
+				throw new RuntimeException("Failed to refresh VL eligibility", e);
+			}
+			
+			lastRefreshTime = now;
+			if (fullRefresh) {
+				lastFullRefreshTime = now;
+			}
+		}
+	}
+	
+	static boolean isFullRefreshDue(long now, long lastFullRefreshTime) {
+		return now - lastFullRefreshTime >= FULL_REFRESH_INTERVAL_MS;
+	}
+	
+	// Start of the encounter change window of a pass that follows the given refresh
+	static Date getChangedSince(long lastRefreshTime) {
+		return new Date(Math.max(0, lastRefreshTime - CHANGE_WINDOW_MS));
+	}
+}
@@ -0,0 +1,31 @@
+package org.openmrs.module.ssemrws.task;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.AppointmentTimelineIndex;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that keeps the {@link AppointmentTimelineIndex} warm, so that it is loaded at startup
+ * rather than on a request and picks up appointments changed outside the appointments service.
+ * Registered by the liquibase changelog to repeat every five minutes.
+ */
+public class RefreshAppointmentTimelineTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "SSEMR Appointment Timeline Refresh";
+	
+	@Override
+	public void execute() {
+		if (!isExecuting()) {
+			startExecuting();
+			try {
+				Context.getRegisteredComponents(AppointmentTimelineIndex.class).get(0).refresh();
+			}
+			catch (Exception e) {
+				System.err.println("Error running appointment timeline refresh task: " + e.getMessage());
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.openmrs.module.ssemrws.task;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.DailyIndicatorStore;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that deletes the stored daily indicator counts whose source data changed, so that
+ * they are counted again on their next read. Registered by the liquibase changelog to repeat every
+ * hour.
+ */
+public class RefreshDailyIndicatorsTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "SSEMR Daily Indicators Refresh";
+	
+	@Override
+	public void execute() {
+		if (!isExecuting()) {
+			startExecuting();
+			try {
+				Context.getRegisteredComponents(DailyIndicatorStore.class).get(0).invalidateChangedDays();
+			}
+			catch (Exception e) {
+				System.err.println("Error running daily indicators refresh task: " + e.getMessage());
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+}
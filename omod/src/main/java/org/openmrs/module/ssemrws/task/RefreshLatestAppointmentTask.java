@@ -0,0 +1,31 @@
+package org.openmrs.module.ssemrws.task;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.GetLatestAppointment;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that keeps {@code ssemrws_latest_appointment} up to date, so that the IIT, due for
+ * VL and TX_CURR trend reads never write to it. Registered by the liquibase changelog to repeat every
+ * minute.
+ */
+public class RefreshLatestAppointmentTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "SSEMR Latest Appointment Refresh";
+	
+	@Override
+	public void execute() {
+		if (!isExecuting()) {
+			startExecuting();
+			try {
+				Context.getRegisteredComponents(GetLatestAppointment.class).get(0).refresh();
+			}
+			catch (Exception e) {
+				System.err.println("Error running latest appointment refresh task: " + e.getMessage());
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+}
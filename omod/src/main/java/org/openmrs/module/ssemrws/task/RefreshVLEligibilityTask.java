@@ -0,0 +1,31 @@
+package org.openmrs.module.ssemrws.task;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.RefreshVLEligibility;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that keeps {@code ssemrws_vl_eligibility} up to date, so that the due for VL list
+ * and VL due dates never run the eligibility rules on a request. Registered by the liquibase
+ * changelog to repeat every five minutes.
+ */
+public class RefreshVLEligibilityTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "SSEMR VL Eligibility Refresh";
+	
+	@Override
+	public void execute() {
+		if (!isExecuting()) {
+			startExecuting();
+			try {
+				Context.getRegisteredComponents(RefreshVLEligibility.class).get(0).refresh();
+			}
+			catch (Exception e) {
+				System.err.println("Error running VL eligibility refresh task: " + e.getMessage());
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+}
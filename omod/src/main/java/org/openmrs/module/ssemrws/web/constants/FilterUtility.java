@@ -1,28 +1,149 @@
 package org.openmrs.module.ssemrws.web.constants;
 
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.queries.GetPregnantOrBreastfeedingPatients;
 import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
+import org.springframework.stereotype.Component;
 
-import java.util.Date;
-
-import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.util.*;
+import java.util.stream.Collectors;
 
+/**
+ * Resolves a dashboard filter category to the set of patient ids it matches, so that cohort queries
+ * can intersect their ids with the filter before any Patient is loaded.
+ */
+@Component
 public class FilterUtility {
 	
 	private static final int CHILDREN_ADOLESCENT_AGE = 19;
 	
-	public static boolean applyFilter(Patient patient, SSEMRWebServicesController.filterCategory filterCategory,
+	private final GetPregnantOrBreastfeedingPatients getPregnantOrBreastfeedingPatients;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public FilterUtility(GetPregnantOrBreastfeedingPatients getPregnantOrBreastfeedingPatients) {
+		this.getPregnantOrBreastfeedingPatients = getPregnantOrBreastfeedingPatients;
+	}
+	
+	/**
+	 * Returns the ids of all patients matching the given filter category as of the end date, or
+	 * {@code null} when no filter is applied.
+	 */
+	public Set<Integer> getFilteredPatientIds(SSEMRWebServicesController.filterCategory filterCategory, Date endDate) {
+		if (filterCategory == null) {
+			return null;
+		}
+		switch (filterCategory) {
+			case CHILDREN_ADOLESCENTS:
+				return getChildrenAndAdolescentIds();
+			case PREGNANT_BREASTFEEDING:
+				return getPregnantOrBreastfeedingPatients.getPatientIds(endDate);
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * Keeps only the patient ids that match the filter category. Cohort queries call this before
+	 * hydrating their ids into Patient objects.
+	 */
+	public List<Integer> filterPatientIds(List<Integer> patientIds,
+	        SSEMRWebServicesController.filterCategory filterCategory, Date endDate) {
+		Set<Integer> filteredIds = getFilteredPatientIds(filterCategory, endDate);
+		if (filteredIds == null) {
+			return patientIds;
+		}
+		return patientIds.stream().filter(filteredIds::contains).collect(Collectors.toList());
+	}
+	
+	/**
+	 * Keeps only the patients that match the filter category, for cohorts that are already loaded as
+	 * Patient objects.
+	 */
+	public HashSet<Patient> filterPatients(Collection<Patient> patients,
+	        SSEMRWebServicesController.filterCategory filterCategory, Date endDate) {
+		Set<Integer> filteredIds = getFilteredPatientIds(filterCategory, endDate);
+		if (filteredIds == null) {
+			return new HashSet<>(patients);
+		}
+		return patients.stream().filter(patient -> filteredIds.contains(patient.getPatientId()))
+		        .collect(Collectors.toCollection(HashSet::new));
+	}
+	
+	public List<GetTxNew.PatientEnrollmentData> filterEnrollmentData(List<GetTxNew.PatientEnrollmentData> patientData,
+	        SSEMRWebServicesController.filterCategory filterCategory, Date endDate) {
+		Set<Integer> filteredIds = getFilteredPatientIds(filterCategory, endDate);
+		if (filteredIds == null) {
+			return patientData;
+		}
+		return patientData.stream().filter(data -> filteredIds.contains(data.getPatient().getPatientId()))
+		        .collect(Collectors.toList());
+	}
+	
+	/**
+	 * Returns the filter category as an SQL predicate on the given patient id column, prefixed with
+	 * {@code AND}, or an empty string when no filter is applied. Bind its parameters with
+	 * {@link #setFilterParameters(Query, SSEMRWebServicesController.filterCategory, Date)}.
+	 */
+	public static String getFilterPredicate(SSEMRWebServicesController.filterCategory filterCategory,
+	        String patientIdColumn) {
+		if (filterCategory == null) {
+			return "";
+		}
+		switch (filterCategory) {
+			case CHILDREN_ADOLESCENTS:
+				return " AND EXISTS (SELECT 1 FROM openmrs.person fpe WHERE fpe.person_id = " + patientIdColumn
+				        + " AND TIMESTAMPDIFF(YEAR, fpe.birthdate, CURDATE()) <= :filterMaxAge)";
+			case PREGNANT_BREASTFEEDING:
+				return " AND " + GetPregnantOrBreastfeedingPatients.getCohortPredicate(patientIdColumn);
+			default:
+				return "";
+		}
+	}
+	
+	public static void setFilterParameters(Query query, SSEMRWebServicesController.filterCategory filterCategory,
 	        Date endDate) {
 		if (filterCategory == null) {
-			return true;
+			return;
 		}
 		switch (filterCategory) {
 			case CHILDREN_ADOLESCENTS:
-				return getPatientAge(patient) <= CHILDREN_ADOLESCENT_AGE;
+				query.setParameter("filterMaxAge", CHILDREN_ADOLESCENT_AGE);
+				break;
 			case PREGNANT_BREASTFEEDING:
-				return determineIfPatientIsPregnantOrBreastfeeding(patient, endDate);
+				GetPregnantOrBreastfeedingPatients.setCohortParameter(query, endDate);
+				break;
 			default:
-				return true;
+				break;
+		}
+	}
+	
+	private Set<Integer> getChildrenAndAdolescentIds() {
+		String query = "SELECT pa.patient_id FROM openmrs.patient pa "
+		        + "JOIN openmrs.person pe ON pe.person_id = pa.patient_id "
+		        + "WHERE pa.voided = 0 AND pe.birthdate IS NOT NULL "
+		        + "AND TIMESTAMPDIFF(YEAR, pe.birthdate, CURDATE()) <= :maxAge";
+		
+		Query nativeQuery = entityManager.createNativeQuery(query).setParameter("maxAge", CHILDREN_ADOLESCENT_AGE);
+		return executeIdQuery(nativeQuery, "children and adolescents");
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Set<Integer> executeIdQuery(Query query, String cohortName) {
+		try {
+			Set<Integer> patientIds = new HashSet<>();
+			for (Object id : (List<Object>) query.getResultList()) {
+				patientIds.add(((Number) id).intValue());
+			}
+			return patientIds;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing " + cohortName + " filter query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute " + cohortName + " filter query", e);
 		}
 	}
 	
@@ -4,10 +4,16 @@ import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.openmrs.Patient;
+import org.openmrs.module.ssemrws.queries.GetDatePatientBecameIIT;
+import org.openmrs.module.ssemrws.queries.GetNextAppointmentDate;
+import org.openmrs.module.ssemrws.queries.GetPatientDemographics;
+import org.openmrs.module.ssemrws.queries.GetVLDueDate;
 import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
+import org.openmrs.module.ssemrws.web.dto.PatientDemographicsDTO;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static org.openmrs.module.ssemrws.web.constants.GenerateSummary.*;
 
@@ -16,8 +22,22 @@ public class GeneratePatientListObject {
 	
 	private final GeneratePatientObject generatePatientObject;
 	
-	public GeneratePatientListObject(GeneratePatientObject generatePatientObject) {
+	private final GetPatientDemographics getPatientDemographics;
+	
+	private final GetVLDueDate getVLDueDate;
+	
+	private final GetNextAppointmentDate getNextAppointmentDate;
+	
+	private final GetDatePatientBecameIIT getDatePatientBecameIIT;
+	
+	public GeneratePatientListObject(GeneratePatientObject generatePatientObject,
+	    GetPatientDemographics getPatientDemographics, GetVLDueDate getVLDueDate,
+	    GetNextAppointmentDate getNextAppointmentDate, GetDatePatientBecameIIT getDatePatientBecameIIT) {
 		this.generatePatientObject = generatePatientObject;
+		this.getPatientDemographics = getPatientDemographics;
+		this.getVLDueDate = getVLDueDate;
+		this.getNextAppointmentDate = getNextAppointmentDate;
+		this.getDatePatientBecameIIT = getDatePatientBecameIIT;
 	}
 	
 	/**
@@ -41,8 +61,17 @@ public class GeneratePatientListObject {
 		Calendar endCal = Calendar.getInstance();
 		endCal.setTime(endDate);
 		
+		// Prefetch demographics, VL due dates, appointments and IIT dates for the whole page
+		List<Integer> patientIds = allPatients.stream().map(Patient::getPatientId).collect(Collectors.toList());
+		Map<Integer, PatientDemographicsDTO> demographics = getPatientDemographics.getDemographics(patientIds);
+		Map<Integer, String> vlDueDates = getVLDueDate.getVLDueDates(patientIds);
+		Map<Integer, String> appointmentDates = getNextAppointmentDate.getNextOrLastAppointmentDates(patientIds);
+		Map<Integer, String> iitDates = getDatePatientBecameIIT.getIitDatesForPatients(patientIds, startDate, endDate);
+		
 		for (Patient patient : allPatients) {
-			ObjectNode patientObj = generatePatientObject.generatePatientObject(startDate, endDate, filterCategory, patient);
+			ObjectNode patientObj = generatePatientObject.generatePatientObject(startDate, endDate, filterCategory, patient,
+			    demographics.get(patient.getPatientId()), vlDueDates.get(patient.getPatientId()),
+			    appointmentDates.get(patient.getPatientId()), iitDates.get(patient.getPatientId()));
 			if (patientObj != null) {
 				patientList.add(patientObj);
 				
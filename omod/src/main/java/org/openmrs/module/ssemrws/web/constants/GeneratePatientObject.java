@@ -4,39 +4,38 @@ import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import org.openmrs.Patient;
-import org.openmrs.module.ssemrws.queries.GetDatePatientBecameIIT;
 import org.openmrs.module.ssemrws.queries.GetEnrollmentDate;
-import org.openmrs.module.ssemrws.queries.GetNextAppointmentDate;
-import org.openmrs.module.ssemrws.queries.GetVLDueDate;
+import org.openmrs.module.ssemrws.queries.GetPregnantOrBreastfeedingPatients;
 import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
+import org.openmrs.module.ssemrws.web.dto.PatientDemographicsDTO;
 import org.springframework.stereotype.Component;
 
 import java.util.Date;
+import java.util.Map;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
-import static org.openmrs.module.ssemrws.constants.SharedConstants.determineIfPatientIsPregnantOrBreastfeeding;
 
 @Component
 public class GeneratePatientObject {
 	
-	private final GetNextAppointmentDate getNextAppointmentDate;
-	
-	private final GetDatePatientBecameIIT getDatePatientBecameIIT;
-	
-	private final GetVLDueDate getVLDueDate;
-	
 	private final GetEnrollmentDate getEnrollmentDate;
 	
-	public GeneratePatientObject(GetNextAppointmentDate getNextAppointmentDate,
-	    GetDatePatientBecameIIT getDatePatientBecameIIT, GetVLDueDate getVLDueDate, GetEnrollmentDate getEnrollmentDate) {
-		this.getNextAppointmentDate = getNextAppointmentDate;
-		this.getDatePatientBecameIIT = getDatePatientBecameIIT;
-		this.getVLDueDate = getVLDueDate;
+	private final GetPregnantOrBreastfeedingPatients getPregnantOrBreastfeedingPatients;
+	
+	public GeneratePatientObject(GetEnrollmentDate getEnrollmentDate,
+	    GetPregnantOrBreastfeedingPatients getPregnantOrBreastfeedingPatients) {
 		this.getEnrollmentDate = getEnrollmentDate;
+		this.getPregnantOrBreastfeedingPatients = getPregnantOrBreastfeedingPatients;
 	}
 	
+	/**
+	 * Builds the list row for a patient. Names, identifiers, addresses, phone attributes, the VL due
+	 * date, the appointment date and the IIT date are taken from the data prefetched for the whole
+	 * page.
+	 */
 	public ObjectNode generatePatientObject(Date startDate, Date endDate,
-	        SSEMRWebServicesController.filterCategory filterCategory, Patient patient) {
+	        SSEMRWebServicesController.filterCategory filterCategory, Patient patient, PatientDemographicsDTO demographics,
+	        String vlDueDate, String artAppointmentDate, String iitDate) {
 		ObjectNode patientObj = JsonNodeFactory.instance.objectNode();
 		String artRegimen = getARTRegimen(patient);
 		String dateEnrolled = getEnrolmentDate(patient);
@@ -45,29 +44,28 @@ public class GeneratePatientObject {
 		String datePatientTransferredOut = getDateTransferredOut(patient);
 		String dateReturnedToTreatment = getReturnToTreatmentDate(patient);
 		String lastRefillDate = getLastRefillDate(patient);
-		String artAppointmentDate = getNextAppointmentDate.getNextArtAppointmentDate(patient);
-		String iitDate = String.valueOf(getDatePatientBecameIIT.getIitDateForPatient(patient, startDate, endDate));
-		String vlDueDate = getVLDueDate.getVLDueDate(patient);
 		String chwName = getCHWName(patient);
 		String chwPhone = getCHWPhone(patient);
-		String contact = patient.getAttribute("Client Telephone Number") != null
-		        ? String.valueOf(patient.getAttribute("Client Telephone Number"))
-		        : "";
-		String alternateContact = patient.getAttribute("AltTelephoneNo") != null
-		        ? String.valueOf(patient.getAttribute("AltTelephoneNo"))
-		        : "";
+		String contact = demographics.getContact();
+		String alternateContact = demographics.getAlternateContact();
 		
 		// Calculate age in years based on patient's birthdate and current date
 		Date birthdate = patient.getBirthdate();
 		Date currentDate = new Date();
 		long age = (currentDate.getTime() - birthdate.getTime()) / (1000L * 60 * 60 * 24 * 365);
 		
-		ArrayNode identifiersArray = getPatientIdentifiersArray(patient);
+		ArrayNode identifiersArray = JsonNodeFactory.instance.arrayNode();
+		for (Map<String, String> identifier : demographics.getIdentifiers()) {
+			ObjectNode identifierObj = JsonNodeFactory.instance.objectNode();
+			identifierObj.put("identifier", identifier.get("identifier"));
+			identifierObj.put("identifierType", identifier.get("identifierType"));
+			identifiersArray.add(identifierObj);
+		}
 		
-		String fullAddress = getPatientFullAddress(patient);
+		String fullAddress = "Village: " + demographics.getVillage() + ", Landmark: " + demographics.getLandmark();
 		
 		// Populate common fields
-		patientObj.put("name", patient.getPersonName() != null ? patient.getPersonName().toString() : "");
+		patientObj.put("name", demographics.getName());
 		patientObj.put("uuid", patient.getUuid());
 		patientObj.put("sex", patient.getGender());
 		patientObj.put("age", age);
@@ -98,7 +96,7 @@ public class GeneratePatientObject {
 					}
 					break;
 				case PREGNANT_BREASTFEEDING:
-					if (determineIfPatientIsPregnantOrBreastfeeding(patient, endDate)) {
+					if (getPregnantOrBreastfeedingPatients.isPregnantOrBreastfeeding(patient.getPatientId(), endDate)) {
 						return patientObj;
 					}
 					break;
@@ -1,5 +1,6 @@
 package org.openmrs.module.ssemrws.web.constants;
 
+import java.time.LocalDate;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -29,4 +30,27 @@ public class GenerateSummary {
 		
 		return summary;
 	}
+	
+	// Same monthly summary, built from daily counts instead of one date per event
+	public static Map<String, Map<String, Integer>> generateSummaryFromCounts(Map<LocalDate, Integer> dailyCounts) {
+		String[] months = new String[] { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov",
+		        "Dec" };
+		
+		int[] monthlyCounts = new int[months.length];
+		for (Map.Entry<LocalDate, Integer> dailyCount : dailyCounts.entrySet()) {
+			monthlyCounts[dailyCount.getKey().getMonthValue() - 1] += dailyCount.getValue();
+		}
+		
+		Map<String, Integer> sortedMonthlySummary = new LinkedHashMap<>();
+		for (int i = 0; i < months.length; i++) {
+			if (monthlyCounts[i] > 0) {
+				sortedMonthlySummary.put(months[i], monthlyCounts[i]);
+			}
+		}
+		
+		Map<String, Map<String, Integer>> summary = new HashMap<>();
+		summary.put("groupYear", sortedMonthlySummary);
+		
+		return summary;
+	}
 }
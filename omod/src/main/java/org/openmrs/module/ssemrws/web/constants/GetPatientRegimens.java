@@ -1,97 +1,171 @@
 package org.openmrs.module.ssemrws.web.constants;
 
 import org.openmrs.Concept;
-import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 import org.springframework.stereotype.Component;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
-import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.ACTIVE_REGIMEN_CONCEPT_UUID;
+import static org.openmrs.module.ssemrws.web.constants.RegimenConcepts.ADULT_REGIMEN_BY_UUID;
 
+/**
+ * Regimen distribution of the TX_CURR cohort. Each patient's latest active regimen as of the end
+ * date is resolved and counted per regimen in the database; the adult/child split comes from
+ * {@link RegimenConcepts#ADULT_REGIMEN_BY_UUID}. Both categories are computed together and cached
+ * briefly per period.
+ */
 @Component
 public class GetPatientRegimens {
 	
-	public Object getFilteredPatientsOnRegimenTreatment(String qStartDate, String qEndDate,
-	        List<String> adultRegimenConceptUuids, List<String> childRegimenConceptUuids, String activeRegimenConceptUuid,
-	        List<GetTxNew.PatientEnrollmentData> txCurrPatients, boolean isAdultCategory) throws ParseException {
-		
-		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
-		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
+	private static final int PATIENT_ID_BATCH_SIZE = 1000;
+	
+	// Binds :activeRegimen, :regimens, :endDate and :patientIds
+	private static final String LATEST_REGIMEN_COUNT_QUERY = "SELECT c.uuid, COUNT(*) FROM ( "
+	        + "    SELECT o.value_coded, ROW_NUMBER() OVER (PARTITION BY o.person_id "
+	        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+	        + "    JOIN openmrs.concept q ON q.concept_id = o.concept_id "
+	        + "    JOIN openmrs.concept a ON a.concept_id = o.value_coded "
+	        + "    WHERE o.voided = 0 AND q.uuid = :activeRegimen AND a.uuid IN (:regimens) "
+	        + "    AND o.obs_datetime <= :endDate AND o.person_id IN (:patientIds) " + ") x "
+	        + "JOIN openmrs.concept c ON c.concept_id = x.value_coded " + "WHERE x.rn = 1 " + "GROUP BY c.uuid";
+	
+	// Both regimen endpoints are called back to back for the same period, so one computation serves both
+	private static final long CACHE_TTL_MS = 300000;
+	
+	private static final ConcurrentHashMap<String, CachedDistribution> distributionCache = new ConcurrentHashMap<>();
+	
+	private final GetTxCurr getTxCurr;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	public GetPatientRegimens(GetTxCurr getTxCurr) {
+		this.getTxCurr = getTxCurr;
+	}
+	
+	// Inner class to store the adult and child regimen counts of a period
+	private static class RegimenDistribution {
 		
-		// Get the IDs of txCurr patients
-		Set<Integer> txCurrPatientIds = txCurrPatients.stream().map(data -> data.getPatient().getPatientId())
-		        .collect(Collectors.toSet());
+		final Map<String, Integer> adultCounts = new HashMap<>();
 		
-		// Fetch both adult and child regimen observations
-		List<Obs> adultRegimenObs = getRegimenTreatmentObservations(dates, adultRegimenConceptUuids,
-		    activeRegimenConceptUuid);
-		List<Obs> childRegimenObs = getRegimenTreatmentObservations(dates, childRegimenConceptUuids,
-		    activeRegimenConceptUuid);
+		final Map<String, Integer> childCounts = new HashMap<>();
+	}
+	
+	// Inner class to store the computation of a period's distribution and its cache time. Requests for
+	// the same period wait on the one computation instead of starting their own
+	private static class CachedDistribution {
 		
-		// Combine observations and determine the latest observation for each patient
-		Map<Integer, Obs> latestObsByPatient = getLatestObservationsAcrossCategories(txCurrPatientIds, adultRegimenObs,
-		    childRegimenObs);
+		final FutureTask<RegimenDistribution> task;
 		
-		// Filter patients based on category (adult or child)
-		Map<Integer, Obs> filteredObsByPatient = latestObsByPatient.entrySet().stream().filter(
-		    entry -> isAdultCategory == adultRegimenConceptUuids.contains(entry.getValue().getValueCoded().getUuid()))
-		        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		final long cacheTime = System.currentTimeMillis();
 		
-		// Count regimens
-		Map<String, Integer> regimenCounts = countRegimens(filteredObsByPatient);
+		CachedDistribution(FutureTask<RegimenDistribution> task) {
+			this.task = task;
+		}
 		
-		return prepareResults(regimenCounts);
+		// A computation still running stays valid, so that it is not started again
+		boolean isValid() {
+			return !task.isDone() || (System.currentTimeMillis() - cacheTime) < CACHE_TTL_MS;
+		}
 	}
 	
-	private List<Obs> getRegimenTreatmentObservations(Date[] dates, List<String> regimenConceptUuids,
-	        String activeRegimenConceptUuid) {
-		List<Concept> regimenConcepts = getConceptsByUuids(regimenConceptUuids);
-		return Context.getObsService().getObservations(null, null,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(activeRegimenConceptUuid)),
-		    regimenConcepts, null, null, null, 0, null, null, dates[1], false);
+	public Object getRegimenTreatment(String qStartDate, String qEndDate, boolean isAdultCategory)
+	        throws ParseException {
+		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
+		Date startDate = dateTimeFormatter.parse(qStartDate);
+		
+		// TX_CURR is taken as of 23:00 on the end date, the regimen as of the end of that day
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(dateTimeFormatter.parse(qEndDate));
+		calendar.add(Calendar.HOUR_OF_DAY, 23);
+		Date txCurrEndDate = calendar.getTime();
+		Date regimenEndDate = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter)[1];
+		
+		distributionCache.values().removeIf(cached -> !cached.isValid());
+		String cacheKey = qStartDate + "|" + qEndDate;
+		CachedDistribution cached = distributionCache.computeIfAbsent(cacheKey, key -> new CachedDistribution(
+		        new FutureTask<>(() -> computeRegimenDistribution(startDate, txCurrEndDate, regimenEndDate))));
+		
+		// Runs the computation on the first caller; later callers return at once and wait in get()
+		cached.task.run();
+		RegimenDistribution distribution;
+		try {
+			distribution = cached.task.get();
+		}
+		catch (ExecutionException e) {
+			// A failed computation is not cached, so the next request tries again
+			distributionCache.remove(cacheKey, cached);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Failed to compute the regimen distribution", e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the regimen distribution", e);
+		}
+		
+		return prepareResults(isAdultCategory ? distribution.adultCounts : distribution.childCounts);
 	}
 	
-	private Map<Integer, Obs> getLatestObservationsAcrossCategories(Set<Integer> txCurrPatientIds, List<Obs> adultRegimenObs,
-	        List<Obs> childRegimenObs) {
-		Map<Integer, Obs> latestObsByPatient = new HashMap<>();
-		
-		// Combine adult and child observations into one list
-		List<Obs> allObservations = new ArrayList<>();
-		allObservations.addAll(adultRegimenObs);
-		allObservations.addAll(childRegimenObs);
-		
-		// Determine the latest observation for each patient
-		for (Obs obs : allObservations) {
-			Integer patientId = obs.getPerson().getPersonId();
-			if (txCurrPatientIds.contains(patientId)) {
-				if (!latestObsByPatient.containsKey(patientId)
-				        || obs.getObsDatetime().after(latestObsByPatient.get(patientId).getObsDatetime())) {
-					latestObsByPatient.put(patientId, obs);
-				}
+	private RegimenDistribution computeRegimenDistribution(Date startDate, Date txCurrEndDate, Date regimenEndDate) {
+		Set<Integer> txCurrPatientIds = getTxCurr.getTxCurrPatientIds(startDate, txCurrEndDate);
+		
+		// Count the latest regimen of each patient once, then split the counts by category
+		RegimenDistribution distribution = new RegimenDistribution();
+		for (Map.Entry<String, Integer> entry : getLatestRegimenCounts(txCurrPatientIds, regimenEndDate).entrySet()) {
+			Concept regimenConcept = Context.getConceptService().getConceptByUuid(entry.getKey());
+			if (regimenConcept != null && regimenConcept.getName() != null) {
+				Map<String, Integer> counts = ADULT_REGIMEN_BY_UUID.get(entry.getKey()) ? distribution.adultCounts
+				        : distribution.childCounts;
+				counts.merge(regimenConcept.getName().getName(), entry.getValue(), Integer::sum);
 			}
 		}
-		
-		return latestObsByPatient;
+		return distribution;
 	}
 	
-	private Map<String, Integer> countRegimens(Map<Integer, Obs> latestObsByPatient) {
+	/**
+	 * Returns the number of patients per regimen concept uuid, taking each patient's latest adult or
+	 * child regimen observation up to the end date.
+	 */
+	public Map<String, Integer> getLatestRegimenCounts(Collection<Integer> patientIds, Date endDate) {
 		Map<String, Integer> regimenCounts = new HashMap<>();
-		for (Obs obs : latestObsByPatient.values()) {
-			if (obs != null) {
-				Concept regimenConcept = obs.getValueCoded();
-				if (regimenConcept != null && regimenConcept.getName() != null) {
-					String conceptName = regimenConcept.getName().getName();
-					regimenCounts.put(conceptName, regimenCounts.getOrDefault(conceptName, 0) + 1);
-				}
+		List<Integer> ids = new ArrayList<>(patientIds);
+		for (int i = 0; i < ids.size(); i += PATIENT_ID_BATCH_SIZE) {
+			List<Integer> batchIds = ids.subList(i, Math.min(i + PATIENT_ID_BATCH_SIZE, ids.size()));
+			
+			Query query = entityManager.createNativeQuery(LATEST_REGIMEN_COUNT_QUERY)
+			        .setParameter("activeRegimen", ACTIVE_REGIMEN_CONCEPT_UUID)
+			        .setParameter("regimens", ADULT_REGIMEN_BY_UUID.keySet()).setParameter("endDate", endDate)
+			        .setParameter("patientIds", batchIds);
+			
+			for (Object[] row : executeQuery(query)) {
+				regimenCounts.merge((String) row[0], ((Number) row[1]).intValue(), Integer::sum);
 			}
 		}
 		return regimenCounts;
 	}
 	
+	@SuppressWarnings("unchecked")
+	private List<Object[]> executeQuery(Query query) {
+		try {
+			return (List<Object[]>) query.getResultList();
+		}
+		catch (Exception e) {
+			System.err.println("Error executing latest regimen query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute latest regimen query", e);
+		}
+	}
+	
 	private Map<String, Object> prepareResults(Map<String, Integer> regimenCounts) {
 		Map<String, Object> results = new HashMap<>();
 		List<Map<String, Object>> regimenList = new ArrayList<>();
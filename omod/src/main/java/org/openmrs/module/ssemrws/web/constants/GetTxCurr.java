@@ -2,10 +2,9 @@ package org.openmrs.module.ssemrws.web.constants;
 
 import org.openmrs.*;
 import org.openmrs.module.ssemrws.queries.*;
+import org.openmrs.module.ssemrws.web.controller.SSEMRWebServicesController;
 import org.springframework.stereotype.Component;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 @Component
@@ -25,31 +24,57 @@ public class GetTxCurr {
 	}
 	
 	public List<GetTxNew.PatientEnrollmentData> getTxCurrPatients(Date startDate, Date endDate) {
-		HashSet<Patient> txCurrPatients = getTxCurrQueries.getTxCurr(endDate);
+		return getTxCurrPatients(startDate, endDate, null);
+	}
+	
+	public List<GetTxNew.PatientEnrollmentData> getTxCurrPatients(Date startDate, Date endDate,
+	        SSEMRWebServicesController.filterCategory filterCategory) {
+		HashSet<Patient> txCurrPatients = getTxCurrQueries.getTxCurr(endDate, filterCategory);
+		
+		Set<Integer> interruptedInTreatmentIds = new HashSet<>(getInterruptedInTreatment.getIitIds(startDate, endDate, null));
 		
-		HashSet<Patient> interruptedInTreatmentPatients = getInterruptedInTreatment.getIit(startDate, endDate);
+		txCurrPatients.removeIf(patient -> interruptedInTreatmentIds.contains(patient.getPatientId()));
 		
-		txCurrPatients.removeAll(interruptedInTreatmentPatients);
+		// Resolve the ART start dates of the remaining patients at once
+		List<Integer> txCurrPatientIds = new ArrayList<>();
+		for (Patient patient : txCurrPatients) {
+			txCurrPatientIds.add(patient.getPatientId());
+		}
+		Map<Integer, Date> artStartDates = getEnrollmentDate.getARTStartDates(txCurrPatientIds, endDate);
 		
 		// Transform patients into PatientEnrollmentData objects
 		List<GetTxNew.PatientEnrollmentData> filteredClients = new ArrayList<>();
 		for (Patient patient : txCurrPatients) {
-			String artStartDateString = getEnrollmentDate.getARTStartDate(patient, endDate);
-			if (artStartDateString != null && !artStartDateString.isEmpty()) {
-				try {
-					Date artStartDate = new SimpleDateFormat("dd-MM-yyyy").parse(artStartDateString);
-					if (!artStartDate.after(endDate)) {
-						GetTxNew.PatientEnrollmentData patientData = new GetTxNew.PatientEnrollmentData(patient,
-						        artStartDate);
-						filteredClients.add(patientData);
-					}
-				}
-				catch (ParseException e) {
-					System.err.println("Failed to parse ART start date for patient " + patient.getPatientId());
-				}
+			Date artStartDate = artStartDates.get(patient.getPatientId());
+			if (artStartDate != null && !artStartDate.after(endDate)) {
+				filteredClients.add(new GetTxNew.PatientEnrollmentData(patient, artStartDate));
 			}
 		}
 		
 		return filteredClients;
 	}
+	
+	/**
+	 * The TX_CURR patient ids of the period, with the same rules as
+	 * {@link #getTxCurrPatients(Date, Date)} but without loading any Patient.
+	 */
+	public Set<Integer> getTxCurrPatientIds(Date startDate, Date endDate) {
+		return getTxCurrPatientIds(getTxCurrQueries.executeTxCurrQuery(endDate),
+		    getInterruptedInTreatment.getIitIds(startDate, endDate, null), endDate);
+	}
+	
+	/**
+	 * TX_CURR from an already evaluated candidate cohort ({@link GetTxCurrQueries#executeTxCurrQuery})
+	 * and IIT cohort, for callers that need both cohorts themselves.
+	 */
+	public Set<Integer> getTxCurrPatientIds(Collection<Integer> candidateIds, Collection<Integer> iitIds, Date endDate) {
+		Set<Integer> txCurrPatientIds = new LinkedHashSet<>(candidateIds);
+		txCurrPatientIds.removeAll(new HashSet<>(iitIds));
+		
+		Map<Integer, Date> artStartDates = getEnrollmentDate.getARTStartDates(txCurrPatientIds, endDate);
+		txCurrPatientIds.removeIf(patientId -> artStartDates.get(patientId) == null
+		        || artStartDates.get(patientId).after(endDate));
+		
+		return txCurrPatientIds;
+	}
 }
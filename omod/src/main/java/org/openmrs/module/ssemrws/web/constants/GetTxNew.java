@@ -14,30 +14,38 @@ import static org.openmrs.module.ssemrws.web.constants.AllConcepts.DATE_OF_ENROL
 public class GetTxNew {
 	
 	public static List<PatientEnrollmentData> getFilteredEnrolledPatients(Date startDate, Date endDate) {
+		List<PatientEnrollmentData> filteredClients = new ArrayList<>();
+		for (Map.Entry<Integer, Date> entry : getEnrollmentDates().entrySet()) {
+			Date enrollmentDate = entry.getValue();
+			
+			// Include patient if the enrollment date falls within the provided date range
+			if (!enrollmentDate.before(startDate) && !enrollmentDate.after(endDate)) {
+				Patient patient = Context.getPatientService().getPatient(entry.getKey());
+				filteredClients.add(new PatientEnrollmentData(patient, enrollmentDate));
+			}
+		}
+		
+		return filteredClients;
+	}
+	
+	// The enrollment date of each patient, taken from their most recent enrollment date obs, which the
+	// ObsService lists first. GetEnrollmentDate.getNewlyEnrolledPatientIds reads the same date in SQL
+	private static Map<Integer, Date> getEnrollmentDates() {
 		List<Obs> enrollmentDateObs = Context.getObsService().getObservations(null, null,
 		    Collections.singletonList(Context.getConceptService().getConceptByUuid(DATE_OF_ENROLLMENT_UUID)), null, null,
 		    null, null, 0, null, null, null, false);
 		
-		Set<Integer> uniquePatientIds = new HashSet<>();
-		List<PatientEnrollmentData> filteredClients = new ArrayList<>();
-		
+		Map<Integer, Date> enrollmentDates = new LinkedHashMap<>();
 		for (Obs obs : enrollmentDateObs) {
 			Date enrollmentDate = obs.getValueDate();
 			Person person = obs.getPerson();
 			
 			// Check if the person is a patient and add if they haven't been added before
-			if (enrollmentDate != null && person.isPatient() && uniquePatientIds.add(person.getId())) {
-				Patient patient = Context.getPatientService().getPatient(person.getId());
-				PatientEnrollmentData patientData = new PatientEnrollmentData(patient, enrollmentDate);
-				
-				// Include patient if the enrollment date falls within the provided date range
-				if (!enrollmentDate.before(startDate) && !enrollmentDate.after(endDate)) {
-					filteredClients.add(patientData);
-				}
+			if (enrollmentDate != null && person.isPatient() && !enrollmentDates.containsKey(person.getId())) {
+				enrollmentDates.put(person.getId(), enrollmentDate);
 			}
 		}
-		
-		return filteredClients;
+		return enrollmentDates;
 	}
 	
 	// Helper class to hold patient and enrollment date information
@@ -1,8 +1,6 @@
 package org.openmrs.module.ssemrws.web.constants;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 public class RegimenConcepts {
 	
@@ -113,4 +111,27 @@ public class RegimenConcepts {
 	            "140ede93-5691-463b-9d17-2dc8834621f8", "06017ac1-2ce8-4689-a3bf-4e9f3d54978f",
 	            "2c0a5b91-7b2a-4f8e-86fd-a8007841fca8", "50b60d77-186d-4a0d-8784-659ee2d60ec9",
 	            "78e49624-0e33-4374-93b7-60b132b26dae"));
+	
+	public static final List<String> ADULT_REGIMENS = Collections.unmodifiableList(Arrays.asList(regimen_1A, regimen_1B,
+	    regimen_1C, regimen_1D, regimen_1E, regimen_1F, regimen_1G, regimen_1H, regimen_1J, regimen_2A, regimen_2B,
+	    regimen_2C, regimen_2D, regimen_2E, regimen_2F, regimen_2G, regimen_2H, regimen_2I, regimen_2J, regimen_2K));
+	
+	public static final List<String> CHILD_REGIMENS = Collections.unmodifiableList(Arrays.asList(regimen_4A, regimen_4B,
+	    regimen_4C, regimen_4D, regimen_4E, regimen_4F, regimen_4G, regimen_4H, regimen_4I, regimen_4J, regimen_4K,
+	    regimen_4L, regimen_5A, regimen_5B, regimen_5C, regimen_5D, regimen_5E, regimen_5F, regimen_5G, regimen_5H,
+	    regimen_5I, regimen_5J));
+	
+	// Regimen concept uuid to whether it is an adult (true) or child (false) regimen
+	public static final Map<String, Boolean> ADULT_REGIMEN_BY_UUID;
+	
+	static {
+		Map<String, Boolean> adultRegimenByUuid = new HashMap<>();
+		for (String uuid : ADULT_REGIMENS) {
+			adultRegimenByUuid.put(uuid, true);
+		}
+		for (String uuid : CHILD_REGIMENS) {
+			adultRegimenByUuid.put(uuid, false);
+		}
+		ADULT_REGIMEN_BY_UUID = Collections.unmodifiableMap(adultRegimenByUuid);
+	}
 }
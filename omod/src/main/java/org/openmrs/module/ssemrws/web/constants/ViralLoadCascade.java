@@ -1,27 +1,50 @@
 package org.openmrs.module.ssemrws.web.constants;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.openmrs.Concept;
-import org.openmrs.Encounter;
-import org.openmrs.Obs;
-import org.openmrs.Patient;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.GetPatientExits;
+import org.openmrs.module.ssemrws.queries.GetRegimenSwitches;
+import org.openmrs.module.ssemrws.web.dto.RegimenSwitchDTO;
+import org.springframework.stereotype.Component;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.function.BiConsumer;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
 import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
 
+@Component
 public class ViralLoadCascade {
 	
-	private static final Log log = LogFactory.getLog(ViralLoadCascade.class);
+	// Date concepts of the cascade stages, pivoted for the whole high viral load cohort at once
+	private static final List<String> CASCADE_DATE_CONCEPTS = Arrays.asList(FIRST_EAC_DATE_UUID, SECOND_EAC_DATE_UUID,
+	    THIRD_EAC_DATE_UUID, EXTENDED_EAC_DATE_UUID, REPEAT_VIRAL_LOAD_DATE, ART_FIRST_LINE_SWITCH_DATE,
+	    ART_SECOND_LINE_SWITCH_DATE);
 	
-	private static final ThreadLocal<SimpleDateFormat> formatter = ThreadLocal
-	        .withInitial(() -> new SimpleDateFormat("yyyy-MM-dd"));
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	private final GetPatientExits getPatientExits;
+	
+	private final GetRegimenSwitches getRegimenSwitches;
+	
+	public ViralLoadCascade(GetPatientExits getPatientExits, GetRegimenSwitches getRegimenSwitches) {
+		this.getPatientExits = getPatientExits;
+		this.getRegimenSwitches = getRegimenSwitches;
+	}
+	
+	// Inner class to store the cascade cohorts of one request
+	private static class CascadeContext {
+		
+		Set<Integer> highViralLoad = new HashSet<>();
+		
+		Set<Integer> persistentHighViralLoad = new HashSet<>();
+		
+		Set<Integer> artSwitch = new HashSet<>();
+		
+		Set<Integer> secondLineSwitch = new HashSet<>();
+	}
 	
 	/**
 	 * This method calculates the viral load cascade for the ART dashboard. It retrieves the necessary
@@ -30,86 +53,26 @@ public class ViralLoadCascade {
 	 * 
 	 * @param qStartDate The start date for the viral load cascade in the format "yyyy-MM-dd".
 	 * @param qEndDate The end date for the viral load cascade in the format "yyyy-MM-dd".
-	 * @param vlCascadeConceptUuids A list of UUIDs representing the concepts related to the viral load
-	 *            cascade.
-	 * @param eacSessionConceptUuid The UUID of the concept representing the EAC session.
 	 * @return A JSON object containing the results of the viral load cascade.
 	 * @throws ParseException If the start or end date cannot be parsed.
 	 */
-	public static Object getViralLoadCascade(String qStartDate, String qEndDate, List<String> vlCascadeConceptUuids,
-	        String eacSessionConceptUuid) throws ParseException {
+	public Object getViralLoadCascade(String qStartDate, String qEndDate) throws ParseException {
 		
 		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 		
-		List<String> viralLoadCascadeEncounterTypeUuids = Arrays.asList(HIGH_VL_ENCOUNTERTYPE_UUID,
-		    FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-		
-		List<Encounter> viralLoadCascadeEncounters = getEncountersByEncounterTypes(viralLoadCascadeEncounterTypeUuids,
-		    dates[0], dates[1]);
-		
-		List<Concept> viralLoadCascadeConcepts = getConceptsByUuids(vlCascadeConceptUuids);
+		CascadeContext context = loadCascadeContext(dates[0], dates[1]);
+		Set<Integer> highViralLoadIds = context.highViralLoad;
 		
-		List<Obs> viralLoadCascadeObs = Context.getObsService().getObservations(null, viralLoadCascadeEncounters,
-		    Collections.singletonList(Context.getConceptService().getConceptByUuid(eacSessionConceptUuid)),
-		    viralLoadCascadeConcepts, null, null, null, null, null, dates[0], dates[1], false);
-		
-		Map<String, Integer> viralLoadCascadeCounts = new HashMap<>();
-		
-		Set<Patient> patientsWithHighViralLoad = getPatientsWithHighVL(dates[0], dates[1]);
-		Set<Patient> patientsWithRepeatedVL = getPatientsWithRepeatedVL(dates[0], dates[1]);
-		Set<Patient> patientsWithPersistentHighVL = getPatientsWithPersistentHighVL(dates[0], dates[1]);
-		Set<Patient> patientsWithARTSwitch = getPatientsWithSwitchART(dates[0], dates[1]);
-		Set<Patient> patientsWithSecondLineSwitch = getPatientsWithSecondLineSwitchART(dates[0], dates[1]);
-		
-		// Maps to track observation dates for each patient
-		Map<Patient, Date> firstEACDates = new HashMap<>();
-		Map<Patient, Date> secondEACDates = new HashMap<>();
-		Map<Patient, Date> thirdEACDates = new HashMap<>();
-		Map<Patient, Date> extendedEACDates = new HashMap<>();
-		Map<Patient, Date> repeatVLCollectedDates = new HashMap<>();
-		Map<Patient, Date> persistentHVLDates = new HashMap<>();
-		Map<Patient, Date> artSwitchDates = new HashMap<>();
-		Map<Patient, Date> artSwitchSecondLineDates = new HashMap<>();
-		
-		for (Patient patient : patientsWithHighViralLoad) {
-			Map<String, Date> patientDates = getAllRelevantDates(patient);
-			
-			Date firstEACDate = patientDates.get("firstEACDate");
-			if (firstEACDate != null)
-				firstEACDates.put(patient, firstEACDate);
-			
-			Date secondEACDate = patientDates.get("secondEACDate");
-			if (secondEACDate != null)
-				secondEACDates.put(patient, secondEACDate);
-			
-			Date thirdEACDate = patientDates.get("thirdEACDate");
-			if (thirdEACDate != null)
-				thirdEACDates.put(patient, thirdEACDate);
-			
-			Date extendedEACDate = patientDates.get("extendedEACDate");
-			if (extendedEACDate != null)
-				extendedEACDates.put(patient, extendedEACDate);
-			
-			Date repeatVLDate = patientDates.get("repeatVLDate");
-			if (repeatVLDate != null)
-				repeatVLCollectedDates.put(patient, repeatVLDate);
-			
-			Date switchArt = patientDates.get("artSwitchDate");
-			if (switchArt != null)
-				artSwitchDates.put(patient, switchArt);
-			
-			Date secondLineSwitchArt = patientDates.get("secondLineSwitchArt");
-			if (secondLineSwitchArt != null)
-				artSwitchSecondLineDates.put(patient, secondLineSwitchArt);
-		}
-		
-		// Log the counts and dates for each session
-		logPatientDates("First EAC Session", firstEACDates);
-		logPatientDates("Second EAC Session", secondEACDates);
-		logPatientDates("Third EAC Session", thirdEACDates);
-		logPatientDates("Extended EAC Session", extendedEACDates);
-		logPatientDates("Repeat Viral Load", repeatVLCollectedDates);
+		// Latest date of each stage for every high viral load patient, from one query
+		Map<String, Map<Integer, Date>> cascadeDates = getCascadeDates(highViralLoadIds);
+		Map<Integer, Date> firstEACDates = cascadeDates.get(FIRST_EAC_DATE_UUID);
+		Map<Integer, Date> secondEACDates = cascadeDates.get(SECOND_EAC_DATE_UUID);
+		Map<Integer, Date> thirdEACDates = cascadeDates.get(THIRD_EAC_DATE_UUID);
+		Map<Integer, Date> extendedEACDates = cascadeDates.get(EXTENDED_EAC_DATE_UUID);
+		Map<Integer, Date> repeatVLCollectedDates = cascadeDates.get(REPEAT_VIRAL_LOAD_DATE);
+		Map<Integer, Date> artSwitchDates = cascadeDates.get(ART_FIRST_LINE_SWITCH_DATE);
+		Map<Integer, Date> artSwitchSecondLineDates = cascadeDates.get(ART_SECOND_LINE_SWITCH_DATE);
 		
 		// Calculate total turnaround times
 		double totalFirstToSecond = calculateTotalTurnaroundTime(firstEACDates, secondEACDates);
@@ -118,16 +81,16 @@ public class ViralLoadCascade {
 		double totalExtendedToRepeatVL = calculateTotalTurnaroundTime(extendedEACDates, repeatVLCollectedDates);
 		
 		// Calculate counts based on hierarchical structure
-		int highViralLoadCount = patientsWithHighViralLoad.size();
-		int firstEACCount = (int) firstEACDates.keySet().stream().filter(patientsWithHighViralLoad::contains).count();
+		int highViralLoadCount = highViralLoadIds.size();
+		int firstEACCount = (int) firstEACDates.keySet().stream().filter(highViralLoadIds::contains).count();
 		int secondEACCount = (int) secondEACDates.keySet().stream().filter(firstEACDates::containsKey).count();
 		int thirdEACCount = (int) thirdEACDates.keySet().stream().filter(secondEACDates::containsKey).count();
 		int extendedEACCount = (int) extendedEACDates.keySet().stream().filter(thirdEACDates::containsKey).count();
 		int repeatVLCount = (int) repeatVLCollectedDates.keySet().stream().filter(extendedEACDates::containsKey).count();
-		int persistentHighVLCount = (int) patientsWithPersistentHighVL.stream().filter(repeatVLCollectedDates::containsKey)
-		        .count();
-		int artSwitchCount = (int) patientsWithARTSwitch.stream().filter(artSwitchDates::containsKey).count();
-		int secondLineSwitchCount = (int) patientsWithSecondLineSwitch.stream().filter(artSwitchSecondLineDates::containsKey)
+		int persistentHighVLCount = (int) context.persistentHighViralLoad.stream()
+		        .filter(repeatVLCollectedDates::containsKey).count();
+		int artSwitchCount = (int) context.artSwitch.stream().filter(artSwitchDates::containsKey).count();
+		int secondLineSwitchCount = (int) context.secondLineSwitch.stream().filter(artSwitchSecondLineDates::containsKey)
 		        .count();
 		
 		// Combine the results
@@ -158,14 +121,6 @@ public class ViralLoadCascade {
 		return results;
 	}
 	
-	private static void logPatientDates(String sessionName, Map<Patient, Date> sessionDates) {
-		System.out.println("==== " + sessionName + " ====");
-		System.out.println("Total Patients: " + sessionDates.size());
-		sessionDates.forEach((patient, date) -> {
-			System.out.println("Patient: " + patient.getPatientIdentifier() + ", Date: " + date);
-		});
-	}
-	
 	private static void addCascadeEntry(List<Map<String, Object>> list, String text, int count, int previousCount,
 	        double averageTurnaroundTime, boolean isBaseCount) {
 		Map<String, Object> entry = new LinkedHashMap<>();
@@ -177,14 +132,14 @@ public class ViralLoadCascade {
 		list.add(entry);
 	}
 	
-	private static double calculateTotalTurnaroundTime(Map<Patient, Date> startDates, Map<Patient, Date> endDates) {
+	private static double calculateTotalTurnaroundTime(Map<Integer, Date> startDates, Map<Integer, Date> endDates) {
 		double totalTurnaroundTime = 0.0;
 		int count = 0;
 		
-		for (Map.Entry<Patient, Date> entry : startDates.entrySet()) {
-			Patient patient = entry.getKey();
+		for (Map.Entry<Integer, Date> entry : startDates.entrySet()) {
+			Integer patientId = entry.getKey();
 			Date startDate = entry.getValue();
-			Date endDate = endDates.get(patient);
+			Date endDate = endDates.get(patientId);
 			
 			if (endDate != null) {
 				long timeDifference = endDate.getTime() - startDate.getTime();
@@ -205,22 +160,103 @@ public class ViralLoadCascade {
 		return totalTime / count;
 	}
 	
-	private static Map<String, Date> getAllRelevantDates(Patient patient) {
-		Map<String, Date> dates = new HashMap<>();
+	/**
+	 * Loads the cascade cohorts for the period from one aggregate query over the follow-up and high
+	 * viral load encounters, flagging each patient per stage with the same rules as the
+	 * {@code SharedConstants} cohort methods, and the ART switch stages from one regimen switch query.
+	 * Deceased and transferred out patients are resolved once and removed from the high viral load
+	 * stages.
+	 */
+	@SuppressWarnings("unchecked")
+	private CascadeContext loadCascadeContext(Date startDate, Date endDate) {
+		String query = "SELECT o.person_id, "
+		        + "MAX(CASE WHEN et.uuid = :followUpEncounterType AND c.uuid = :vlConcept "
+		        + "    AND o.value_numeric >= :threshold THEN 1 ELSE 0 END) AS high_vl, "
+		        + "MAX(CASE WHEN et.uuid = :highVlEncounterType AND c.uuid = :repeatVlResultsConcept "
+		        + "    AND o.value_numeric >= :threshold THEN 1 ELSE 0 END) AS persistent_high_vl "
+		        + "FROM openmrs.obs o "
+		        + "JOIN openmrs.encounter e ON e.encounter_id = o.encounter_id AND e.voided = 0 "
+		        + "JOIN openmrs.encounter_type et ON et.encounter_type_id = e.encounter_type "
+		        + "JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "JOIN openmrs.patient pa ON pa.patient_id = o.person_id AND pa.voided = 0 "
+		        + "WHERE o.voided = 0 AND et.uuid IN (:followUpEncounterType, :highVlEncounterType) "
+		        + "AND c.uuid IN (:vlConcept, :repeatVlResultsConcept) "
+		        + "AND e.encounter_datetime BETWEEN :startDate AND :endDate "
+		        + "AND o.obs_datetime BETWEEN :startDate AND :endDate " + "GROUP BY o.person_id";
 		
+		CascadeContext context = new CascadeContext();
 		try {
-			dates.put("firstEACDate", getFirstEACDate(patient));
-			dates.put("secondEACDate", getSecondEACDate(patient));
-			dates.put("thirdEACDate", getThirdEACDate(patient));
-			dates.put("extendedEACDate", getExtendedEACDate(patient));
-			dates.put("repeatVLDate", getRepeatVLDate(patient));
-			dates.put("artSwitchDate", getARTFirstLineSwitchDate(patient));
-			dates.put("secondLineSwitchArt", getARTSecondLineSwitchDate(patient));
+			List<Object[]> rows = entityManager.createNativeQuery(query)
+			        .setParameter("followUpEncounterType", FOLLOW_UP_FORM_ENCOUNTER_TYPE)
+			        .setParameter("highVlEncounterType", HIGH_VL_ENCOUNTERTYPE_UUID)
+			        .setParameter("vlConcept", VIRAL_LOAD_CONCEPT_UUID)
+			        .setParameter("repeatVlResultsConcept", REPEAT_VL_RESULTS)
+			        .setParameter("threshold", THRESHOLD).setParameter("startDate", startDate)
+			        .setParameter("endDate", endDate).getResultList();
+			
+			for (Object[] row : rows) {
+				Integer patientId = ((Number) row[0]).intValue();
+				if (((Number) row[1]).intValue() == 1) {
+					context.highViralLoad.add(patientId);
+				}
+				if (((Number) row[2]).intValue() == 1) {
+					context.persistentHighViralLoad.add(patientId);
+				}
+			}
 		}
 		catch (Exception e) {
-			log.error("Error retrieving dates for patient " + patient.getPatientIdentifier() + ": " + e.getMessage(), e);
+			System.err.println("Error executing viral load cascade query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute viral load cascade query", e);
 		}
 		
-		return dates;
+		// Switches compare each regimen with the previous one, so they come from their own ordered query
+		List<RegimenSwitchDTO> switches = getRegimenSwitches.getRegimenSwitches(startDate, endDate);
+		context.artSwitch = GetRegimenSwitches.getSwitchedPatientIds(switches, false);
+		context.secondLineSwitch = GetRegimenSwitches.getSwitchedPatientIds(switches, true);
+		
+		Set<Integer> exitedPatientIds = new HashSet<>(getPatientExits.getDeceasedPatientIds(endDate));
+		exitedPatientIds.addAll(getPatientExits.getTransferredOutPatientIds(endDate));
+		context.highViralLoad.removeAll(exitedPatientIds);
+		context.persistentHighViralLoad.removeAll(exitedPatientIds);
+		
+		return context;
+	}
+	
+	/**
+	 * Pivots the latest value of each cascade date concept for the given patients out of a single obs
+	 * query, keyed by concept uuid and then by patient id. As with {@code getDateByConcept}, the latest
+	 * observation of each concept is taken, and patients without a date are left out.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Map<Integer, Date>> getCascadeDates(Set<Integer> patientIds) {
+		Map<String, Map<Integer, Date>> cascadeDates = new HashMap<>();
+		for (String conceptUuid : CASCADE_DATE_CONCEPTS) {
+			cascadeDates.put(conceptUuid, new HashMap<>());
+		}
+		if (patientIds.isEmpty()) {
+			return cascadeDates;
+		}
+		
+		String query = "SELECT ranked.person_id, ranked.concept_uuid, ranked.value_datetime FROM ( "
+		        + "    SELECT o.person_id, c.uuid AS concept_uuid, o.value_datetime, "
+		        + "    ROW_NUMBER() OVER (PARTITION BY o.person_id, o.concept_id "
+		        + "        ORDER BY o.obs_datetime DESC, o.obs_id DESC) AS rn " + "    FROM openmrs.obs o "
+		        + "    JOIN openmrs.concept c ON c.concept_id = o.concept_id "
+		        + "    WHERE o.voided = 0 AND c.uuid IN (:conceptUuids) AND o.person_id IN (:patientIds) "
+		        + ") ranked WHERE ranked.rn = 1 AND ranked.value_datetime IS NOT NULL";
+		
+		try {
+			List<Object[]> rows = entityManager.createNativeQuery(query)
+			        .setParameter("conceptUuids", CASCADE_DATE_CONCEPTS).setParameter("patientIds", patientIds)
+			        .getResultList();
+			for (Object[] row : rows) {
+				cascadeDates.get((String) row[1]).put(((Number) row[0]).intValue(), (Date) row[2]);
+			}
+			return cascadeDates;
+		}
+		catch (Exception e) {
+			System.err.println("Error executing viral load cascade dates query: " + e.getMessage());
+			throw new RuntimeException("Failed to execute viral load cascade dates query", e);
+		}
 	}
 }
@@ -0,0 +1,240 @@
+package org.openmrs.module.ssemrws.web.constants;
+
+import org.openmrs.User;
+import org.openmrs.api.context.BasicAuthenticated;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Credentials;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.ssemrws.queries.*;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Builds the waterfall analysis chart from one set of patient id cohorts. The independent cohorts
+ * are evaluated concurrently on the component's executor, each worker in its own OpenMRS session and
+ * user context authenticated as the caller. TX_CURR is then derived from its candidate and IIT
+ * cohorts, and the IIT patients are split by months on treatment from one bulk initiation date
+ * lookup.
+ */
+@Component
+public class WaterfallAnalysis {
+	
+	private static final int IIT_MONTHS_ON_TREATMENT = 3;
+	
+	private static final int COHORT_THREADS = 4;
+	
+	private static final String COHORT_AUTHENTICATION_SCHEME = "ssemrws-waterfall-cohort";
+	
+	private final GetTxCurr getTxCurr;
+	
+	private final GetTxCurrQueries getTxCurrQueries;
+	
+	private final GetInterruptedInTreatment getInterruptedInTreatment;
+	
+	private final GetEnrollmentDate getEnrollmentDate;
+	
+	private final GetPatientExits getPatientExits;
+	
+	private final GetEncounterObs getEncounterObs;
+	
+	private final GetTransferredIn getTransferredIn;
+	
+	private final ThreadPoolTaskExecutor cohortExecutor = new ThreadPoolTaskExecutor();
+	
+	public WaterfallAnalysis(GetTxCurr getTxCurr, GetTxCurrQueries getTxCurrQueries,
+	    GetInterruptedInTreatment getInterruptedInTreatment, GetEnrollmentDate getEnrollmentDate,
+	    GetPatientExits getPatientExits, GetEncounterObs getEncounterObs, GetTransferredIn getTransferredIn) {
+		this.getTxCurr = getTxCurr;
+		this.getTxCurrQueries = getTxCurrQueries;
+		this.getInterruptedInTreatment = getInterruptedInTreatment;
+		this.getEnrollmentDate = getEnrollmentDate;
+		this.getPatientExits = getPatientExits;
+		this.getEncounterObs = getEncounterObs;
+		this.getTransferredIn = getTransferredIn;
+		
+		cohortExecutor.setCorePoolSize(COHORT_THREADS);
+		cohortExecutor.setMaxPoolSize(COHORT_THREADS);
+		cohortExecutor.setThreadNamePrefix("ssemrws-waterfall-cohort-");
+		cohortExecutor.setDaemon(true);
+		cohortExecutor.initialize();
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		cohortExecutor.shutdown();
+	}
+	
+	// Credentials of a cohort worker, which authenticates as the user of the request it serves
+	private static class CohortCredentials implements Credentials {
+		
+		@Override
+		public String getAuthenticationScheme() {
+			return COHORT_AUTHENTICATION_SCHEME;
+		}
+		
+		@Override
+		public String getClientName() {
+			return COHORT_AUTHENTICATION_SCHEME;
+		}
+	}
+	
+	// Inner class to store the waterfall cohorts of one request
+	private static class WaterfallContext {
+		
+		Set<Integer> txCurr;
+		
+		Set<Integer> newlyEnrolled;
+		
+		Set<Integer> transferredIn;
+		
+		Set<Integer> returnedToTreatment;
+		
+		Set<Integer> transferredOut;
+		
+		Set<Integer> deceased;
+		
+		List<Integer> interruptedInTreatment;
+	}
+	
+	public Object getWaterfallAnalysisChart(String qStartDate, String qEndDate) throws ParseException {
+		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
+		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
+		
+		WaterfallContext context = loadWaterfallContext(dates[0], dates[1]);
+		
+		int totalActiveClients = context.txCurr.size();
+		int txNewThirdMonth = context.newlyEnrolled.size();
+		int transferInCurrentQuarter = context.transferredIn.size();
+		int txRttCurrentQuarter = context.returnedToTreatment.size();
+		int transferOutCurrentQuarter = context.transferredOut.size();
+		int txDeathCurrentQuarter = context.deceased.size();
+		
+		// Split IIT by months on treatment, counted from the initiation date to today
+		int txMlIitLessThan3MoCurrentQuarter = 0;
+		int txMlIitMoreThan3MoCurrentQuarter = 0;
+		LocalDate currentDate = LocalDate.now();
+		for (Date initiationDate : getEnrollmentDate.getInitiationDates(context.interruptedInTreatment).values()) {
+			LocalDate initiationLocalDate = initiationDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+			if (ChronoUnit.MONTHS.between(initiationLocalDate, currentDate) >= IIT_MONTHS_ON_TREATMENT) {
+				txMlIitMoreThan3MoCurrentQuarter++;
+			} else {
+				txMlIitLessThan3MoCurrentQuarter++;
+			}
+		}
+		
+		int txCurrPreviousQuarter = totalActiveClients - txNewThirdMonth - transferInCurrentQuarter - txRttCurrentQuarter;
+		
+		int potentialTxCurr = txNewThirdMonth + txCurrPreviousQuarter + transferInCurrentQuarter + txRttCurrentQuarter;
+		
+		List<Map<String, Object>> waterfallAnalysisList = new ArrayList<>();
+		waterfallAnalysisList.add(createResultMap("TX_CURR", txCurrPreviousQuarter));
+		waterfallAnalysisList.add(createResultMap("TX_NEW", txNewThirdMonth));
+		waterfallAnalysisList.add(createResultMap("Transfer In", transferInCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("TX_RTT", txRttCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("Potential TX_CURR", potentialTxCurr));
+		waterfallAnalysisList.add(createResultMap("Transfer Out", transferOutCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("TX_DEATH", txDeathCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("TX_ML_Self Transfer", 0));
+		waterfallAnalysisList.add(createResultMap("TX_ML_Refusal/Stopped", 0));
+		waterfallAnalysisList.add(createResultMap("TX_ML_IIT (<3 mo)", txMlIitLessThan3MoCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("TX_ML_IIT (3+ mo)", txMlIitMoreThan3MoCurrentQuarter));
+		waterfallAnalysisList.add(createResultMap("CALCULATED TX_CURR", potentialTxCurr));
+		
+		Map<String, Object> results = new HashMap<>();
+		results.put("results", waterfallAnalysisList);
+		return results;
+	}
+	
+	/**
+	 * Evaluates the independent cohorts of the period concurrently, then derives TX_CURR from the
+	 * candidate and IIT cohorts so that IIT is computed once for the whole chart.
+	 */
+	private WaterfallContext loadWaterfallContext(Date startDate, Date endDate) {
+		User user = Context.getAuthenticatedUser();
+		Integer userId = user != null ? user.getUserId() : null;
+		
+		CompletableFuture<List<Integer>> txCurrCandidates = evaluate(userId,
+		    () -> getTxCurrQueries.executeTxCurrQuery(endDate));
+		CompletableFuture<List<Integer>> interruptedInTreatment = evaluate(userId,
+		    () -> getInterruptedInTreatment.getIitIds(startDate, endDate, null));
+		CompletableFuture<Set<Integer>> newlyEnrolled = evaluate(userId,
+		    () -> getEnrollmentDate.getNewlyEnrolledPatientIds(startDate, endDate));
+		CompletableFuture<Set<Integer>> transferredIn = evaluate(userId,
+		    () -> getTransferredIn.getTransferredInPatientIds(startDate, endDate));
+		CompletableFuture<Set<Integer>> returnedToTreatment = evaluate(userId,
+		    () -> getEncounterObs.getPatientIdsWithAnswer(ART_TREATMENT_INTURRUPTION_ENCOUNTER_TYPE_UUID,
+		        RETURNING_TO_TREATMENT_UUID, CONCEPT_BY_UUID, startDate, endDate));
+		CompletableFuture<Set<Integer>> transferredOut = evaluate(userId,
+		    () -> getPatientExits.getTransferredOutPatientIds(endDate));
+		CompletableFuture<Set<Integer>> deceased = evaluate(userId, () -> getPatientExits.getDeceasedPatientIds(endDate));
+		
+		try {
+			WaterfallContext context = new WaterfallContext();
+			context.interruptedInTreatment = interruptedInTreatment.join();
+			context.txCurr = getTxCurr.getTxCurrPatientIds(txCurrCandidates.join(), context.interruptedInTreatment,
+			    endDate);
+			context.newlyEnrolled = newlyEnrolled.join();
+			context.transferredIn = transferredIn.join();
+			context.returnedToTreatment = returnedToTreatment.join();
+			context.transferredOut = transferredOut.join();
+			context.deceased = deceased.join();
+			return context;
+		}
+		catch (CompletionException e) {
+			System.err.println("Error evaluating waterfall cohorts: " + e.getCause().getMessage());
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Failed to evaluate waterfall cohorts", e.getCause());
+		}
+	}
+	
+	/**
+	 * Runs a cohort query on the executor. The worker opens its own session and user context and
+	 * authenticates it as the given user, so no context is shared with the request thread.
+	 */
+	private <T> CompletableFuture<T> evaluate(Integer userId, Supplier<T> cohort) {
+		return CompletableFuture.supplyAsync(() -> {
+			Context.openSession();
+			try {
+				if (userId != null) {
+					authenticateWorker(userId);
+				}
+				return cohort.get();
+			}
+			finally {
+				Context.closeSession();
+			}
+		}, cohortExecutor);
+	}
+	
+	private static void authenticateWorker(Integer userId) {
+		User user;
+		Context.addProxyPrivilege(PrivilegeConstants.GET_USERS);
+		try {
+			user = Context.getUserService().getUser(userId);
+		}
+		finally {
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_USERS);
+		}
+		
+		Context.setUserContext(
+		    new UserContext(credentials -> new BasicAuthenticated(user, COHORT_AUTHENTICATION_SCHEME)));
+		Context.authenticate(new CohortCredentials());
+	}
+}
@@ -98,16 +98,7 @@ public class FormsController {
 	 * Checks if the patient has a high viral load (>= 1000).
 	 */
 	private boolean hasHighViralLoad(Patient patient) {
-		String vlResultString = getVLResultsFromFollowUpForm(patient);
-		if (vlResultString != null) {
-			try {
-				return Double.parseDouble(vlResultString) >= 1000;
-			}
-			catch (NumberFormatException e) {
-				System.err.println("Unable to parse VL result: " + vlResultString);
-			}
-		}
-		return false;
+		return getLatestViralLoadResultFromFollowUpForm(patient).isHighViralLoad();
 	}
 	
 	/**
@@ -15,7 +15,6 @@ import javax.servlet.http.HttpServletRequest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.node.JsonNodeFactory;
@@ -24,9 +23,12 @@ import org.openmrs.*;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.ssemrws.queries.*;
 import org.openmrs.module.ssemrws.web.constants.*;
+import org.openmrs.module.ssemrws.web.dto.PatientListRowDTO;
 import org.openmrs.module.ssemrws.web.dto.PatientObservations;
+import org.openmrs.module.ssemrws.web.dto.ViralLoadResult;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.parameter.EncounterSearchCriteria;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -35,7 +37,6 @@ import org.springframework.web.bind.annotation.*;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
 import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
-import static org.openmrs.module.ssemrws.web.constants.RegimenConcepts.*;
 
 /**
  * This class configured as controller using annotation and mapped with the URL of
@@ -61,16 +62,18 @@ public class SSEMRWebServicesController {
 	
 	private final GetVLDueDate getVLDueDate;
 	
-	private final GetTxCurr getTxCurrMain;
-	
 	private final GetRecurrenceOfIIT getRecurrenceOfIIT;
 	
+	private final FilterUtility filterUtility;
+	
+	private final DailyIndicatorStore dailyIndicatorStore;
+	
 	public SSEMRWebServicesController(GetNextAppointmentDate getNextAppointmentDate,
 	    GetInterruptedInTreatment getInterruptedInTreatment,
 	    GetInterruptedInTreatmentWithinRange getInterruptedInTreatmentWithinRange,
 	    GetMissedAppointments getMissedAppointments, GetOnAppointment getOnAppoinment, GetAllPatients getAllPatients,
-	    GetPatientRegimens getPatientRegimens, GetVLDueDate getVLDueDate, GetTxCurr getTxCurrMain,
-	    GetRecurrenceOfIIT getRecurrenceOfIIT) {
+	    GetPatientRegimens getPatientRegimens, GetVLDueDate getVLDueDate, GetRecurrenceOfIIT getRecurrenceOfIIT,
+	    FilterUtility filterUtility, DailyIndicatorStore dailyIndicatorStore) {
 		this.getNextAppointmentDate = getNextAppointmentDate;
 		this.getInterruptedInTreatment = getInterruptedInTreatment;
 		this.getInterruptedInTreatmentWithinRange = getInterruptedInTreatmentWithinRange;
@@ -79,8 +82,9 @@ public class SSEMRWebServicesController {
 		this.getAllPatients = getAllPatients;
 		this.getPatientRegimens = getPatientRegimens;
 		this.getVLDueDate = getVLDueDate;
-		this.getTxCurrMain = getTxCurrMain;
 		this.getRecurrenceOfIIT = getRecurrenceOfIIT;
+		this.filterUtility = filterUtility;
+		this.dailyIndicatorStore = dailyIndicatorStore;
 	}
 	
 	public enum filterCategory {
@@ -92,31 +96,31 @@ public class SSEMRWebServicesController {
 	private EntityManager entityManager;
 	
 	/**
-	 * Retrieve filtered patients list
+	 * Retrieve filtered patients list. The filter and paging are applied in the database; pass the
+	 * returned nextCursor as cursor to fetch the following page without an offset scan.
 	 */
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/filteredPatientsList")
 	@ResponseBody
 	public Object getFilteredPatients(HttpServletRequest request,
 	        @RequestParam(required = false, value = "filter") filterCategory filterCategory,
 	        @RequestParam(required = false, value = "page") Integer page,
-	        @RequestParam(required = false, value = "size") Integer size) {
+	        @RequestParam(required = false, value = "size") Integer size,
+	        @RequestParam(required = false, value = "cursor") Integer cursor) {
 		if (page == null)
 			page = 0;
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> filteredPatientsSet = getAllPatients.getAllPatients(page, size);
+		List<PatientListRowDTO> filteredPatientsList = getAllPatients.getPatientListPage(filterCategory, cursor, page,
+		    size);
 		
-		if (filteredPatientsSet.isEmpty()) {
+		if (filteredPatientsList.isEmpty()) {
 			return "No Patients found.";
 		}
 		
-		List<Patient> filteredPatientsList = new ArrayList<>(filteredPatientsSet);
-		filteredPatientsList.sort(Comparator.comparing(Patient::getPatientId).reversed());
-		
 		ObjectNode allPatientsObj = JsonNodeFactory.instance.objectNode();
 		
-		return getAllPatients.filteredPatientsListObj(filteredPatientsList, allPatientsObj);
+		return getAllPatients.patientRowsListObj(filteredPatientsList, size, allPatientsObj);
 	}
 	
 	/**
@@ -127,25 +131,23 @@ public class SSEMRWebServicesController {
 	public Object getAllPatients(HttpServletRequest request,
 	        @RequestParam(required = false, value = "filter") filterCategory filterCategory,
 	        @RequestParam(required = false, value = "page") Integer page,
-	        @RequestParam(required = false, value = "size") Integer size) {
+	        @RequestParam(required = false, value = "size") Integer size,
+	        @RequestParam(required = false, value = "cursor") Integer cursor) {
 		
 		if (page == null)
 			page = 0;
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> allClientsSet = getAllPatients.getAllPatients(page, size);
+		List<PatientListRowDTO> allClients = getAllPatients.getAllClientsPage(filterCategory, cursor, page, size);
 		
-		if (allClientsSet.isEmpty()) {
+		if (allClients.isEmpty()) {
 			return "No Patients found.";
 		}
 		
-		List<Patient> allClients = new ArrayList<>(allClientsSet);
-		allClients.sort(Comparator.comparing(Patient::getPatientId).reversed());
-		
 		ObjectNode allPatientsObj = JsonNodeFactory.instance.objectNode();
 		
-		return getAllPatients.allPatientsListObj(allClients, allPatientsObj);
+		return getAllPatients.allClientsListObj(allClients, size, allPatientsObj);
 	}
 	
 	/**
@@ -170,11 +172,8 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> interruptedInTreatmentPatients = getInterruptedInTreatment.getIit(dates[0], dates[1]);
-		
-		interruptedInTreatmentPatients = interruptedInTreatmentPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		HashSet<Patient> interruptedInTreatmentPatients = getInterruptedInTreatment.getIit(dates[0], dates[1],
+		    filterCategory);
 		
 		int totalPatients = interruptedInTreatmentPatients.size();
 		
@@ -205,11 +204,8 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> iitWithinRangePatients = getInterruptedInTreatmentWithinRange.getIitWithinRange(dates[0], dates[1]);
-		
-		iitWithinRangePatients = iitWithinRangePatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		HashSet<Patient> iitWithinRangePatients = getInterruptedInTreatmentWithinRange.getIitWithinRange(dates[0], dates[1],
+		    filterCategory);
 		
 		int totalPatients = iitWithinRangePatients.size();
 		
@@ -241,10 +237,7 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> onAppointment = getOnAppoinment.getOnAppoinment(startDate, endDate);
-		
-		onAppointment = onAppointment.stream().filter(patient -> FilterUtility.applyFilter(patient, filterCategory, endDate))
-		        .collect(Collectors.toCollection(HashSet::new));
+		HashSet<Patient> onAppointment = getOnAppoinment.getOnAppoinment(startDate, endDate, filterCategory);
 		
 		int totalPatients = onAppointment.size();
 		
@@ -276,11 +269,8 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> missedAppointment = getMissedAppointments.getMissedAppointment(startDate, endDate);
-		
-		missedAppointment = missedAppointment.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, endDate))
-		        .collect(Collectors.toCollection(HashSet::new));
+		HashSet<Patient> missedAppointment = getMissedAppointments.getMissedAppointment(startDate, endDate,
+		    filterCategory);
 		
 		int totalPatients = missedAppointment.size();
 		
@@ -316,8 +306,7 @@ public class SSEMRWebServicesController {
 		
 		HashSet<Patient> rttPatients = getReturnToTreatmentPatients(dates[0], dates[1]);
 		
-		rttPatients = rttPatients.stream().filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		rttPatients = filterUtility.filterPatients(rttPatients, filterCategory, dates[1]);
 		
 		int totalPatients = rttPatients.size();
 		
@@ -355,9 +344,7 @@ public class SSEMRWebServicesController {
 		
 		HashSet<Patient> transferredOutPatients = getTransferredOutClients(dates[0], dates[1]);
 		
-		transferredOutPatients = transferredOutPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		transferredOutPatients = filterUtility.filterPatients(transferredOutPatients, filterCategory, dates[1]);
 		
 		int totalPatients = transferredOutPatients.size();
 		
@@ -385,17 +372,11 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> deceasedPatients = getDeceasedPatientsByDateRange(dates[0], dates[1]);
+		HashSet<Patient> deceasedPatients = filterUtility
+		        .filterPatients(getDeceasedPatientsByDateRange(dates[0], dates[1]), filterCategory, dates[1]);
 		
 		// Filter out patients who have an upcoming appointment
-		deceasedPatients.removeIf(patient -> {
-			String nextAppointmentDate = getNextAppointmentDate.getNextAppointmentDateByUuid(patient.getUuid());
-			return !nextAppointmentDate.equals("No Upcoming Appointments");
-		});
-		
-		deceasedPatients = deceasedPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		deceasedPatients.removeIf(patient -> getNextAppointmentDate.hasUpcomingAppointment(patient.getPatientId()));
 		
 		int totalPatients = deceasedPatients.size();
 		
@@ -413,28 +394,8 @@ public class SSEMRWebServicesController {
 	        @RequestParam("startDate") String qStartDate, @RequestParam("endDate") String qEndDate,
 	        @RequestParam(required = false, value = "filter") filterCategory filterCategory) throws ParseException {
 		
-		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
-		Date startDate = dateTimeFormatter.parse(qStartDate);
-		Date endDate = dateTimeFormatter.parse(qEndDate);
-		
-		// Add 23 hours to endDate
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(endDate);
-		calendar.add(Calendar.HOUR_OF_DAY, 23);
-		endDate = calendar.getTime();
-		
-		// Get txCurrPatients within the date range
-		List<GetTxNew.PatientEnrollmentData> txCurrPatients = getTxCurrMain.getTxCurrPatients(startDate, endDate);
-		
-		// Fetch adult and child regimens
-		return getPatientRegimens.getFilteredPatientsOnRegimenTreatment(qStartDate, qEndDate,
-		    Arrays.asList(regimen_1A, regimen_1B, regimen_1C, regimen_1D, regimen_1E, regimen_1F, regimen_1G, regimen_1H,
-		        regimen_1J, regimen_2A, regimen_2B, regimen_2C, regimen_2D, regimen_2E, regimen_2F, regimen_2G, regimen_2H,
-		        regimen_2I, regimen_2J, regimen_2K),
-		    Arrays.asList(regimen_4A, regimen_4B, regimen_4C, regimen_4D, regimen_4E, regimen_4F, regimen_4G, regimen_4H,
-		        regimen_4I, regimen_4J, regimen_4K, regimen_4L, regimen_5A, regimen_5B, regimen_5C, regimen_5D, regimen_5E,
-		        regimen_5F, regimen_5G, regimen_5H, regimen_5I, regimen_5J),
-		    ACTIVE_REGIMEN_CONCEPT_UUID, txCurrPatients, true);
+		// Adult and child counts are computed together and shared between both endpoints
+		return getPatientRegimens.getRegimenTreatment(qStartDate, qEndDate, true);
 	}
 	
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/childRegimenTreatment")
@@ -443,28 +404,8 @@ public class SSEMRWebServicesController {
 	        @RequestParam("startDate") String qStartDate, @RequestParam("endDate") String qEndDate,
 	        @RequestParam(required = false, value = "filter") filterCategory filterCategory) throws ParseException {
 		
-		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
-		Date startDate = dateTimeFormatter.parse(qStartDate);
-		Date endDate = dateTimeFormatter.parse(qEndDate);
-		
-		// Add 23 hours to endDate
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(endDate);
-		calendar.add(Calendar.HOUR_OF_DAY, 23);
-		endDate = calendar.getTime();
-		
-		// Get txCurrPatients within the date range
-		List<GetTxNew.PatientEnrollmentData> txCurrPatients = getTxCurrMain.getTxCurrPatients(startDate, endDate);
-		
-		// Fetch adult and child regimens
-		return getPatientRegimens.getFilteredPatientsOnRegimenTreatment(qStartDate, qEndDate,
-		    Arrays.asList(regimen_1A, regimen_1B, regimen_1C, regimen_1D, regimen_1E, regimen_1F, regimen_1G, regimen_1H,
-		        regimen_1J, regimen_2A, regimen_2B, regimen_2C, regimen_2D, regimen_2E, regimen_2F, regimen_2G, regimen_2H,
-		        regimen_2I, regimen_2J, regimen_2K),
-		    Arrays.asList(regimen_4A, regimen_4B, regimen_4C, regimen_4D, regimen_4E, regimen_4F, regimen_4G, regimen_4H,
-		        regimen_4I, regimen_4J, regimen_4K, regimen_4L, regimen_5A, regimen_5B, regimen_5C, regimen_5D, regimen_5E,
-		        regimen_5F, regimen_5G, regimen_5H, regimen_5I, regimen_5J),
-		    ACTIVE_REGIMEN_CONCEPT_UUID, txCurrPatients, false);
+		// Adult and child counts are computed together and shared between both endpoints
+		return getPatientRegimens.getRegimenTreatment(qStartDate, qEndDate, false);
 	}
 	
 	/**
@@ -498,9 +439,7 @@ public class SSEMRWebServicesController {
 		HashSet<Patient> underCareOfCommunityPatients = encounters.stream().map(Encounter::getPatient).collect(HashSet::new,
 		    HashSet::add, HashSet::addAll);
 		
-		underCareOfCommunityPatients = underCareOfCommunityPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		underCareOfCommunityPatients = filterUtility.filterPatients(underCareOfCommunityPatients, filterCategory, dates[1]);
 		
 		int totalPatients = underCareOfCommunityPatients.size();
 		
@@ -531,7 +470,7 @@ public class SSEMRWebServicesController {
 		if (size == null)
 			size = 15;
 		
-		int totalPatients = Context.getPatientService().getAllPatients().size();
+		int totalPatients = getAllPatients.getTotalPatientCount();
 		
 		if (totalPatients == 0) {
 			Map<String, Integer> response = new HashMap<>();
@@ -550,9 +489,7 @@ public class SSEMRWebServicesController {
 		HashSet<Patient> underCareOfCommunityPatients = encounters.stream().map(Encounter::getPatient).collect(HashSet::new,
 		    HashSet::add, HashSet::addAll);
 		
-		underCareOfCommunityPatients = underCareOfCommunityPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		underCareOfCommunityPatients = filterUtility.filterPatients(underCareOfCommunityPatients, filterCategory, dates[1]);
 		
 		List<Patient> underCareList = new ArrayList<>(underCareOfCommunityPatients);
 		
@@ -567,6 +504,67 @@ public class SSEMRWebServicesController {
 		return response;
 	}
 	
+	/**
+	 * Retrieves the daily counts of a dashboard indicator (NEW_ENROLMENTS, RETURN_TO_TREATMENT,
+	 * MISSED_APPOINTMENTS, VL_SAMPLES, VL_RESULTS or EAC_SESSIONS) and their total over the period.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/dailyIndicators")
+	@ResponseBody
+	public ResponseEntity<Object> getDailyIndicators(@RequestParam("indicator") String indicator,
+	        @RequestParam(required = false, value = "startDate") String qStartDate,
+	        @RequestParam(required = false, value = "endDate") String qEndDate) throws ParseException {
+		
+		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
+		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
+		
+		Map<java.time.LocalDate, Integer> dailyCounts;
+		try {
+			dailyCounts = dailyIndicatorStore.getDailyCounts(indicator, dates[0], dates[1]);
+		}
+		catch (IllegalArgumentException e) {
+			return buildErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		
+		List<Map<String, Object>> data = new ArrayList<>();
+		int total = 0;
+		for (Map.Entry<java.time.LocalDate, Integer> entry : dailyCounts.entrySet()) {
+			Map<String, Object> day = new LinkedHashMap<>();
+			day.put("date", entry.getKey().toString());
+			day.put("value", entry.getValue());
+			data.add(day);
+			total += entry.getValue();
+		}
+		
+		Map<String, Object> results = new HashMap<>();
+		results.put("indicator", indicator);
+		results.put("total", total);
+		results.put("data", data);
+		return new ResponseEntity<>(results, new HttpHeaders(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Drops the stored daily counts of an indicator, or of all indicators when none is given, so that
+	 * they are counted again from the current data on their next read. A rebuild recounts every
+	 * stored day, so it needs the Manage Scheduler privilege.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/dashboard/dailyIndicators/rebuild")
+	@ResponseBody
+	public ResponseEntity<Object> rebuildDailyIndicators(
+	        @RequestParam(required = false, value = "indicator") String indicator) {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_SCHEDULER);
+		try {
+			dailyIndicatorStore.clear(indicator);
+		}
+		catch (IllegalArgumentException e) {
+			return buildErrorResponse(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		
+		Map<String, Object> results = new HashMap<>();
+		results.put("indicator", indicator != null ? indicator : "ALL");
+		results.put("rebuilt", true);
+		return new ResponseEntity<>(results, new HttpHeaders(), HttpStatus.OK);
+	}
+	
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/obs")
 	@ResponseBody
 	public ResponseEntity<Object> getPatientObs(HttpServletRequest request, @RequestParam("patientUuid") String patientUuid,
@@ -607,8 +605,9 @@ public class SSEMRWebServicesController {
 		observations.setWhoClinicalStage(getWHOClinicalStage(patient));
 		observations.setDateVLSampleCollected(getLatestVLSampleCollectionDate(patient));
 		observations.setDateVLResultsReceived(getDateVLResultsReceived(patient));
-		observations.setVlResults(getVLResults(patient));
-		observations.setVlStatus(getVLStatus(patient));
+		ViralLoadResult viralLoadResult = getLatestViralLoadResult(patient);
+		observations.setVlResults(viralLoadResult.getDisplayValue());
+		observations.setVlStatus(viralLoadResult.getStatus());
 		observations.setBmi(getBMI(patient));
 		observations.setMuac(getMUAC(patient));
 		observations.setAppointmentDate(getNextAppointmentDate.getNextAppointmentDate(patient.getUuid()));
@@ -618,7 +617,7 @@ public class SSEMRWebServicesController {
 		observations.setFamilyMembers(getFamilyMemberObservations(patient));
 		observations.setIndexFamilyMembers(getIndexFamilyMemberObservations(patient));
 		observations.setVlDueDate(getVLDueDate.getVLDueDate(patient));
-		observations.setIitRecurrence(String.valueOf(getRecurrenceOfIIT.getRecurrenceOfIIT(patient.getUuid())));
+		observations.setIitRecurrence(String.valueOf(getRecurrenceOfIIT.getRecurrenceOfIIT(patient.getPatientId())));
 		observations.setTemperature(getPatientTemperature(patient));
 		observations.setBlood_pressure(populateBloodPressure(patient));
 		observations.setChw(getCommunityHealthWorkerObservations(patient));
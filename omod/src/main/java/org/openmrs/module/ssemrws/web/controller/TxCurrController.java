@@ -1,5 +1,6 @@
 package org.openmrs.module.ssemrws.web.controller;
 
+import org.openmrs.module.ssemrws.queries.GetTxCurrTrend;
 import org.openmrs.module.ssemrws.web.constants.*;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.springframework.stereotype.Controller;
@@ -12,7 +13,6 @@ import javax.servlet.http.HttpServletRequest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
 
@@ -28,9 +28,13 @@ public class TxCurrController {
 	
 	private final GetTxCurr getTxCurr;
 	
-	public TxCurrController(GenerateTxCurrSummaryResponse generateTxCurrSummaryResponse, GetTxCurr getTxCurr) {
+	private final GetTxCurrTrend getTxCurrTrend;
+	
+	public TxCurrController(GenerateTxCurrSummaryResponse generateTxCurrSummaryResponse, GetTxCurr getTxCurr,
+	    GetTxCurrTrend getTxCurrTrend) {
 		this.generateTxCurrSummaryResponse = generateTxCurrSummaryResponse;
 		this.getTxCurr = getTxCurr;
+		this.getTxCurrTrend = getTxCurrTrend;
 	}
 	
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/activeClients")
@@ -50,11 +54,8 @@ public class TxCurrController {
 		if (size == null)
 			size = 15;
 		
-		List<GetTxNew.PatientEnrollmentData> txCurrPatients = getTxCurr.getTxCurrPatients(dates[0], dates[1]);
-		
-		txCurrPatients = txCurrPatients.stream()
-		        .filter(data -> FilterUtility.applyFilter(data.getPatient(), filterCategory, dates[1]))
-		        .collect(Collectors.toList());
+		List<GetTxNew.PatientEnrollmentData> txCurrPatients = getTxCurr.getTxCurrPatients(dates[0], dates[1],
+		    filterCategory);
 		
 		int totalPatients = txCurrPatients.size();
 		
@@ -64,6 +65,42 @@ public class TxCurrController {
 		    filterCategory);
 	}
 	
+	/**
+	 * TX_CURR at the end of every month of the period, and at the end date itself, computed in one
+	 * pass.
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/activeClientsTrend")
+	@ResponseBody
+	public Object getActiveClientsTrend(@RequestParam(required = false, value = "startDate") String qStartDate,
+	        @RequestParam(required = false, value = "endDate") String qEndDate) throws ParseException {
+		
+		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
+		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
+		
+		List<Date> reportingDates = new ArrayList<>();
+		Calendar monthEnd = Calendar.getInstance();
+		monthEnd.setTime(dates[0]);
+		monthEnd.set(Calendar.DAY_OF_MONTH, monthEnd.getActualMaximum(Calendar.DAY_OF_MONTH));
+		while (monthEnd.getTime().before(dates[1])) {
+			reportingDates.add(monthEnd.getTime());
+			monthEnd.add(Calendar.DAY_OF_MONTH, 1);
+			monthEnd.set(Calendar.DAY_OF_MONTH, monthEnd.getActualMaximum(Calendar.DAY_OF_MONTH));
+		}
+		reportingDates.add(dates[1]);
+		
+		List<Map<String, Object>> trend = new ArrayList<>();
+		for (Map.Entry<Date, Integer> entry : getTxCurrTrend.getTxCurrCounts(reportingDates).entrySet()) {
+			Map<String, Object> point = new LinkedHashMap<>();
+			point.put("date", dateTimeFormatter.format(entry.getKey()));
+			point.put("activeClients", entry.getValue());
+			trend.add(point);
+		}
+		
+		Map<String, Object> results = new HashMap<>();
+		results.put("data", trend);
+		return results;
+	}
+	
 	private Object paginateAndGenerateSummaryForTxCurr(ArrayList<GetTxNew.PatientEnrollmentData> patientList, int page,
 	        int size, int totalCount, Date startDate, Date endDate,
 	        SSEMRWebServicesController.filterCategory filterCategory) {
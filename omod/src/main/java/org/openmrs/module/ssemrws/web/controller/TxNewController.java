@@ -14,7 +14,6 @@ import javax.servlet.http.HttpServletRequest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.getStartAndEndDate;
 import static org.openmrs.module.ssemrws.web.constants.GetTxNew.*;
@@ -29,8 +28,11 @@ public class TxNewController {
 	
 	private final GenerateTxNewSummaryResponse getGenerateTxNewSummaryResponse;
 	
-	public TxNewController(GenerateTxNewSummaryResponse getGenerateTxNewSummaryResponse) {
+	private final FilterUtility filterUtility;
+	
+	public TxNewController(GenerateTxNewSummaryResponse getGenerateTxNewSummaryResponse, FilterUtility filterUtility) {
 		this.getGenerateTxNewSummaryResponse = getGenerateTxNewSummaryResponse;
+		this.filterUtility = filterUtility;
 	}
 	
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/newClients")
@@ -52,9 +54,7 @@ public class TxNewController {
 		
 		List<PatientEnrollmentData> enrolledPatients = getNewlyEnrolledPatients(dates[0], dates[1]);
 		
-		enrolledPatients = enrolledPatients.stream()
-		        .filter(data -> FilterUtility.applyFilter(data.getPatient(), filterCategory, dates[1]))
-		        .collect(Collectors.toList());
+		enrolledPatients = filterUtility.filterEnrollmentData(enrolledPatients, filterCategory, dates[1]);
 		
 		int totalPatients = enrolledPatients.size();
 		
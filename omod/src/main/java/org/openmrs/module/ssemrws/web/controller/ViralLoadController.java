@@ -2,12 +2,16 @@ package org.openmrs.module.ssemrws.web.controller;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.*;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.DailyIndicatorStore;
 import org.openmrs.module.ssemrws.queries.EacSessionService;
+import org.openmrs.module.ssemrws.queries.GetAllPatients;
 import org.openmrs.module.ssemrws.queries.GetDueForVL;
+import org.openmrs.module.ssemrws.queries.GetViralLoadCoverage;
 import org.openmrs.module.ssemrws.web.constants.FilterUtility;
+import org.openmrs.module.ssemrws.web.constants.ViralLoadCascade;
+import org.openmrs.module.ssemrws.web.dto.EacSessionCountDTO;
+import org.openmrs.module.ssemrws.web.dto.ViralLoadSuppressionDTO;
 import org.openmrs.module.webservices.rest.web.RestConstants;
-import org.openmrs.parameter.EncounterSearchCriteria;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -18,12 +22,10 @@ import javax.servlet.http.HttpServletRequest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.openmrs.module.ssemrws.constants.SharedConstants.*;
 import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
-import static org.openmrs.module.ssemrws.web.constants.AllConcepts.EAC_SESSION_CONCEPT_UUID;
-import static org.openmrs.module.ssemrws.web.constants.ViralLoadCascade.getViralLoadCascade;
+import static org.openmrs.module.ssemrws.web.constants.GenerateSummary.generateSummaryFromCounts;
 
 /**
  * This class configured as controller using annotation and mapped with the URL of
@@ -37,9 +39,26 @@ public class ViralLoadController {
 	
 	private final EacSessionService eacSessionService;
 	
-	public ViralLoadController(GetDueForVL getDueForVl, EacSessionService eacSessionService) {
+	private final FilterUtility filterUtility;
+	
+	private final GetAllPatients getAllPatients;
+	
+	private final GetViralLoadCoverage getViralLoadCoverage;
+	
+	private final ViralLoadCascade viralLoadCascade;
+	
+	private final DailyIndicatorStore dailyIndicatorStore;
+	
+	public ViralLoadController(GetDueForVL getDueForVl, EacSessionService eacSessionService, FilterUtility filterUtility,
+	    GetAllPatients getAllPatients, GetViralLoadCoverage getViralLoadCoverage, ViralLoadCascade viralLoadCascade,
+	    DailyIndicatorStore dailyIndicatorStore) {
 		this.getDueForVl = getDueForVl;
 		this.eacSessionService = eacSessionService;
+		this.filterUtility = filterUtility;
+		this.getAllPatients = getAllPatients;
+		this.getViralLoadCoverage = getViralLoadCoverage;
+		this.viralLoadCascade = viralLoadCascade;
+		this.dailyIndicatorStore = dailyIndicatorStore;
 	}
 	
 	/**
@@ -63,11 +82,7 @@ public class ViralLoadController {
 		if (size == null)
 			size = 15;
 		
-		HashSet<Patient> dueForVlClients = getDueForVl.getDueForVl(dates[0], dates[1]);
-		
-		dueForVlClients = dueForVlClients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		HashSet<Patient> dueForVlClients = getDueForVl.getDueForVl(dates[0], dates[1], filterCategory);
 		
 		int totalPatients = dueForVlClients.size();
 		
@@ -103,9 +118,7 @@ public class ViralLoadController {
 		
 		HashSet<Patient> highVLPatients = getPatientsWithHighVL(dates[0], dates[1]);
 		
-		highVLPatients = highVLPatients.stream()
-		        .filter(patient -> FilterUtility.applyFilter(patient, filterCategory, dates[1]))
-		        .collect(Collectors.toCollection(HashSet::new));
+		highVLPatients = filterUtility.filterPatients(highVLPatients, filterCategory, dates[1]);
 		
 		int totalPatients = highVLPatients.size();
 		
@@ -126,20 +139,9 @@ public class ViralLoadController {
 			SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 			Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 			
-			EncounterType viralLoadEncounterType = Context.getEncounterService()
-			        .getEncounterTypeByUuid(FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-			EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, dates[0], dates[1],
-			        null, null, Collections.singletonList(viralLoadEncounterType), null, null, null, false);
-			List<Encounter> viralLoadSampleEncounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-			
-			Concept sampleCollectionDateConcept = Context.getConceptService().getConceptByUuid(SAMPLE_COLLECTION_DATE_UUID);
-			List<Obs> sampleCollectionDateObs = Context.getObsService().getObservations(null, viralLoadSampleEncounters,
-			    Collections.singletonList(sampleCollectionDateConcept), null, null, null, null, null, null, dates[0],
-			    dates[1], false);
-			
 			// Generate the summary data
-			Object summaryData = generateDashboardSummaryFromObs(dates[0], dates[1], sampleCollectionDateObs,
-			    filterCategory);
+			Object summaryData = generateSummaryFromCounts(
+			    dailyIndicatorStore.getDailyCounts(DailyIndicatorStore.VL_SAMPLES, dates[0], dates[1]));
 			
 			// Convert the summary data to JSON format
 			ObjectMapper objectMapper = new ObjectMapper();
@@ -165,34 +167,9 @@ public class ViralLoadController {
 			SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 			Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 			
-			EncounterType viralLoadEncounterType = Context.getEncounterService()
-			        .getEncounterTypeByUuid(FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-			if (viralLoadEncounterType == null) {
-				throw new RuntimeException("Encounter type not found: " + FOLLOW_UP_FORM_ENCOUNTER_TYPE);
-			}
-			
-			EncounterSearchCriteria encounterSearchCriteria = new EncounterSearchCriteria(null, null, dates[0], dates[1],
-			        null, null, Collections.singletonList(viralLoadEncounterType), null, null, null, false);
-			List<Encounter> viralLoadSampleEncounters = Context.getEncounterService().getEncounters(encounterSearchCriteria);
-			if (viralLoadSampleEncounters == null || viralLoadSampleEncounters.isEmpty()) {
-				throw new RuntimeException("No encounters found for criteria");
-			}
-			
-			Concept viralLoadResultConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_RESULTS_UUID);
-			if (viralLoadResultConcept == null) {
-				throw new RuntimeException("Concept not found: " + VIRAL_LOAD_RESULTS_UUID);
-			}
-			
-			List<Obs> viralLoadResultObs = Context.getObsService().getObservations(null, viralLoadSampleEncounters,
-			    Collections.singletonList(viralLoadResultConcept), null, null, null, null, null, null, dates[0], dates[1],
-			    false);
-			if (viralLoadResultObs == null || viralLoadResultObs.isEmpty()) {
-				throw new RuntimeException("No observations found for the given criteria");
-			}
-			
 			// Generate the summary data
-			Map<String, Map<String, Integer>> summaryData = generateDashboardSummaryFromObs(dates[0], dates[1],
-			    viralLoadResultObs, filterCategory);
+			Map<String, Map<String, Integer>> summaryData = generateSummaryFromCounts(
+			    dailyIndicatorStore.getDailyCounts(DailyIndicatorStore.VL_RESULTS, dates[0], dates[1]));
 			if (summaryData.isEmpty()) {
 				throw new RuntimeException("Failed to generate summary data");
 			}
@@ -217,15 +194,16 @@ public class ViralLoadController {
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/viralLoadCoverage")
 	@ResponseBody
 	public Object getViralLoadCoverage(HttpServletRequest request, @RequestParam("startDate") String qStartDate,
-	        @RequestParam("endDate") String qEndDate) throws ParseException {
+	        @RequestParam("endDate") String qEndDate,
+	        @RequestParam(required = false, value = "filter") SSEMRWebServicesController.filterCategory filterCategory)
+	        throws ParseException {
 		
 		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 		
-		int totalPatients = Context.getPatientService().getAllPatients().size();
+		int totalPatients = getAllPatients.getPatientCount(filterCategory, dates[1]);
 		
-		List<Patient> patientsWithVLCoverage = fetchPatientsWithViralLoadCoverage(dates[0], dates[1]);
-		int vlCoverage = patientsWithVLCoverage.size();
+		int vlCoverage = getViralLoadCoverage.getCoveredPatientCount(dates[0], dates[1], filterCategory);
 		
 		int notVlCovered = totalPatients - vlCoverage;
 		
@@ -245,11 +223,13 @@ public class ViralLoadController {
 	@RequestMapping(method = RequestMethod.GET, value = "/chart/viralLoadCoverage")
 	@ResponseBody
 	public Object viralLoadCoverageChart(HttpServletRequest request, @RequestParam("startDate") String qStartDate,
-	        @RequestParam("endDate") String qEndDate) throws ParseException {
+	        @RequestParam("endDate") String qEndDate,
+	        @RequestParam(required = false, value = "filter") SSEMRWebServicesController.filterCategory filterCategory)
+	        throws ParseException {
 		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 		
-		int totalPatients = Context.getPatientService().getAllPatients().size();
+		int totalPatients = getAllPatients.getPatientCount(filterCategory, dates[1]);
 		
 		if (totalPatients == 0) {
 			Map<String, Object> response = new HashMap<>();
@@ -259,13 +239,7 @@ public class ViralLoadController {
 			return response;
 		}
 		
-		List<Patient> patientsWithVLCoverage = fetchPatientsWithViralLoadCoverage(dates[0], dates[1]);
-		
-		if (patientsWithVLCoverage == null) {
-			patientsWithVLCoverage = new ArrayList<>();
-		}
-		;
-		int vlCoverage = patientsWithVLCoverage.size();
+		int vlCoverage = getViralLoadCoverage.getCoveredPatientCount(dates[0], dates[1], filterCategory);
 		
 		int notVlCovered = totalPatients - vlCoverage;
 		
@@ -280,37 +254,6 @@ public class ViralLoadController {
 		return response;
 	}
 	
-	private List<Patient> fetchPatientsWithViralLoadCoverage(Date startDate, Date endDate) {
-		Set<Integer> patientIds = fetchViralLoadPatientIds(startDate, endDate);
-		
-		return Context.getPatientService().getAllPatients().stream().filter(patient -> {
-			boolean found = patientIds.contains(patient.getPerson().getPersonId());
-			if (!found) {
-				System.out.println("❌ Patient Not Found in VL List: " + patient.getPatientId() + " | Person ID: "
-				        + patient.getPerson().getPersonId());
-			}
-			return found;
-		}).collect(Collectors.toList());
-	}
-	
-	private Set<Integer> fetchViralLoadPatientIds(Date startDate, Date endDate) {
-		Concept viralLoadResultsConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_RESULTS_UUID);
-		
-		List<Obs> vlResultsObs = Context.getObsService().getObservations(null, null,
-		    Collections.singletonList(viralLoadResultsConcept), null, null, null, null, null, null, startDate, endDate,
-		    false);
-		
-		if (vlResultsObs.isEmpty()) {
-			return Collections.emptySet();
-		}
-		
-		Set<Integer> patientIds = vlResultsObs.stream().map(obs -> {
-			return obs.getPerson().getPersonId();
-		}).collect(Collectors.toSet());
-		
-		return patientIds;
-	}
-	
 	/**
 	 * Handles the HTTP GET request to retrieve patients with Suppressed viral load values. This method
 	 * filters patients based on their viral load observations, identifying those with values below a
@@ -324,22 +267,24 @@ public class ViralLoadController {
 	        @RequestParam("endDate") String qEndDate,
 	        @RequestParam(required = false, value = "filter") SSEMRWebServicesController.filterCategory filterCategory,
 	        @RequestParam(value = "page", required = false) Integer page,
-	        @RequestParam(value = "size", required = false) Integer size) throws ParseException {
+	        @RequestParam(value = "size", required = false) Integer size,
+	        @RequestParam(value = "breakdown", defaultValue = "false") boolean breakdown) throws ParseException {
 		
 		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 		
-		int totalPatients = Context.getPatientService().getAllPatients().size();
-		
-		List<Patient> vlCoveredPatients = fetchPatientsWithViralLoadCoverage(dates[0], dates[1]);
-		int vlCoverage = vlCoveredPatients.size();
+		int totalPatients = getAllPatients.getPatientCount(filterCategory, dates[1]);
 		
-		int vlSuppressed = countViralLoadSuppressedPatients(vlCoveredPatients, dates[0], dates[1]);
+		ViralLoadSuppressionDTO suppressionCounts = getViralLoadCoverage.getSuppressionCounts(dates[0], dates[1],
+		    filterCategory, breakdown);
 		
-		Map<String, Integer> response = new HashMap<>();
+		Map<String, Object> response = new HashMap<>();
 		response.put("totalPatients", totalPatients);
-		response.put("vlCoverage", vlCoverage);
-		response.put("vlSuppressed", vlSuppressed);
+		response.put("vlCoverage", suppressionCounts.getCovered());
+		response.put("vlSuppressed", suppressionCounts.getSuppressed());
+		if (breakdown) {
+			response.put("breakdown", suppressionCounts.getBreakdown());
+		}
 		
 		return response;
 	}
@@ -355,11 +300,12 @@ public class ViralLoadController {
 	        @RequestParam("endDate") String qEndDate,
 	        @RequestParam(required = false, value = "filter") SSEMRWebServicesController.filterCategory filterCategory,
 	        @RequestParam(value = "page", required = false) Integer page,
-	        @RequestParam(value = "size", required = false) Integer size) throws ParseException {
+	        @RequestParam(value = "size", required = false) Integer size,
+	        @RequestParam(value = "breakdown", defaultValue = "false") boolean breakdown) throws ParseException {
 		SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd");
 		Date[] dates = getStartAndEndDate(qStartDate, qEndDate, dateTimeFormatter);
 		
-		int totalPatients = Context.getPatientService().getAllPatients().size();
+		int totalPatients = getAllPatients.getPatientCount(filterCategory, dates[1]);
 		
 		if (totalPatients == 0) {
 			Map<String, Integer> response = new HashMap<>();
@@ -370,53 +316,23 @@ public class ViralLoadController {
 			return response;
 		}
 		
-		List<Patient> vlCoveredPatients = fetchPatientsWithViralLoadCoverage(dates[0], dates[1]);
-		int vlCoverage = vlCoveredPatients.size();
-		int vlSuppressed = countViralLoadSuppressedPatients(vlCoveredPatients, dates[0], dates[1]);
+		ViralLoadSuppressionDTO suppressionCounts = getViralLoadCoverage.getSuppressionCounts(dates[0], dates[1],
+		    filterCategory, breakdown);
+		int vlCoverage = suppressionCounts.getCovered();
+		int vlSuppressed = suppressionCounts.getSuppressed();
 		
 		int suppressed = vlCoverage > 0 ? Math.round(((float) vlSuppressed / vlCoverage) * 100) : 0;
 		int unSuppressed = vlCoverage > 0 ? 100 - suppressed : 0;
 		
-		Map<String, Integer> response = new HashMap<>();
+		Map<String, Object> response = new HashMap<>();
 		response.put("totalPatients", totalPatients);
 		response.put("suppressed", suppressed);
 		response.put("unSuppressed", unSuppressed);
-		
-		return response;
-	}
-	
-	/**
-	 * Get count of VL Suppressed Patients (BDL or VL < 1000)
-	 */
-	private int countViralLoadSuppressedPatients(List<Patient> vlCoveredPatients, Date startDate, Date endDate) {
-		Concept vlResultConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_RESULTS_UUID);
-		Concept vlNumericConcept = Context.getConceptService().getConceptByUuid(VIRAL_LOAD_CONCEPT_UUID);
-		
-		HashSet<Integer> suppressedPatients = new HashSet<>();
-		
-		for (Patient patient : vlCoveredPatients) {
-			List<Obs> vlObservations = Context.getObsService().getObservations(
-			    Collections.singletonList(patient.getPerson()), null, Arrays.asList(vlResultConcept, vlNumericConcept), null,
-			    null, null, null, null, null, startDate, endDate, false);
-			
-			for (Obs obs : vlObservations) {
-				// Check if VL is Below Detectable (BDL)
-				if (obs.getConcept().equals(vlResultConcept)
-				        && "Below Detectable (BDL)".equalsIgnoreCase(obs.getValueText())) {
-					suppressedPatients.add(patient.getPatientId());
-					break;
-				}
-				
-				// Check if VL Numeric Value is < 1000
-				if (obs.getConcept().equals(vlNumericConcept) && obs.getValueNumeric() != null
-				        && obs.getValueNumeric() < 1000) {
-					suppressedPatients.add(patient.getPatientId());
-					break;
-				}
-			}
+		if (breakdown) {
+			response.put("breakdown", suppressionCounts.getBreakdown());
 		}
 		
-		return suppressedPatients.size();
+		return response;
 	}
 	
 	/**
@@ -430,12 +346,13 @@ public class ViralLoadController {
 	        @RequestParam(required = false, value = "filter") SSEMRWebServicesController.filterCategory filterCategory)
 	        throws ParseException {
 		
-		return getViralLoadCascade(qStartDate, qEndDate,
-		    Arrays.asList(FIRST_EAC_SESSION, SECOND_EAC_SESSION, THIRD_EAC_SESSION, EXTENDED_EAC_CONCEPT_UUID,
-		        REAPEAT_VL_COLLECTION, REPEAT_VL_RESULTS, HIGH_VL_ENCOUNTERTYPE_UUID, ACTIVE_REGIMEN_CONCEPT_UUID),
-		    EAC_SESSION_CONCEPT_UUID);
+		return viralLoadCascade.getViralLoadCascade(qStartDate, qEndDate);
 	}
 	
+	/**
+	 * Returns the number of EAC 1, 2 and 3 sessions held in each month of the period, one row per year
+	 * and month so that periods spanning several years keep their months apart.
+	 */
 	@RequestMapping(method = RequestMethod.GET, value = "/dashboard/completedEACSessions")
 	@ResponseBody
 	public Object eacSessions(@RequestParam("startDate") String qStartDate, @RequestParam("endDate") String qEndDate)
@@ -445,39 +362,10 @@ public class ViralLoadController {
 		Date startDate = parser.parse(qStartDate);
 		Date endDate = parser.parse(qEndDate);
 		
-		Map<String, Map<String, Integer>> monthlyCounts = new LinkedHashMap<>();
-		
-		List<Object[]> results = eacSessionService.getEacSessionCountsByDateRange(startDate, endDate);
-		
-		for (Object[] row : results) {
-			String eacType = (String) row[0];
-			String month = (String) row[1];
-			Integer count = ((Number) row[2]).intValue();
-			
-			monthlyCounts.computeIfAbsent(month, k -> new LinkedHashMap<>()).put(eacType, count);
-		}
-		
-		List<Map<String, Object>> resultList = new ArrayList<>();
-		List<String> eacTypesInOrder = Arrays.asList("EAC1", "EAC2", "EAC3");
-		
-		for (Map.Entry<String, Map<String, Integer>> entry : monthlyCounts.entrySet()) {
-			String month = entry.getKey();
-			Map<String, Integer> eacDataForMonth = entry.getValue();
-			Map<String, Object> formattedMonthObject = new LinkedHashMap<>();
-			
-			for (String eacType : eacTypesInOrder) {
-				if (eacDataForMonth.containsKey(eacType)) {
-					formattedMonthObject.put(month + " " + eacType, eacDataForMonth.get(eacType));
-				}
-			}
-			
-			if (!formattedMonthObject.isEmpty()) {
-				resultList.add(formattedMonthObject);
-			}
-		}
+		List<EacSessionCountDTO> monthlyCounts = eacSessionService.getEacSessionCountsByDateRange(startDate, endDate);
 		
 		Map<String, Object> finalPayload = new HashMap<>();
-		finalPayload.put("data", resultList);
+		finalPayload.put("data", monthlyCounts);
 		
 		return finalPayload;
 	}
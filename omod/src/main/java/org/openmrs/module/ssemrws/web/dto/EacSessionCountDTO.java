@@ -0,0 +1,19 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import lombok.Data;
+
+@Data
+public class EacSessionCountDTO {
+	
+	private int year;
+	
+	private int month;
+	
+	private String monthName;
+	
+	private int eac1;
+	
+	private int eac2;
+	
+	private int eac3;
+}
@@ -0,0 +1,23 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@Data
+public class PatientDemographicsDTO {
+	
+	private String name = "";
+	
+	private List<Map<String, String>> identifiers = new ArrayList<>();
+	
+	private String village = "";
+	
+	private String landmark = "";
+	
+	private String contact = "";
+	
+	private String alternateContact = "";
+}
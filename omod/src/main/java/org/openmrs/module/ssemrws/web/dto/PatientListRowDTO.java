@@ -0,0 +1,29 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+public class PatientListRowDTO {
+	
+	private Integer patientId;
+	
+	private String uuid;
+	
+	private String name;
+	
+	private String sex;
+	
+	private Date birthdate;
+	
+	private String identifiers;
+	
+	private String artRegimen;
+	
+	private String enrollmentDate;
+	
+	private String lastRefillDate;
+	
+	private String appointmentDate;
+}
@@ -0,0 +1,17 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+public class RegimenSwitchDTO {
+	
+	private Integer patientId;
+	
+	private Date switchDate;
+	
+	private String fromRegimen;
+	
+	private String toRegimen;
+}
@@ -0,0 +1,103 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import java.util.Date;
+
+import static org.openmrs.module.ssemrws.constants.SharedConstants.THRESHOLD;
+
+/**
+ * The latest viral load result of a patient as recorded: the numeric copies, a text result or a
+ * coded answer, with the date and encounter it came from. A text result that holds a number counts
+ * as the copies and a "Below Detectable (BDL)" text result as below detectable, so status and high
+ * viral load checks read the fields directly instead of parsing the displayed value.
+ */
+public class ViralLoadResult {
+	
+	public static final String BDL_DISPLAY = "Below Detectable (BDL)";
+	
+	public static final ViralLoadResult NONE = new ViralLoadResult(null, null, null, false, null, null);
+	
+	private final Double numericValue;
+	
+	private final Double copies;
+	
+	private final String textValue;
+	
+	private final String codedValue;
+	
+	private final boolean belowDetectable;
+	
+	private final Date resultDate;
+	
+	private final Integer encounterId;
+	
+	public ViralLoadResult(Double copies, String textValue, String codedValue, boolean belowDetectable, Date resultDate,
+	    Integer encounterId) {
+		this.numericValue = copies;
+		this.copies = copies != null ? copies : parseCopies(textValue);
+		this.textValue = textValue;
+		this.codedValue = codedValue;
+		this.belowDetectable = belowDetectable || BDL_DISPLAY.equalsIgnoreCase(textValue);
+		this.resultDate = resultDate;
+		this.encounterId = encounterId;
+	}
+	
+	public boolean isPresent() {
+		return resultDate != null;
+	}
+	
+	public Double getCopies() {
+		return copies;
+	}
+	
+	public boolean isBelowDetectable() {
+		return belowDetectable;
+	}
+	
+	public Date getResultDate() {
+		return resultDate;
+	}
+	
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+	
+	public boolean isSuppressed() {
+		return belowDetectable || (copies != null && copies < THRESHOLD);
+	}
+	
+	public boolean isHighViralLoad() {
+		return copies != null && copies >= THRESHOLD;
+	}
+	
+	// The result as shown on the patient profile: the numeric value, else the text as it was entered
+	public String getDisplayValue() {
+		if (numericValue != null) {
+			return numericValue.toString();
+		}
+		if (textValue != null) {
+			return textValue;
+		}
+		return belowDetectable ? BDL_DISPLAY : codedValue;
+	}
+	
+	// "Suppressed" or "Unsuppressed" for numeric and BDL results, otherwise "Unknown"
+	public String getStatus() {
+		if (isHighViralLoad()) {
+			return "Unsuppressed";
+		}
+		return isSuppressed() ? "Suppressed" : "Unknown";
+	}
+	
+	// Copies entered as a text result, or null when the text is not a number
+	static Double parseCopies(String textValue) {
+		if (textValue == null) {
+			return null;
+		}
+		try {
+			return Double.parseDouble(textValue);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
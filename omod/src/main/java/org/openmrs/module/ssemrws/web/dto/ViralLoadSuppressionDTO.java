@@ -0,0 +1,28 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class ViralLoadSuppressionDTO {
+	
+	private int covered;
+	
+	private int suppressed;
+	
+	private List<Breakdown> breakdown = new ArrayList<>();
+	
+	@Data
+	public static class Breakdown {
+		
+		private String sex;
+		
+		private String ageBand;
+		
+		private int covered;
+		
+		private int suppressed;
+	}
+}
@@ -0,0 +1,109 @@
+package org.openmrs.module.ssemrws.advice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.module.appointments.model.Appointment;
+import org.openmrs.module.ssemrws.queries.AppointmentTimelineIndex;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link AppointmentSaveAdvice}.
+ */
+public class AppointmentSaveAdviceTest {
+	
+	private final AppointmentSaveAdvice advice = new AppointmentSaveAdvice();
+	
+	// Stands in for the appointments service methods the advice is bound to
+	private interface AppointmentsServiceMethods {
+		
+		Appointment validateAndSave(Appointment appointment);
+		
+		Appointment getAppointmentByUuid(String uuid);
+	}
+	
+	@Before
+	public void setUp() {
+		getStalePatientIds().clear();
+	}
+	
+	@After
+	public void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		getStalePatientIds().clear();
+	}
+	
+	@Test
+	public void afterReturning_shouldMarkThePatientOfASavedAppointmentStale() throws Exception {
+		advice.afterReturning(null, method("validateAndSave", Appointment.class),
+		    new Object[] { appointmentFor(7) }, null);
+		
+		assertEquals(Collections.singleton(7), getStalePatientIds());
+	}
+	
+	@Test
+	public void afterReturning_shouldMarkReturnedAndCollectionArgumentsStale() throws Exception {
+		advice.afterReturning(appointmentFor(3), method("validateAndSave", Appointment.class),
+		    new Object[] { Collections.singletonList(appointmentFor(4)), "not an appointment" }, null);
+		
+		assertTrue(getStalePatientIds().contains(3));
+		assertTrue(getStalePatientIds().contains(4));
+		assertEquals(2, getStalePatientIds().size());
+	}
+	
+	@Test
+	public void afterReturning_shouldIgnoreReads() throws Exception {
+		advice.afterReturning(appointmentFor(5), method("getAppointmentByUuid", String.class),
+		    new Object[] { "uuid" }, null);
+		
+		assertTrue(getStalePatientIds().isEmpty());
+	}
+	
+	@Test
+	public void afterReturning_shouldIgnoreAppointmentsWithoutAPatient() throws Exception {
+		advice.afterReturning(new Appointment(), method("validateAndSave", Appointment.class), null, null);
+		
+		assertTrue(getStalePatientIds().isEmpty());
+	}
+	
+	@Test
+	public void afterReturning_shouldMarkThePatientStaleOnlyOnceTheTransactionCommits() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		
+		advice.afterReturning(appointmentFor(8), method("validateAndSave", Appointment.class), null, null);
+		
+		assertTrue(getStalePatientIds().isEmpty());
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+		assertEquals(Collections.singleton(8), getStalePatientIds());
+	}
+	
+	private static Method method(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+		return AppointmentsServiceMethods.class.getMethod(name, parameterTypes);
+	}
+	
+	private static Appointment appointmentFor(int patientId) {
+		Appointment appointment = new Appointment();
+		appointment.setPatient(new Patient(patientId));
+		return appointment;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Set<Integer> getStalePatientIds() {
+		return ((Map<Integer, Long>) ReflectionTestUtils.getField(AppointmentTimelineIndex.class, "stalePatientIds"))
+		        .keySet();
+	}
+}
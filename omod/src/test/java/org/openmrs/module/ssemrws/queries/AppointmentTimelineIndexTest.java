@@ -0,0 +1,246 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AppointmentTimelineIndex}, run against a mocked appointment query.
+ */
+public class AppointmentTimelineIndexTest {
+	
+	private static final long DAY = 86400000L;
+	
+	private static final Date NOW = new Date(100 * DAY);
+	
+	private AppointmentTimelineIndex index;
+	
+	private EntityManager entityManager;
+	
+	private Query fullQuery;
+	
+	private Query patientQuery;
+	
+	private Query changedQuery;
+	
+	@Before
+	public void setUp() {
+		resetIndex();
+		entityManager = mock(EntityManager.class);
+		fullQuery = mockQuery();
+		patientQuery = mockQuery();
+		changedQuery = mockQuery();
+		when(entityManager.createNativeQuery(anyString())).thenAnswer(invocation -> {
+			String sql = (String) invocation.getArguments()[0];
+			if (sql.contains(":patientId")) {
+				return patientQuery;
+			}
+			return sql.contains(":since") ? changedQuery : fullQuery;
+		});
+		
+		index = new AppointmentTimelineIndex();
+		ReflectionTestUtils.setField(index, "entityManager", entityManager);
+	}
+	
+	@After
+	public void tearDown() {
+		resetIndex();
+	}
+	
+	@Test
+	public void getNextAppointment_shouldSkipCancelledUnlessIncluded() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled"), row(1, 105, "Cancelled"),
+		    row(1, 90, "Completed")));
+		
+		assertEquals(day(110), index.getNextAppointment(1, NOW, false));
+		assertEquals(day(105), index.getNextAppointment(1, NOW, true));
+		assertNull(index.getNextAppointment(1, day(111), true));
+	}
+	
+	@Test
+	public void getNextAppointment_shouldIncludeAnAppointmentAtTheGivenTime() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 100, "Scheduled")));
+		
+		assertEquals(NOW, index.getNextAppointment(1, NOW, false));
+		assertFalse(index.hasAppointmentAfter(1, NOW));
+		assertTrue(index.hasAppointmentAfter(1, day(99)));
+	}
+	
+	@Test
+	public void lookups_shouldKeepTheStatusOfEachPackedEntry() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 80, "Completed"), row(1, 85, "Missed"),
+		    row(1, 95, "Cancelled"), row(1, 60, "Missed"), row(1, 120, "Scheduled")));
+		
+		assertEquals(day(80), index.getLastKeptAppointment(1, NOW));
+		assertEquals(day(85), index.getLastAppointmentWithStatus(1, NOW, AppointmentTimelineIndex.MISSED));
+		assertEquals(day(60), index.getLastAppointmentWithStatus(1, day(85), AppointmentTimelineIndex.MISSED));
+		assertTrue(index.hasAppointmentWithStatus(1, AppointmentTimelineIndex.CANCELLED));
+		assertFalse(index.hasAppointmentWithStatus(1, "CheckedIn"));
+	}
+	
+	@Test
+	public void lookups_shouldTreatUnknownPatientsAsHavingNoAppointments() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		
+		assertNull(index.getNextAppointment(2, NOW, true));
+		assertNull(index.getLastKeptAppointment(2, NOW));
+		assertFalse(index.hasAppointmentWithStatus(2, AppointmentTimelineIndex.MISSED));
+	}
+	
+	@Test
+	public void getLastMissedAppointmentForIit_shouldUseTheDay28DaysAfterTheMissedAppointment() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 50, "Missed"), row(1, 70, "Missed")));
+		
+		// 70 + 28 = 98 is within the period; 50 + 28 = 78 is before it
+		assertEquals(day(70), index.getLastMissedAppointmentForIit(1, day(90), day(100), NOW));
+		assertEquals(day(50), index.getLastMissedAppointmentForIit(1, day(75), day(80), NOW));
+		assertNull(index.getLastMissedAppointmentForIit(1, day(90), day(100), day(97)));
+	}
+	
+	@Test
+	public void reads_shouldLoadTheIndexOnce() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		
+		index.getNextAppointment(1, NOW, false);
+		index.getNextAppointment(1, NOW, false);
+		index.getLastKeptAppointment(2, NOW);
+		
+		verify(entityManager, times(1)).createNativeQuery(anyString());
+	}
+	
+	@Test
+	public void markStale_shouldReloadOnlyThatPatientOnItsNextRead() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled"), row(2, 120, "Scheduled")));
+		when(patientQuery.getResultList()).thenReturn(rows(row(1, 130, "Scheduled")));
+		assertEquals(day(110), index.getNextAppointment(1, NOW, false));
+		
+		AppointmentTimelineIndex.markStale(1);
+		
+		assertEquals(day(120), index.getNextAppointment(2, NOW, false));
+		assertEquals(day(130), index.getNextAppointment(1, NOW, false));
+		verify(patientQuery).setParameter("patientId", 1);
+		verify(entityManager, times(2)).createNativeQuery(anyString());
+	}
+	
+	@Test
+	public void markStale_shouldDropAPatientWhoseAppointmentsAreGone() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		when(patientQuery.getResultList()).thenReturn(Collections.emptyList());
+		assertNotNull(index.getNextAppointment(1, NOW, false));
+		
+		AppointmentTimelineIndex.markStale(1);
+		
+		assertNull(index.getNextAppointment(1, NOW, false));
+	}
+	
+	@Test
+	public void markStale_shouldKeepThePatientStaleWhenTheReloadFails() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		when(patientQuery.getResultList()).thenThrow(new IllegalStateException("no connection"))
+		        .thenReturn(rows(row(1, 130, "Scheduled")));
+		index.getNextAppointment(1, NOW, false);
+		AppointmentTimelineIndex.markStale(1);
+		
+		try {
+			index.getNextAppointment(1, NOW, false);
+			fail("Expected the failed reload to be reported");
+		}
+		catch (RuntimeException e) {
+			// the mark stays, so the next read retries
+		}
+		
+		assertEquals(day(130), index.getNextAppointment(1, NOW, false));
+	}
+	
+	@Test
+	public void markStale_shouldKeepAMarkMadeWhileThePatientReloads() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		when(patientQuery.getResultList()).thenAnswer(invocation -> {
+			AppointmentTimelineIndex.markStale(1);
+			return rows(row(1, 130, "Scheduled"));
+		}).thenReturn(rows(row(1, 140, "Scheduled")));
+		index.getNextAppointment(1, NOW, false);
+		AppointmentTimelineIndex.markStale(1);
+		
+		assertEquals(day(130), index.getNextAppointment(1, NOW, false));
+		assertEquals(day(140), index.getNextAppointment(1, NOW, false));
+		assertEquals(day(140), index.getNextAppointment(1, NOW, false));
+		verify(patientQuery, times(2)).getResultList();
+	}
+	
+	@Test
+	public void refresh_shouldLoadTheIndexBeforeTheFirstRead() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")));
+		
+		index.refresh();
+		
+		assertEquals(day(110), index.getNextAppointment(1, NOW, false));
+		verify(entityManager, times(1)).createNativeQuery(anyString());
+	}
+	
+	@Test
+	public void refresh_shouldReloadThePatientsChangedSinceThePreviousRun() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled"), row(2, 120, "Scheduled")));
+		when(changedQuery.getResultList()).thenReturn(Collections.singletonList(2));
+		when(patientQuery.getResultList()).thenReturn(rows(row(2, 125, "Missed")));
+		index.refresh();
+		
+		index.refresh();
+		
+		assertEquals(day(110), index.getNextAppointment(1, NOW, false));
+		assertEquals(day(125), index.getLastAppointmentWithStatus(2, day(130), AppointmentTimelineIndex.MISSED));
+		verify(patientQuery).setParameter("patientId", 2);
+		verify(fullQuery, times(1)).getResultList();
+	}
+	
+	@Test
+	public void refresh_shouldReloadInFullOnceTheIndexExpires() {
+		when(fullQuery.getResultList()).thenReturn(rows(row(1, 110, "Scheduled")), rows(row(1, 115, "Scheduled")));
+		index.refresh();
+		ReflectionTestUtils.setField(AppointmentTimelineIndex.class, "loadTime", 0L);
+		
+		index.refresh();
+		
+		assertEquals(day(115), index.getNextAppointment(1, NOW, false));
+		verify(changedQuery, never()).getResultList();
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void reads_shouldFailWhenTheQueryFails() {
+		when(fullQuery.getResultList()).thenThrow(new IllegalStateException("no connection"));
+		
+		index.getNextAppointment(1, NOW, false);
+	}
+	
+	private static Query mockQuery() {
+		Query query = mock(Query.class);
+		when(query.setParameter(anyString(), any())).thenReturn(query);
+		return query;
+	}
+	
+	private static Date day(int day) {
+		return new Date(day * DAY);
+	}
+	
+	private static Object[] row(int patientId, int day, String status) {
+		return new Object[] { patientId, day(day), status };
+	}
+	
+	private static List<Object[]> rows(Object[]... rows) {
+		return Arrays.asList(rows);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void resetIndex() {
+		ReflectionTestUtils.setField(AppointmentTimelineIndex.class, "timelines", null);
+		((Map<Integer, Long>) ReflectionTestUtils.getField(AppointmentTimelineIndex.class, "stalePatientIds")).clear();
+	}
+}
@@ -0,0 +1,45 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Base class of the dataset tests of the module's native queries. The queries are written for MySQL
+ * and read the {@code ssemr_etl} tables, so the tests run against a MySQL database with the module
+ * and the ETL installed, selected with {@code -DuseInMemoryDatabase=false}, and are skipped on the
+ * in-memory database. Fixture patients use ids from 990001 so that they do not meet existing data,
+ * and every test is rolled back.
+ */
+public abstract class BaseNativeQueryTest extends BaseModuleContextSensitiveTest {
+	
+	protected static final String DATASET_PATH = "org/openmrs/module/ssemrws/include/";
+	
+	protected static final int FIRST_FIXTURE_ID = 990001;
+	
+	@Before
+	public void requireMySql() {
+		Assume.assumeFalse("The native queries need a MySQL database", useInMemoryDatabase());
+	}
+	
+	// Inserts fixture rows into tables outside the openmrs schema, which the datasets cannot reach
+	protected void executeSql(String sql) {
+		Context.getAdministrationService().executeSQL(sql, false);
+	}
+	
+	// The fixture patients among the returned ids, leaving out those of the existing data
+	protected static Set<Integer> fixtureIds(Collection<Integer> patientIds) {
+		Set<Integer> fixtureIds = new TreeSet<>();
+		for (Integer patientId : patientIds) {
+			if (patientId >= FIRST_FIXTURE_ID) {
+				fixtureIds.add(patientId);
+			}
+		}
+		return fixtureIds;
+	}
+}
@@ -0,0 +1,154 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DailyIndicatorStore} against fixture rows, reading the counts it returns and the days
+ * it leaves in {@code ssemrws_daily_indicator}. The fixture days are in 1990, so that no existing
+ * data falls on them.
+ */
+public class DailyIndicatorStoreTest extends BaseNativeQueryTest {
+	
+	@Autowired
+	private DailyIndicatorStore store;
+	
+	@Before
+	public void setUp() {
+		ReflectionTestUtils.setField(DailyIndicatorStore.class, "lastInvalidationTime", 0L);
+	}
+	
+	@After
+	public void tearDown() {
+		ReflectionTestUtils.setField(DailyIndicatorStore.class, "lastInvalidationTime", 0L);
+	}
+	
+	@Test
+	public void getDailyCounts_shouldCountEveryDayAndStoreTheSettledOnes() {
+		addEacSessions(990101, 990001, "'1990-01-10'", "'1990-01-12'", "NULL");
+		addEacSessions(990102, 990002, "'1990-01-10'", "NULL", "NULL");
+		
+		Map<LocalDate, Integer> counts = store.getDailyCounts(DailyIndicatorStore.EAC_SESSIONS, date("1990-01-09"),
+		    date("1990-01-12"));
+		
+		Map<LocalDate, Integer> expected = new TreeMap<>();
+		expected.put(LocalDate.of(1990, 1, 9), 0);
+		expected.put(LocalDate.of(1990, 1, 10), 2);
+		expected.put(LocalDate.of(1990, 1, 11), 0);
+		expected.put(LocalDate.of(1990, 1, 12), 1);
+		assertEquals(expected, counts);
+		assertEquals(expected, getStoredCounts(DailyIndicatorStore.EAC_SESSIONS));
+	}
+	
+	@Test
+	public void getDailyCounts_shouldAnswerStoredDaysFromTheTable() {
+		addEacSessions(990101, 990001, "'1990-01-10'", "'1990-01-11'", "NULL");
+		storeCount(DailyIndicatorStore.EAC_SESSIONS, "1990-01-10", 7);
+		
+		Map<LocalDate, Integer> counts = store.getDailyCounts(DailyIndicatorStore.EAC_SESSIONS, date("1990-01-10"),
+		    date("1990-01-11"));
+		
+		assertEquals(Integer.valueOf(7), counts.get(LocalDate.of(1990, 1, 10)));
+		assertEquals(Integer.valueOf(1), counts.get(LocalDate.of(1990, 1, 11)));
+	}
+	
+	@Test
+	public void getDailyCounts_shouldNotStoreDaysWithinTheSettleWindow() {
+		LocalDate yesterday = LocalDate.now().minusDays(1);
+		
+		store.getDailyCounts(DailyIndicatorStore.EAC_SESSIONS, java.sql.Date.valueOf(yesterday),
+		    java.sql.Date.valueOf(LocalDate.now()));
+		
+		List<List<Object>> rows = Context.getAdministrationService().executeSQL(
+		    "SELECT value FROM ssemrws_daily_indicator WHERE indicator = '" + DailyIndicatorStore.EAC_SESSIONS
+		            + "' AND indicator_date >= '" + yesterday + "'", true);
+		assertTrue(rows.isEmpty());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void getDailyCounts_shouldRejectAnUnknownIndicator() {
+		store.getDailyCounts("TX_UNKNOWN", date("1990-01-09"), date("1990-01-10"));
+	}
+	
+	@Test
+	public void invalidateChangedDays_shouldDeleteTheStoredDaysWhoseAppointmentsChanged() {
+		executeDataSet(DATASET_PATH + "LatestAppointmentDataset.xml");
+		executeSql("INSERT INTO patient_appointment (patient_appointment_id, patient_id, start_date_time, "
+		        + "end_date_time, status, appointment_kind, creator, date_created, voided, uuid) VALUES (990105, 990001, "
+		        + "'1990-01-10 09:00:00', '1990-01-10 09:30:00', 'Missed', 'Scheduled', 1, NOW(), 0, UUID())");
+		storeCount(DailyIndicatorStore.MISSED_APPOINTMENTS, "1990-01-10", 0);
+		storeCount(DailyIndicatorStore.MISSED_APPOINTMENTS, "1990-01-11", 0);
+		ReflectionTestUtils.setField(DailyIndicatorStore.class, "lastInvalidationTime",
+		    System.currentTimeMillis() - 3600000);
+		
+		store.invalidateChangedDays();
+		
+		assertEquals(Collections.singleton(LocalDate.of(1990, 1, 11)),
+		    getStoredCounts(DailyIndicatorStore.MISSED_APPOINTMENTS).keySet());
+		assertEquals(Integer.valueOf(1), store.getDailyCounts(DailyIndicatorStore.MISSED_APPOINTMENTS,
+		    date("1990-01-10"), date("1990-01-10")).get(LocalDate.of(1990, 1, 10)));
+	}
+	
+	@Test
+	public void clear_shouldDropOnlyTheStoredDaysOfTheIndicator() {
+		storeCount(DailyIndicatorStore.VL_RESULTS, "1990-01-10", 3);
+		storeCount(DailyIndicatorStore.VL_SAMPLES, "1990-01-10", 4);
+		
+		store.clear(DailyIndicatorStore.VL_RESULTS);
+		
+		assertTrue(getStoredCounts(DailyIndicatorStore.VL_RESULTS).isEmpty());
+		assertEquals(Integer.valueOf(4), getStoredCounts(DailyIndicatorStore.VL_SAMPLES).get(LocalDate.of(1990, 1, 10)));
+	}
+	
+	@Test
+	public void clear_shouldDropEveryStoredDayWithoutAnIndicator() {
+		storeCount(DailyIndicatorStore.VL_RESULTS, "1990-01-10", 3);
+		storeCount(DailyIndicatorStore.VL_SAMPLES, "1990-01-10", 4);
+		
+		store.clear(null);
+		
+		assertTrue(getStoredCounts(DailyIndicatorStore.VL_RESULTS).isEmpty());
+		assertTrue(getStoredCounts(DailyIndicatorStore.VL_SAMPLES).isEmpty());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void clear_shouldRejectAnUnknownIndicator() {
+		store.clear("TX_UNKNOWN");
+	}
+	
+	// EAC 1, 2 and 3 session dates of a high viral load encounter, as SQL literals
+	private void addEacSessions(int encounterId, int clientId, String first, String second, String third) {
+		executeSql("INSERT INTO ssemr_etl.ssemr_flat_encounter_high_viral_load (encounter_id, client_id, "
+		        + "encounter_datetime, adherence_date, second_eac_session_date, third_eac_session_date) VALUES ("
+		        + encounterId + ", " + clientId + ", '1990-01-01', " + first + ", " + second + ", " + third + ")");
+	}
+	
+	private void storeCount(String indicator, String day, int value) {
+		executeSql("INSERT INTO ssemrws_daily_indicator (indicator, indicator_date, value, date_created) VALUES ('"
+		        + indicator + "', '" + day + "', " + value + ", NOW())");
+	}
+	
+	// The indicator's stored counts of the 1990 fixture days
+	private static Map<LocalDate, Integer> getStoredCounts(String indicator) {
+		Map<LocalDate, Integer> counts = new TreeMap<>();
+		for (List<Object> row : Context.getAdministrationService().executeSQL(
+		    "SELECT indicator_date, value FROM ssemrws_daily_indicator WHERE indicator = '" + indicator
+		            + "' AND indicator_date BETWEEN '1990-01-01' AND '1990-12-31'", true)) {
+			counts.put(((java.sql.Date) row.get(0)).toLocalDate(), ((Number) row.get(1)).intValue());
+		}
+		return counts;
+	}
+	
+	private static Date date(String day) {
+		return java.sql.Date.valueOf(day);
+	}
+}
@@ -0,0 +1,102 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the refresh of {@link GetLatestAppointment} against fixture appointments, reading the rows
+ * it leaves in {@code ssemrws_latest_appointment}.
+ */
+public class GetLatestAppointmentTest extends BaseNativeQueryTest {
+	
+	@Autowired
+	private GetLatestAppointment getLatestAppointment;
+	
+	@Before
+	public void setUp() {
+		resetRefreshState(0, 0);
+		executeDataSet(DATASET_PATH + "LatestAppointmentDataset.xml");
+	}
+	
+	@After
+	public void tearDown() {
+		resetRefreshState(0, 0);
+	}
+	
+	@Test
+	public void refresh_shouldKeepTheLatestAppointmentOfEveryPatientOnAFullRefresh() {
+		getLatestAppointment.refresh();
+		
+		Map<Integer, Integer> expected = new TreeMap<>();
+		expected.put(990001, 990102);
+		// Two appointments share the latest start time, so the one created last is kept
+		expected.put(990002, 990104);
+		assertEquals(expected, getLatestAppointmentIds());
+	}
+	
+	@Test
+	public void refresh_shouldDropRowsWhoseAppointmentIsGoneOnAFullRefresh() {
+		getLatestAppointment.refresh();
+		
+		assertFalse(getLatestAppointmentIds().containsKey(990003));
+	}
+	
+	@Test
+	public void refresh_shouldOnlyRecomputeChangedPatientsWhenRequestedBetweenFullRefreshes() {
+		long lastRefreshTime = System.currentTimeMillis();
+		resetRefreshState(lastRefreshTime, lastRefreshTime);
+		addAppointment(990105, 990001, "2026-04-01 09:00:00");
+		GetLatestAppointment.requestRefresh();
+		
+		getLatestAppointment.refresh();
+		
+		Map<Integer, Integer> latestAppointmentIds = getLatestAppointmentIds();
+		assertEquals(Integer.valueOf(990105), latestAppointmentIds.get(990001));
+		assertFalse(latestAppointmentIds.containsKey(990002));
+		assertEquals(Integer.valueOf(990199), latestAppointmentIds.get(990003));
+	}
+	
+	@Test
+	public void refresh_shouldLeaveTheTableAsItIsWithinTheRefreshInterval() {
+		getLatestAppointment.refresh();
+		addAppointment(990105, 990001, "2026-04-01 09:00:00");
+		
+		getLatestAppointment.refresh();
+		
+		assertEquals(Integer.valueOf(990102), getLatestAppointmentIds().get(990001));
+	}
+	
+	private void addAppointment(int appointmentId, int patientId, String startDateTime) {
+		executeSql("INSERT INTO patient_appointment (patient_appointment_id, patient_id, start_date_time, "
+		        + "end_date_time, status, appointment_kind, creator, date_created, voided, uuid) VALUES (" + appointmentId
+		        + ", " + patientId + ", '" + startDateTime + "', '" + startDateTime + "', 'Scheduled', 'Scheduled', 1, "
+		        + "NOW(), 0, UUID())");
+	}
+	
+	// Latest appointment id by fixture patient id
+	private static Map<Integer, Integer> getLatestAppointmentIds() {
+		Map<Integer, Integer> latestAppointmentIds = new TreeMap<>();
+		for (List<Object> row : Context.getAdministrationService().executeSQL(
+		    "SELECT patient_id, patient_appointment_id FROM ssemrws_latest_appointment WHERE patient_id >= "
+		            + FIRST_FIXTURE_ID, true)) {
+			latestAppointmentIds.put(((Number) row.get(0)).intValue(), ((Number) row.get(1)).intValue());
+		}
+		return latestAppointmentIds;
+	}
+	
+	private static void resetRefreshState(long lastRefreshTime, long lastFullRefreshTime) {
+		ReflectionTestUtils.setField(GetLatestAppointment.class, "lastRefreshTime", lastRefreshTime);
+		ReflectionTestUtils.setField(GetLatestAppointment.class, "lastFullRefreshTime", lastFullRefreshTime);
+		ReflectionTestUtils.setField(GetLatestAppointment.class, "refreshRequested", false);
+	}
+}
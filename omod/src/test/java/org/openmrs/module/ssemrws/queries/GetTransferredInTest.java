@@ -0,0 +1,73 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link GetTransferredIn} against fixture identifiers created around a reporting period that
+ * runs from 2026-07-01 to 2026-09-30.
+ */
+public class GetTransferredInTest extends BaseNativeQueryTest {
+	
+	@Autowired
+	private GetTransferredIn getTransferredIn;
+	
+	private Date startDate;
+	
+	private Date endDate;
+	
+	@Before
+	public void setUp() throws Exception {
+		executeDataSet(DATASET_PATH + "TransferredInDataset.xml");
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		startDate = dateFormat.parse("2026-07-01");
+		endDate = dateFormat.parse("2026-09-30");
+	}
+	
+	@Test
+	public void getTransferredInPatientIds_shouldReturnThePatientsWithATransferInIdentifierCreatedInThePeriod() {
+		Set<Integer> patientIds = getTransferredIn.getTransferredInPatientIds(startDate, endDate);
+		
+		assertEquals(new TreeSet<>(Arrays.asList(990001, 990002)), fixtureIds(patientIds));
+	}
+	
+	@Test
+	public void getTransferredInPatientIds_shouldIncludeAnIdentifierCreatedDuringTheEndDate() {
+		Set<Integer> patientIds = getTransferredIn.getTransferredInPatientIds(startDate, endDate);
+		
+		// TI-990103 was created at 15:30 on the end date itself
+		assertTrue(patientIds.contains(990002));
+	}
+	
+	@Test
+	public void getTransferredInPatientIds_shouldLeaveOutIdentifiersCreatedOutsideThePeriod() {
+		Set<Integer> patientIds = getTransferredIn.getTransferredInPatientIds(startDate, endDate);
+		
+		assertFalse(patientIds.contains(990003));
+		assertFalse(patientIds.contains(990006));
+	}
+	
+	@Test
+	public void getTransferredInPatientIds_shouldLeaveOutOtherAndVoidedIdentifiers() {
+		Set<Integer> patientIds = getTransferredIn.getTransferredInPatientIds(startDate, endDate);
+		
+		assertFalse(patientIds.contains(990004));
+		assertFalse(patientIds.contains(990005));
+	}
+	
+	@Test
+	public void getTransferredInPatientIds_shouldOnlyCountTheEndDateOnceWhenItCarriesATime() throws Exception {
+		Date endOfEndDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse("2026-09-30 23:59:59");
+		
+		Set<Integer> patientIds = getTransferredIn.getTransferredInPatientIds(startDate, endOfEndDate);
+		
+		assertEquals(new TreeSet<>(Arrays.asList(990001, 990002)), fixtureIds(patientIds));
+	}
+}
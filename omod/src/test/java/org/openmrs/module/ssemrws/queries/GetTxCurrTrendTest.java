@@ -0,0 +1,234 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the TX_CURR trend sweep of {@link GetTxCurrTrend} against the per-date TX_CURR rules: the
+ * appointment, ART start and exit conditions of {@link GetTxCurrQueries#executeTxCurrQuery(Date)},
+ * the IIT exclusion of {@link GetInterruptedInTreatment} and the ART start check of {@code GetTxCurr}.
+ * Each fixture patient is turned into the rows the trend queries would return, and the sweep must
+ * give the same count as the rules evaluated date by date.
+ */
+public class GetTxCurrTrendTest {
+	
+	private static final LocalDate DAY_ZERO = LocalDate.of(2025, 1, 1);
+	
+	private static final int[] REPORTING_DAYS = { -1, 0, 9, 10, 14, 15, 29, 30, 45, 48, 49, 59, 60, 68, 69, 100, 101,
+	        200 };
+	
+	private static final List<String> STATUSES = Arrays.asList("Scheduled", "Completed", "Missed");
+	
+	// One client with their appointments, ART starts, ART history rows and IIT follow-ups
+	private static class FixturePatient {
+		
+		final int id;
+		
+		final List<int[]> appointments = new ArrayList<>();
+		
+		final List<Integer> artStarts = new ArrayList<>();
+		
+		// {encounter day, ART start day}, in encounter order
+		final List<int[]> history = new ArrayList<>();
+		
+		final List<Integer> followUps = new ArrayList<>();
+		
+		boolean iitToday;
+		
+		boolean exited;
+		
+		FixturePatient(int id) {
+			this.id = id;
+		}
+		
+		FixturePatient appointment(int day, String status) {
+			appointments.add(new int[] { day, STATUSES.indexOf(status) });
+			return this;
+		}
+		
+		FixturePatient artStart(int day) {
+			artStarts.add(day);
+			return this;
+		}
+		
+		FixturePatient history(int encounterDay, int artStartDay) {
+			history.add(new int[] { encounterDay, artStartDay });
+			return this;
+		}
+	}
+	
+	@Test
+	public void countTxCurr_shouldMatchTheTxCurrRulesAtEachReportingDate() {
+		List<FixturePatient> patients = fixture();
+		List<Date> reportingDates = new ArrayList<>();
+		for (int day : REPORTING_DAYS) {
+			reportingDates.add(reportingDate(day));
+		}
+		
+		Map<Date, Integer> counts = GetTxCurrTrend.countTxCurr(reportingDates, activeIntervalRows(patients),
+		    GetTxCurrTrend.buildArtHistory(artHistoryRows(patients)));
+		
+		assertEquals(REPORTING_DAYS.length, counts.size());
+		for (int day : REPORTING_DAYS) {
+			assertEquals("TX_CURR on day " + day, Integer.valueOf(countByRules(patients, day)),
+			    counts.get(reportingDate(day)));
+		}
+	}
+	
+	@Test
+	public void collectTxCurrPatientIds_shouldReturnThePatientsTheRulesCountAtEachReportingDate() {
+		List<FixturePatient> patients = fixture();
+		List<Date> reportingDates = new ArrayList<>();
+		for (int day : REPORTING_DAYS) {
+			reportingDates.add(reportingDate(day));
+		}
+		
+		Map<Date, Set<Integer>> patientIds = GetTxCurrTrend.collectTxCurrPatientIds(reportingDates,
+		    activeIntervalRows(patients), GetTxCurrTrend.buildArtHistory(artHistoryRows(patients)));
+		
+		assertEquals(REPORTING_DAYS.length, patientIds.size());
+		for (int day : REPORTING_DAYS) {
+			assertEquals("TX_CURR patients on day " + day, txCurrByRules(patients, day),
+			    patientIds.get(reportingDate(day)));
+		}
+	}
+	
+	@Test
+	public void countTxCurr_shouldReturnTheDatesInDayOrderAndCountEachDayOnce() {
+		List<FixturePatient> patients = fixture();
+		Date morning = reportingDate(45);
+		Date evening = new Date(morning.getTime() + 6 * 3600000L);
+		
+		Map<Date, Integer> counts = GetTxCurrTrend.countTxCurr(Arrays.asList(reportingDate(60), morning, evening),
+		    activeIntervalRows(patients), GetTxCurrTrend.buildArtHistory(artHistoryRows(patients)));
+		
+		assertEquals(Arrays.asList(morning, reportingDate(60)), new ArrayList<>(counts.keySet()));
+		assertEquals(Integer.valueOf(countByRules(patients, 45)), counts.get(morning));
+	}
+	
+	@Test
+	public void countTxCurr_shouldCountNobodyWithoutActiveIntervals() {
+		Map<Date, Integer> counts = GetTxCurrTrend.countTxCurr(Collections.singletonList(reportingDate(10)),
+		    Collections.emptyList(), Collections.emptyMap());
+		
+		assertEquals(Integer.valueOf(0), counts.get(reportingDate(10)));
+	}
+	
+	private static List<FixturePatient> fixture() {
+		List<FixturePatient> patients = new ArrayList<>();
+		// Attends, with an appointment far ahead
+		patients.add(new FixturePatient(1).artStart(0).history(0, 0).appointment(10, "Completed").appointment(100,
+		    "Scheduled"));
+		// Last appointment missed on day 40, current until 28 days later
+		patients.add(new FixturePatient(2).artStart(5).history(5, 5).appointment(20, "Completed").appointment(40,
+		    "Missed"));
+		// IIT today, excluded from the first follow-up on
+		FixturePatient iit = new FixturePatient(3).artStart(0).history(0, 0).appointment(20, "Missed");
+		iit.iitToday = true;
+		iit.followUps.addAll(Arrays.asList(50, 10));
+		patients.add(iit);
+		// Transferred out, died or refused treatment
+		FixturePatient exited = new FixturePatient(4).artStart(0).history(0, 0).appointment(100, "Scheduled");
+		exited.exited = true;
+		patients.add(exited);
+		// The history row of day 0 records an ART start on day 30; the row of day 60 corrects it to day 0
+		patients.add(new FixturePatient(5).artStart(0).history(0, 30).history(60, 0).appointment(200, "Scheduled"));
+		// Intake only, no ART history row
+		patients.add(new FixturePatient(6).artStart(0).appointment(100, "Scheduled"));
+		// Two history rows on day 15; the later one wins
+		patients.add(new FixturePatient(7).artStart(15).history(15, 40).history(15, 15).appointment(80, "Scheduled"));
+		// ART started after the intake date recorded on the history form
+		patients.add(new FixturePatient(8).artStart(30).artStart(45).history(10, 45).appointment(30, "Missed")
+		        .appointment(59, "Completed"));
+		return patients;
+	}
+	
+	private static int countByRules(List<FixturePatient> patients, int day) {
+		return txCurrByRules(patients, day).size();
+	}
+	
+	/**
+	 * The TX_CURR patients on the day, evaluated patient by patient as the cohort queries do.
+	 */
+	private static Set<Integer> txCurrByRules(List<FixturePatient> patients, int day) {
+		Set<Integer> patientIds = new HashSet<>();
+		for (FixturePatient patient : patients) {
+			if (patient.exited || patient.artStarts.isEmpty() || Collections.min(patient.artStarts) > day) {
+				continue;
+			}
+			boolean current = false;
+			for (int[] appointment : patient.appointments) {
+				boolean missedWithinGrace = STATUSES.get(appointment[1]).equals("Missed")
+				        && day - appointment[0] <= GetInterruptedInTreatment.IIT_DAYS;
+				if (appointment[0] > day || missedWithinGrace || appointment[0] == day) {
+					current = true;
+				}
+			}
+			if (!current) {
+				continue;
+			}
+			if (patient.iitToday && Collections.min(patient.followUps) <= day) {
+				continue;
+			}
+			Integer artStart = null;
+			for (int[] row : patient.history) {
+				if (row[0] <= day) {
+					artStart = row[1];
+				}
+			}
+			if (artStart != null && artStart <= day) {
+				patientIds.add(patient.id);
+			}
+		}
+		return patientIds;
+	}
+	
+	// The rows ACTIVE_INTERVAL_QUERY returns for the fixture
+	private static List<Object[]> activeIntervalRows(List<FixturePatient> patients) {
+		List<Object[]> rows = new ArrayList<>();
+		for (FixturePatient patient : patients) {
+			if (patient.exited || patient.artStarts.isEmpty() || patient.appointments.isEmpty()) {
+				continue;
+			}
+			int lastDay = Integer.MIN_VALUE;
+			Integer lastMissedDay = null;
+			for (int[] appointment : patient.appointments) {
+				lastDay = Math.max(lastDay, appointment[0]);
+				if (STATUSES.get(appointment[1]).equals("Missed")) {
+					lastMissedDay = lastMissedDay == null ? appointment[0] : Math.max(lastMissedDay, appointment[0]);
+				}
+			}
+			int activeUntil = lastMissedDay == null ? lastDay
+			        : Math.max(lastDay, lastMissedDay + GetInterruptedInTreatment.IIT_DAYS);
+			Date firstFollowUp = patient.iitToday ? sqlDate(Collections.min(patient.followUps)) : null;
+			rows.add(new Object[] { patient.id, sqlDate(Collections.min(patient.artStarts)), sqlDate(activeUntil),
+			        firstFollowUp });
+		}
+		return rows;
+	}
+	
+	// The rows ART_HISTORY_QUERY returns for the fixture
+	private static List<Object[]> artHistoryRows(List<FixturePatient> patients) {
+		List<Object[]> rows = new ArrayList<>();
+		for (FixturePatient patient : patients) {
+			for (int[] row : patient.history) {
+				rows.add(new Object[] { patient.id, sqlDate(row[0]), sqlDate(row[1]) });
+			}
+		}
+		return rows;
+	}
+	
+	private static java.sql.Date sqlDate(int day) {
+		return java.sql.Date.valueOf(DAY_ZERO.plusDays(day));
+	}
+	
+	// Reporting dates come from the controller as times of day, not SQL dates
+	private static Date reportingDate(int day) {
+		return Date.from(DAY_ZERO.plusDays(day).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant());
+	}
+}
@@ -0,0 +1,71 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reads of {@link GetVLEligibility} against a dataset of stored eligibility rows.
+ */
+public class GetVLEligibilityTest extends BaseNativeQueryTest {
+	
+	@Autowired
+	private GetVLEligibility getVLEligibility;
+	
+	@Before
+	public void setUp() {
+		executeDataSet(DATASET_PATH + "VLEligibilityDataset.xml");
+	}
+	
+	@Test
+	public void getVLDueDate_shouldMapPendingStatesBeforeTheEligibilityDate() {
+		assertEquals(GetVLEligibility.PENDING_RESULTS, getVLEligibility.getVLDueDate(990001));
+		assertEquals(GetVLEligibility.PENDING_EAC, getVLEligibility.getVLDueDate(990002));
+		assertEquals(GetVLEligibility.NOT_AVAILABLE, getVLEligibility.getVLDueDate(990004));
+	}
+	
+	@Test
+	public void getVLDueDates_shouldMapPendingStatesBeforeTheEligibilityDate() {
+		Map<Integer, String> dueDates = getVLEligibility.getVLDueDates(Arrays.asList(990001, 990002, 990003, 990004,
+		    990005));
+		
+		assertEquals(GetVLEligibility.PENDING_RESULTS, dueDates.get(990001));
+		assertEquals(GetVLEligibility.PENDING_EAC, dueDates.get(990002));
+		assertEquals("03-03-2026", dueDates.get(990003));
+		assertEquals(GetVLEligibility.NOT_AVAILABLE, dueDates.get(990004));
+		assertEquals(GetVLEligibility.NOT_AVAILABLE, dueDates.get(990005));
+	}
+	
+	@Test
+	public void getVLDueDate_shouldReadTheStoredRowOfThePatient() {
+		assertEquals("03-03-2026", getVLEligibility.getVLDueDate(990003));
+		assertEquals(GetVLEligibility.NOT_AVAILABLE, getVLEligibility.getVLDueDate(990005));
+	}
+	
+	@Test
+	public void getDueForVlPatientIds_shouldReturnPatientsDueInThePeriodWithoutPendingStates() throws Exception {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		
+		List<Integer> patientIds = getVLEligibility.getDueForVlPatientIds(dateFormat.parse("2026-03-01"),
+		    dateFormat.parse("2026-03-31"));
+		
+		assertEquals(new TreeSet<>(Arrays.asList(990003, 990006)), fixtureIds(patientIds));
+	}
+	
+	@Test
+	public void getDueForVlPatientIds_shouldLeaveOutPatientsWhoDied() throws Exception {
+		executeSql("INSERT INTO ssemr_etl.ssemr_flat_encounter_end_of_follow_up (encounter_id, client_id, "
+		        + "encounter_datetime, death) VALUES (990201, 990006, '2026-02-01', 'Yes')");
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		
+		List<Integer> patientIds = getVLEligibility.getDueForVlPatientIds(dateFormat.parse("2026-03-01"),
+		    dateFormat.parse("2026-03-31"));
+		
+		assertEquals(Collections.singleton(990003), fixtureIds(patientIds));
+	}
+}
@@ -0,0 +1,112 @@
+package org.openmrs.module.ssemrws.queries;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link RefreshVLEligibility} against ETL fixture rows, reading the stored eligibility back
+ * through {@link GetVLEligibility}.
+ */
+public class RefreshVLEligibilityTest extends BaseNativeQueryTest {
+	
+	private static final int PATIENT_ID = 990001;
+	
+	@Autowired
+	private RefreshVLEligibility refreshVLEligibility;
+	
+	@Autowired
+	private GetVLEligibility getVLEligibility;
+	
+	@Before
+	public void setUp() {
+		resetRefreshState(0, 0);
+		executeSql("INSERT INTO ssemr_etl.mamba_dim_person (person_id, age) VALUES (" + PATIENT_ID + ", 30)");
+		executeSql("INSERT INTO ssemr_etl.ssemr_flat_encounter_personal_family_tx_history (encounter_id, client_id, "
+		        + "encounter_datetime, art_start_date) VALUES (990101, " + PATIENT_ID + ", '2025-01-10', '2025-01-10')");
+	}
+	
+	@After
+	public void tearDown() {
+		resetRefreshState(0, 0);
+	}
+	
+	@Test
+	public void refresh_shouldDateAFirstSuppressedAdultResultSixMonthsAfterTheSample() {
+		addFollowUp(990102, "2025-07-01", "'2025-07-15'", 200);
+		
+		refreshVLEligibility.refresh();
+		
+		assertEquals("01-01-2026", getVLEligibility.getVLDueDate(PATIENT_ID));
+	}
+	
+	@Test
+	public void refresh_shouldMarkASampleAwaitingResultsAsPending() {
+		addFollowUp(990102, "2025-07-01", "NULL", null);
+		
+		refreshVLEligibility.refresh();
+		
+		assertEquals(GetVLEligibility.PENDING_RESULTS, getVLEligibility.getVLDueDate(PATIENT_ID));
+	}
+	
+	@Test
+	public void refresh_shouldMarkAHighViralLoadBeforeTheThirdEacAsPendingEac() {
+		addFollowUp(990102, "2025-07-01", "'2025-07-15'", 5000);
+		
+		refreshVLEligibility.refresh();
+		
+		assertEquals(GetVLEligibility.PENDING_EAC, getVLEligibility.getVLDueDate(PATIENT_ID));
+	}
+	
+	@Test
+	public void refresh_shouldRecomputeAPatientWithANewFollowUpOnAnIncrementalPass() {
+		addFollowUp(990102, "2025-07-01", "'2025-07-15'", 200);
+		refreshVLEligibility.refresh();
+		long lastRefreshTime = System.currentTimeMillis();
+		resetRefreshState(lastRefreshTime, lastRefreshTime);
+		
+		// A second suppressed result moves the next test to twelve months after its sample
+		addFollowUp(990103, "2025-10-01", "'2025-10-10'", 300);
+		refreshVLEligibility.refresh();
+		
+		assertEquals("01-10-2026", getVLEligibility.getVLDueDate(PATIENT_ID));
+		assertEquals(lastRefreshTime, ReflectionTestUtils.getField(RefreshVLEligibility.class, "lastFullRefreshTime"));
+	}
+	
+	@Test
+	public void isFullRefreshDue_shouldBeDueOnceADay() {
+		long now = 10 * RefreshVLEligibility.FULL_REFRESH_INTERVAL_MS;
+		
+		assertTrue(RefreshVLEligibility.isFullRefreshDue(now, 0));
+		assertTrue(RefreshVLEligibility.isFullRefreshDue(now, now - RefreshVLEligibility.FULL_REFRESH_INTERVAL_MS));
+		assertFalse(RefreshVLEligibility.isFullRefreshDue(now, now - 300000));
+	}
+	
+	@Test
+	public void getChangedSince_shouldLookBackOverTheChangeWindow() {
+		long lastRefreshTime = 5 * RefreshVLEligibility.CHANGE_WINDOW_MS;
+		
+		assertEquals(new Date(lastRefreshTime - RefreshVLEligibility.CHANGE_WINDOW_MS),
+		    RefreshVLEligibility.getChangedSince(lastRefreshTime));
+		assertEquals(new Date(0), RefreshVLEligibility.getChangedSince(1000));
+	}
+	
+	// A follow-up visit whose viral load sample was collected on the visit day
+	private void addFollowUp(int encounterId, String visitDate, String resultsReceived, Integer viralLoad) {
+		executeSql("INSERT INTO ssemr_etl.ssemr_flat_encounter_hiv_care_follow_up (encounter_id, client_id, "
+		        + "encounter_datetime, client_pmtct, date_vl_sample_collected, date_vl_results_received, "
+		        + "viral_load_value) VALUES (" + encounterId + ", " + PATIENT_ID + ", '" + visitDate + "', 'No', '"
+		        + visitDate + "', " + resultsReceived + ", " + viralLoad + ")");
+	}
+	
+	private static void resetRefreshState(long lastRefreshTime, long lastFullRefreshTime) {
+		ReflectionTestUtils.setField(RefreshVLEligibility.class, "lastRefreshTime", lastRefreshTime);
+		ReflectionTestUtils.setField(RefreshVLEligibility.class, "lastFullRefreshTime", lastFullRefreshTime);
+	}
+}
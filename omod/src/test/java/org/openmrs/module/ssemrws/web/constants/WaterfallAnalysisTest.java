@@ -0,0 +1,186 @@
+package org.openmrs.module.ssemrws.web.constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.ssemrws.queries.*;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.openmrs.module.ssemrws.web.constants.AllConcepts.*;
+
+/**
+ * Tests for {@link WaterfallAnalysis}, run against mocked cohort queries. The context is needed by the
+ * cohort workers, which authenticate their own sessions as the calling user.
+ */
+public class WaterfallAnalysisTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String START_DATE = "2026-07-01";
+	
+	private static final String END_DATE = "2026-09-30";
+	
+	private final List<Integer> txCurrCandidates = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12);
+	
+	private final List<Integer> interruptedInTreatment = Arrays.asList(11, 12);
+	
+	private WaterfallAnalysis waterfallAnalysis;
+	
+	private GetTxCurr getTxCurr;
+	
+	private GetTxCurrQueries getTxCurrQueries;
+	
+	private GetInterruptedInTreatment getInterruptedInTreatment;
+	
+	private GetEnrollmentDate getEnrollmentDate;
+	
+	private GetPatientExits getPatientExits;
+	
+	private GetEncounterObs getEncounterObs;
+	
+	private GetTransferredIn getTransferredIn;
+	
+	private Date startDate;
+	
+	private Date endDate;
+	
+	@Before
+	public void setUp() throws Exception {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		startDate = dateFormat.parse(START_DATE);
+		endDate = dateFormat.parse(END_DATE);
+		
+		getTxCurr = mock(GetTxCurr.class);
+		getTxCurrQueries = mock(GetTxCurrQueries.class);
+		getInterruptedInTreatment = mock(GetInterruptedInTreatment.class);
+		getEnrollmentDate = mock(GetEnrollmentDate.class);
+		getPatientExits = mock(GetPatientExits.class);
+		getEncounterObs = mock(GetEncounterObs.class);
+		getTransferredIn = mock(GetTransferredIn.class);
+		
+		when(getTxCurrQueries.executeTxCurrQuery(endDate)).thenReturn(txCurrCandidates);
+		when(getInterruptedInTreatment.getIitIds(startDate, endDate, null)).thenReturn(interruptedInTreatment);
+		when(getTxCurr.getTxCurrPatientIds(txCurrCandidates, interruptedInTreatment, endDate))
+		        .thenReturn(ids(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+		when(getTransferredIn.getTransferredInPatientIds(startDate, endDate)).thenReturn(ids(3));
+		when(getEncounterObs.getPatientIdsWithAnswer(ART_TREATMENT_INTURRUPTION_ENCOUNTER_TYPE_UUID,
+		    RETURNING_TO_TREATMENT_UUID, CONCEPT_BY_UUID, startDate, endDate)).thenReturn(ids(4));
+		when(getPatientExits.getTransferredOutPatientIds(endDate)).thenReturn(ids(20, 21));
+		when(getPatientExits.getDeceasedPatientIds(endDate)).thenReturn(ids(22));
+		
+		Map<Integer, Date> initiationDates = new HashMap<>();
+		initiationDates.put(11, monthsAgo(12));
+		initiationDates.put(12, monthsAgo(1));
+		when(getEnrollmentDate.getInitiationDates(interruptedInTreatment)).thenReturn(initiationDates);
+		when(getEnrollmentDate.getNewlyEnrolledPatientIds(startDate, endDate)).thenReturn(ids(1, 2));
+		
+		waterfallAnalysis = new WaterfallAnalysis(getTxCurr, getTxCurrQueries, getInterruptedInTreatment,
+		        getEnrollmentDate, getPatientExits, getEncounterObs, getTransferredIn);
+	}
+	
+	@After
+	public void tearDown() {
+		waterfallAnalysis.shutdown();
+	}
+	
+	@Test
+	public void getWaterfallAnalysisChart_shouldBuildTheBarsFromTheCohorts() throws Exception {
+		Map<String, Integer> bars = getBars();
+		
+		assertEquals(Arrays.asList("TX_CURR", "TX_NEW", "Transfer In", "TX_RTT", "Potential TX_CURR", "Transfer Out",
+		    "TX_DEATH", "TX_ML_Self Transfer", "TX_ML_Refusal/Stopped", "TX_ML_IIT (<3 mo)", "TX_ML_IIT (3+ mo)",
+		    "CALCULATED TX_CURR"), new ArrayList<>(bars.keySet()));
+		assertEquals(Integer.valueOf(6), bars.get("TX_CURR"));
+		assertEquals(Integer.valueOf(2), bars.get("TX_NEW"));
+		assertEquals(Integer.valueOf(1), bars.get("Transfer In"));
+		assertEquals(Integer.valueOf(1), bars.get("TX_RTT"));
+		assertEquals(Integer.valueOf(10), bars.get("Potential TX_CURR"));
+		assertEquals(Integer.valueOf(2), bars.get("Transfer Out"));
+		assertEquals(Integer.valueOf(1), bars.get("TX_DEATH"));
+		assertEquals(Integer.valueOf(1), bars.get("TX_ML_IIT (<3 mo)"));
+		assertEquals(Integer.valueOf(1), bars.get("TX_ML_IIT (3+ mo)"));
+		assertEquals(Integer.valueOf(10), bars.get("CALCULATED TX_CURR"));
+	}
+	
+	@Test
+	public void getWaterfallAnalysisChart_shouldTakeTxNewFromTheEnrolmentCohort() throws Exception {
+		when(getEnrollmentDate.getNewlyEnrolledPatientIds(startDate, endDate)).thenReturn(ids(1, 2, 5));
+		
+		Map<String, Integer> bars = getBars();
+		
+		assertEquals(Integer.valueOf(3), bars.get("TX_NEW"));
+		assertEquals(Integer.valueOf(5), bars.get("TX_CURR"));
+		verify(getEnrollmentDate).getNewlyEnrolledPatientIds(startDate, endDate);
+	}
+	
+	@Test
+	public void getWaterfallAnalysisChart_shouldComputeIitOnceAndReuseItForTxCurr() throws Exception {
+		waterfallAnalysis.getWaterfallAnalysisChart(START_DATE, END_DATE);
+		
+		verify(getInterruptedInTreatment, times(1)).getIitIds(startDate, endDate, null);
+		verify(getTxCurr).getTxCurrPatientIds(txCurrCandidates, interruptedInTreatment, endDate);
+		verify(getTxCurr, never()).getTxCurrPatientIds(any(Date.class), any(Date.class));
+		verify(getEnrollmentDate, times(1)).getInitiationDates(interruptedInTreatment);
+	}
+	
+	@Test
+	public void getWaterfallAnalysisChart_shouldEvaluateTheCohortsOffTheRequestThreadAsTheCaller() throws Exception {
+		Map<String, Thread> threads = new ConcurrentHashMap<>();
+		Map<String, Integer> users = new ConcurrentHashMap<>();
+		when(getTxCurrQueries.executeTxCurrQuery(endDate)).thenAnswer(invocation -> {
+			threads.put("TX_CURR", Thread.currentThread());
+			users.put("TX_CURR", Context.getAuthenticatedUser().getUserId());
+			return txCurrCandidates;
+		});
+		when(getTransferredIn.getTransferredInPatientIds(startDate, endDate)).thenAnswer(invocation -> {
+			threads.put("Transfer In", Thread.currentThread());
+			users.put("Transfer In", Context.getAuthenticatedUser().getUserId());
+			return ids(3);
+		});
+		
+		waterfallAnalysis.getWaterfallAnalysisChart(START_DATE, END_DATE);
+		
+		assertEquals(2, threads.size());
+		for (Thread thread : threads.values()) {
+			assertNotSame(Thread.currentThread(), thread);
+		}
+		Integer caller = Context.getAuthenticatedUser().getUserId();
+		assertEquals(caller, users.get("TX_CURR"));
+		assertEquals(caller, users.get("Transfer In"));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void getWaterfallAnalysisChart_shouldPropagateACohortFailure() throws Exception {
+		when(getPatientExits.getDeceasedPatientIds(endDate)).thenThrow(new IllegalStateException("no connection"));
+		
+		waterfallAnalysis.getWaterfallAnalysisChart(START_DATE, END_DATE);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, Integer> getBars() throws Exception {
+		Map<String, Object> results = (Map<String, Object>) waterfallAnalysis.getWaterfallAnalysisChart(START_DATE,
+		    END_DATE);
+		Map<String, Integer> bars = new LinkedHashMap<>();
+		for (Map<String, Object> bar : (List<Map<String, Object>>) results.get("results")) {
+			for (Map.Entry<String, Object> entry : bar.entrySet()) {
+				bars.put(entry.getKey(), (Integer) entry.getValue());
+			}
+		}
+		return bars;
+	}
+	
+	private static Set<Integer> ids(Integer... ids) {
+		return new HashSet<>(Arrays.asList(ids));
+	}
+	
+	private static Date monthsAgo(int months) {
+		return Date.from(LocalDate.now().minusMonths(months).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+}
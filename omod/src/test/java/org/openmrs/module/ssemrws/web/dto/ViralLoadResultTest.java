@@ -0,0 +1,82 @@
+package org.openmrs.module.ssemrws.web.dto;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ViralLoadResult}.
+ */
+public class ViralLoadResultTest {
+	
+	@Test
+	public void numericTextResult_shouldCountAsCopies() {
+		ViralLoadResult result = new ViralLoadResult(null, "1500", null, false, new Date(), 1);
+		
+		assertEquals(Double.valueOf(1500), result.getCopies());
+		assertTrue(result.isHighViralLoad());
+		assertEquals("Unsuppressed", result.getStatus());
+		assertEquals("1500", result.getDisplayValue());
+	}
+	
+	@Test
+	public void numericTextResult_belowThresholdShouldBeSuppressed() {
+		ViralLoadResult result = new ViralLoadResult(null, " 200 ", null, false, new Date(), 1);
+		
+		assertFalse(result.isHighViralLoad());
+		assertEquals("Suppressed", result.getStatus());
+	}
+	
+	@Test
+	public void nonNumericTextResult_shouldHaveUnknownStatus() {
+		ViralLoadResult result = new ViralLoadResult(null, "Sample rejected", null, false, new Date(), 1);
+		
+		assertNull(result.getCopies());
+		assertFalse(result.isHighViralLoad());
+		assertEquals("Unknown", result.getStatus());
+		assertEquals("Sample rejected", result.getDisplayValue());
+	}
+	
+	@Test
+	public void numericResult_shouldDisplayTheCopies() {
+		ViralLoadResult result = new ViralLoadResult(1000.0, null, null, false, new Date(), 1);
+		
+		assertTrue(result.isHighViralLoad());
+		assertEquals("1000.0", result.getDisplayValue());
+	}
+	
+	@Test
+	public void belowDetectableResult_shouldBeSuppressed() {
+		ViralLoadResult result = new ViralLoadResult(null, null, null, true, new Date(), 1);
+		
+		assertTrue(result.isSuppressed());
+		assertEquals("Suppressed", result.getStatus());
+		assertEquals(ViralLoadResult.BDL_DISPLAY, result.getDisplayValue());
+	}
+	
+	@Test
+	public void belowDetectableTextResult_shouldBeSuppressed() {
+		ViralLoadResult result = new ViralLoadResult(null, "below detectable (bdl)", null, false, new Date(), 1);
+		
+		assertTrue(result.isBelowDetectable());
+		assertEquals("Suppressed", result.getStatus());
+		assertEquals("below detectable (bdl)", result.getDisplayValue());
+	}
+	
+	@Test
+	public void numericAndTextResult_shouldDisplayTheNumericValueFirst() {
+		ViralLoadResult result = new ViralLoadResult(1500.0, "See comment", null, false, new Date(), 1);
+		
+		assertEquals("1500.0", result.getDisplayValue());
+		assertEquals("Unsuppressed", result.getStatus());
+	}
+	
+	@Test
+	public void none_shouldNotBePresent() {
+		assertFalse(ViralLoadResult.NONE.isPresent());
+		assertNull(ViralLoadResult.NONE.getDisplayValue());
+		assertEquals("Unknown", ViralLoadResult.NONE.getStatus());
+	}
+}